@@ -0,0 +1,122 @@
+package com.laamella.code_state_machine.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+import com.laamella.code_state_machine.Action;
+import com.laamella.code_state_machine.BinaryDefinitions;
+import com.laamella.code_state_machine.Condition;
+import com.laamella.code_state_machine.DefinitionBindings;
+import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.ScxmlDefinitionCache;
+import com.laamella.code_state_machine.builder.ScxmlStateMachineBuilder;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.io.DotOutput;
+
+/**
+ * Measures creating machines: with the DSL, by compiling them, by parsing
+ * SCXML or getting it from a cache, by reading a binary definition, and
+ * writing them as a dot diagram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BuildBenchmark {
+    private static final DefinitionBindings<Integer, Integer, Integer> BINDINGS = new DefinitionBindings<>(Integer::valueOf, Integer::valueOf, Integer::valueOf);
+
+    @Param({"16", "256"})
+    int states;
+    @Param({"1", "4"})
+    int transitionsPerState;
+
+    private StateMachine<Integer, Integer, Integer> machine;
+    private String scxml;
+    private byte[] scxmlBytes;
+    private ByteBuffer binary;
+    private final ScxmlDefinitionCache<Integer, Integer> scxmlCache = new ScxmlDefinitionCache<>(BuildBenchmark::scxmlBuilder, 1);
+
+    @Setup
+    public void setUp() throws IOException {
+        machine = GeneratedMachine.build(states, transitionsPerState, 1, ConditionType.SINGLE_EVENT);
+        scxml = GeneratedMachine.scxml(states, transitionsPerState);
+        scxmlBytes = scxml.getBytes(StandardCharsets.UTF_8);
+        final var file = Files.createTempFile("definition", ".bin");
+        BinaryDefinitions.write(new StateMachineDefinition<>(machine), BINDINGS, file);
+        try (var channel = FileChannel.open(file)) {
+            binary = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public StateMachine<Integer, Integer, Integer> dslBuild() {
+        return GeneratedMachine.build(states, transitionsPerState, 1, ConditionType.SINGLE_EVENT);
+    }
+
+    @Benchmark
+    public StateMachineDefinition<Integer, Integer, Integer> compile() {
+        return new StateMachineDefinition<>(machine);
+    }
+
+    @Benchmark
+    public StateMachine<Integer, Integer, Integer> scxmlParse() throws Exception {
+        return scxmlBuilder(new InputSource(new StringReader(scxml))).build();
+    }
+
+    @Benchmark
+    public StateMachineDefinition<Integer, Integer, Integer> scxmlCached() throws Exception {
+        return scxmlCache.getDefinition(scxmlBytes);
+    }
+
+    private static ScxmlStateMachineBuilder<Integer, Integer> scxmlBuilder(InputSource inputSource) {
+        return new ScxmlStateMachineBuilder<>(inputSource) {
+            @Override
+            protected Action interpretEvent(String attribute) {
+                return () -> {
+                };
+            }
+
+            @Override
+            protected Condition<Integer> interpretCondition(String attribute) {
+                return new SingleEventMatchCondition<>(Integer.valueOf(attribute));
+            }
+
+            @Override
+            protected Integer interpretStateName(String name) {
+                return Integer.valueOf(name);
+            }
+        };
+    }
+
+    @Benchmark
+    public StateMachineDefinition<Integer, Integer, Integer> binaryRead() {
+        return BinaryDefinitions.read(binary.duplicate(), BINDINGS);
+    }
+
+    @Benchmark
+    public String dotOutput() {
+        return new DotOutput<Integer, Integer, Integer>().getOutput(machine);
+    }
+}
@@ -0,0 +1,15 @@
+package com.laamella.code_state_machine.benchmark;
+
+/**
+ * The kind of condition on the transitions of a generated machine. Every
+ * transition waits for an event, and the other kinds are added as a guard.
+ */
+public enum ConditionType {
+    SINGLE_EVENT,
+    MULTI_EVENT,
+    ALWAYS,
+    AFTER,
+    ACTIVE_INACTIVE,
+    /** Guards that are not built-in, of four different classes. */
+    CUSTOM
+}
@@ -0,0 +1,11 @@
+package com.laamella.code_state_machine.benchmark;
+
+/**
+ * How a generated machine is run.
+ */
+public enum Engine {
+    /** A StateMachine. */
+    INTERPRETED,
+    /** A StateMachineInstance of the compiled definition. */
+    COMPILED
+}
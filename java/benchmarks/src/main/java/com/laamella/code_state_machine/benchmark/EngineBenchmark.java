@@ -0,0 +1,93 @@
+package com.laamella.code_state_machine.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.laamella.code_state_machine.Machine;
+import com.laamella.code_state_machine.StateMachineDefinition;
+
+/**
+ * Measures running a generated machine: handling an event, polling without
+ * any change, and resetting. A batch of events is handled both one by one and
+ * with handleEvents, and reported per event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+    private static final int BATCH_SIZE = 256;
+
+    @Param({"16", "256"})
+    int states;
+    @Param({"1", "4"})
+    int transitionsPerState;
+    @Param({"1", "8"})
+    int activeStates;
+    @Param
+    ConditionType conditionType;
+    @Param
+    Engine engine;
+
+    private Machine<Integer, Integer> machine;
+    private int nextEvent = 0;
+    private final List<Integer> batch = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        final var stateMachine = GeneratedMachine.build(states, transitionsPerState, activeStates, conditionType);
+        machine = switch (engine) {
+            case INTERPRETED -> stateMachine;
+            case COMPILED -> new StateMachineDefinition<>(stateMachine).newInstance();
+        };
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(i % transitionsPerState);
+        }
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        machine.handleEvent(nextEvent);
+        nextEvent = (nextEvent + 1) % transitionsPerState;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void handleEventBatchOneByOne() {
+        for (var event : batch) {
+            machine.handleEvent(event);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void handleEvents() {
+        machine.handleEvents(batch);
+    }
+
+    @Benchmark
+    public void poll() {
+        machine.poll();
+    }
+
+    @Benchmark
+    public void reset() {
+        machine.reset();
+    }
+}
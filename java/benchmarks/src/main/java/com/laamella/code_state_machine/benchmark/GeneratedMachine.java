@@ -0,0 +1,104 @@
+package com.laamella.code_state_machine.benchmark;
+
+import com.laamella.code_state_machine.Condition;
+import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.condition.MultiEventMatchCondition;
+import com.laamella.code_state_machine.condition.NonEventBasedCondition;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+
+/**
+ * Generates machines of a certain shape. The states and events are numbers.
+ * Transition t of state s goes to state s + t + 1 on event t, so every event
+ * moves every active state forward, and the amount of active states stays
+ * about the same.
+ */
+final class GeneratedMachine {
+    private GeneratedMachine() {
+    }
+
+    static DslStateMachineBuilder<Integer, Integer, Integer> builder(int states, int transitionsPerState, int activeStates, ConditionType conditionType) {
+        return new DslStateMachineBuilder<>(0) {
+            @Override
+            protected void executeBuildInstructions() {
+                for (int active = 0; active < activeStates; active++) {
+                    state(active * states / activeStates).isAStartState();
+                }
+                for (int state = 0; state < states; state++) {
+                    for (int event = 0; event < transitionsPerState; event++) {
+                        final int destination = (state + event + 1) % states;
+                        state(state).when(conditions(state, event)).then(destination);
+                    }
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            private Condition<Integer>[] conditions(int state, int event) {
+                final Condition<Integer> onEvent = new SingleEventMatchCondition<>(event);
+                return switch (conditionType) {
+                    case SINGLE_EVENT -> new Condition[]{onEvent};
+                    case MULTI_EVENT -> new Condition[]{new MultiEventMatchCondition<>(event, event + transitionsPerState)};
+                    case ALWAYS -> new Condition[]{onEvent, always()};
+                    case AFTER -> new Condition[]{onEvent, after(0)};
+                    case ACTIVE_INACTIVE -> new Condition[]{onEvent, event % 2 == 0 ? inactive((state + states / 2) % states) : active(state)};
+                    case CUSTOM -> new Condition[]{onEvent, customGuard(state + event)};
+                };
+            }
+        };
+    }
+
+    /**
+     * @return a guard that is always met, of one of four classes.
+     */
+    private static Condition<Integer> customGuard(int kind) {
+        return switch (kind % 4) {
+            case 0 -> new NonEventBasedCondition<>() {
+                @Override
+                public boolean isMet() {
+                    return true;
+                }
+            };
+            case 1 -> new NonEventBasedCondition<>() {
+                @Override
+                public boolean isMet() {
+                    return kind >= 0;
+                }
+            };
+            case 2 -> new NonEventBasedCondition<>() {
+                @Override
+                public boolean isMet() {
+                    return kind != -1;
+                }
+            };
+            default -> new NonEventBasedCondition<>() {
+                @Override
+                public boolean isMet() {
+                    return kind < Integer.MAX_VALUE;
+                }
+            };
+        };
+    }
+
+    static StateMachine<Integer, Integer, Integer> build(int states, int transitionsPerState, int activeStates, ConditionType conditionType) {
+        return builder(states, transitionsPerState, activeStates, conditionType).build();
+    }
+
+    /**
+     * @return the same shape as SCXML, with single event conditions. The root
+     * is state -1.
+     */
+    static String scxml(int states, int transitionsPerState) {
+        final var output = new StringBuilder();
+        output.append("<scxml id=\"-1\" initial=\"0\" xmlns=\"http://www.w3.org/2005/07/scxml\">\n");
+        for (int state = 0; state < states; state++) {
+            output.append(" <state id=\"").append(state).append("\">\n");
+            output.append("  <onentry>enter</onentry>\n");
+            for (int event = 0; event < transitionsPerState; event++) {
+                output.append("  <transition cond=\"").append(event).append("\" target=\"").append((state + event + 1) % states).append("\"/>\n");
+            }
+            output.append(" </state>\n");
+        }
+        output.append("</scxml>\n");
+        return output.toString();
+    }
+}
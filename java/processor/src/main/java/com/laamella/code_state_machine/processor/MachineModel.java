@@ -0,0 +1,37 @@
+package com.laamella.code_state_machine.processor;
+
+import java.util.List;
+
+/**
+ * A machine declared with {@code @GenerateStateMachine}, with states and
+ * events as ordinals of their enums.
+ *
+ * @param transitions sorted on source state, then on priority, then in the
+ *                    order of declaration. The index in this list is the index
+ *                    of the transition in the generated code.
+ * @param entryHooks  per state, the names of the hook methods to call on entry.
+ * @param exitHooks   per state, the names of the hook methods to call on exit.
+ */
+record MachineModel(
+        String packageName,
+        String className,
+        String hooksType,
+        boolean hooksHaveAbstractMethods,
+        String statesType,
+        String eventsType,
+        List<String> states,
+        List<String> events,
+        List<Integer> startStates,
+        List<Integer> endStates,
+        List<TransitionModel> transitions,
+        List<List<String>> entryHooks,
+        List<List<String>> exitHooks) {
+
+    /**
+     * @param events   the events of which any one fires the transition, or none
+     *                 when it fires as soon as the source state is active.
+     * @param priority the ordinal of the priority; lower comes first.
+     */
+    record TransitionModel(int source, int destination, List<Integer> events, int priority) {
+    }
+}
@@ -0,0 +1,349 @@
+package com.laamella.code_state_machine.processor;
+
+import java.util.List;
+
+/**
+ * Writes the source of the class for a {@link MachineModel}. States and
+ * transitions are numbers in the generated code: the states are the ordinals
+ * of their enum, and sets of states and transitions are bitsets in long
+ * arrays.
+ * <p/>
+ * The firing rules are those of StateMachine.poll(): every poll fires the
+ * transitions of the highest priority tier that has met transitions, for every
+ * active state at once, and repeats that until no transition fires that did
+ * not fire before during this poll.
+ */
+final class MachineWriter {
+    private final MachineModel m;
+    private final StringBuilder out = new StringBuilder();
+
+    MachineWriter(MachineModel model) {
+        m = model;
+    }
+
+    String write() {
+        final int stateWords = words(m.states().size());
+        final int transitionWords = words(m.transitions().size());
+        final var hooks = m.hooksType();
+        final var states = m.statesType();
+        final var events = m.eventsType();
+
+        if (!m.packageName().isEmpty()) {
+            line(0, "package " + m.packageName() + ";");
+            line(0, "");
+        }
+        line(0, "/**");
+        line(0, " * A state machine generated from {@link " + hooks + "}.");
+        line(0, " * <p/>");
+        line(0, " * An instance is not thread safe.");
+        line(0, " */");
+        line(0, "@javax.annotation.processing.Generated(\"" + StateMachineProcessor.class.getName() + "\")");
+        line(0, "public final class " + m.className() + " implements com.laamella.code_state_machine.Machine<" + states + ", " + events + "> {");
+        line(1, "private static final " + states + "[] STATES = " + states + ".values();");
+        line(1, "private static final long[] START_STATES = " + bits(m.startStates(), stateWords) + ";");
+        line(1, "private static final long[] END_STATES = " + bits(m.endStates(), stateWords) + ";");
+        line(0, "");
+        line(1, "private final " + hooks + " hooks;");
+        line(1, "private final long[] active = START_STATES.clone();");
+        line(1, "/** One bit per transition: whether one of its events arrived since its source state was entered. */");
+        line(1, "private final long[] flags = new long[" + transitionWords + "];");
+        line(1, "/** Buffers for poll(), or null while they are in use or after a hook failed. */");
+        line(1, "private Scratch scratch = new Scratch();");
+        line(0, "");
+        if (!m.hooksHaveAbstractMethods()) {
+            line(1, "public " + m.className() + "() {");
+            line(2, "this(new " + hooks + "() {");
+            line(2, "});");
+            line(1, "}");
+            line(0, "");
+        }
+        line(1, "public " + m.className() + "(" + hooks + " hooks) {");
+        line(2, "this.hooks = java.util.Objects.requireNonNull(hooks);");
+        line(1, "}");
+
+        writeQueries(states);
+        writeHandleEvent(events);
+        writePoll();
+        writeEvaluate();
+        writeEnterAndExit();
+        writeScratch(stateWords, transitionWords);
+        line(0, "}");
+        return out.toString();
+    }
+
+    private void writeQueries(String states) {
+        line(0, "");
+        line(1, "@Override");
+        line(1, "public void reset() {");
+        line(2, "java.util.Arrays.fill(active, 0);");
+        for (var state : m.startStates()) {
+            line(2, "enter(" + state + ");");
+        }
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * @return a copy of the active states.");
+        line(1, " */");
+        line(1, "@Override");
+        line(1, "public java.util.Set<" + states + "> getActiveStates() {");
+        line(2, "final var activeStates = java.util.EnumSet.noneOf(" + states + ".class);");
+        line(2, "for (int word = 0; word < active.length; word++) {");
+        line(3, "long bits = active[word];");
+        line(3, "while (bits != 0) {");
+        line(4, "activeStates.add(STATES[(word << 6) + Long.numberOfTrailingZeros(bits)]);");
+        line(4, "bits &= bits - 1;");
+        line(3, "}");
+        line(2, "}");
+        line(2, "return java.util.Collections.unmodifiableSet(activeStates);");
+        line(1, "}");
+        line(0, "");
+        line(1, "@Override");
+        line(1, "public boolean isActive(" + states + " state) {");
+        line(2, "return isActive(state.ordinal());");
+        line(1, "}");
+        line(0, "");
+        line(1, "@Override");
+        line(1, "public boolean isFinished() {");
+        line(2, "for (var word : active) {");
+        line(3, "if (word != 0) {");
+        line(4, "return false;");
+        line(3, "}");
+        line(2, "}");
+        line(2, "return true;");
+        line(1, "}");
+        line(0, "");
+        line(1, "private boolean isActive(int state) {");
+        line(2, "return (active[state >>> 6] & (1L << state)) != 0;");
+        line(1, "}");
+    }
+
+    private void writeHandleEvent(String events) {
+        line(0, "");
+        line(1, "@Override");
+        line(1, "public void handleEvent(" + events + " event) {");
+        line(2, "switch (event.ordinal()) {");
+        for (int event = 0; event < m.events().size(); event++) {
+            final var cases = new StringBuilder();
+            for (int transition = 0; transition < m.transitions().size(); transition++) {
+                final var t = m.transitions().get(transition);
+                if (t.events().contains(event)) {
+                    cases.append("                if (isActive(").append(t.source()).append(")) {\n");
+                    cases.append("                    flags[").append(transition >>> 6).append("] |= ").append(mask(transition)).append(";\n");
+                    cases.append("                }\n");
+                }
+            }
+            if (!cases.isEmpty()) {
+                line(3, "case " + event + " -> { // " + m.events().get(event));
+                out.append(cases);
+                line(3, "}");
+            }
+        }
+        line(3, "default -> {");
+        line(3, "}");
+        line(2, "}");
+        line(2, "poll();");
+        line(1, "}");
+    }
+
+    private void writePoll() {
+        line(0, "");
+        line(1, "@Override");
+        line(1, "public void poll() {");
+        line(2, "// A hook that polls during a poll gets new buffers.");
+        line(2, "final var x = scratch == null ? new Scratch() : scratch;");
+        line(2, "scratch = null;");
+        line(2, "boolean stillNewTransitionsFiring;");
+        line(2, "do {");
+        line(3, "stillNewTransitionsFiring = false;");
+        line(3, "x.exitCount = 0;");
+        line(3, "x.enterCount = 0;");
+        line(3, "final int firstToFire = x.firedCount;");
+        line(3, "for (int word = 0; word < active.length; word++) {");
+        line(4, "long sourceStates = active[word];");
+        line(4, "while (sourceStates != 0) {");
+        line(5, "evaluate((word << 6) + Long.numberOfTrailingZeros(sourceStates), x);");
+        line(5, "sourceStates &= sourceStates - 1;");
+        line(4, "}");
+        line(3, "}");
+        line(3, "for (int i = 0; i < x.exitCount; i++) {");
+        line(4, "exit(x.statesToExit[i]);");
+        line(3, "}");
+        line(3, "for (int i = firstToFire; i < x.firedCount; i++) {");
+        line(4, "final int transition = x.transitionsToFire[i];");
+        line(4, "x.firedBefore[transition >>> 6] |= 1L << transition;");
+        line(4, "stillNewTransitionsFiring = true;");
+        line(3, "}");
+        line(3, "for (int i = 0; i < x.enterCount; i++) {");
+        line(4, "final int state = x.statesToEnter[i];");
+        line(4, "x.entering[state >>> 6] &= ~(1L << state);");
+        line(4, "enter(state);");
+        line(3, "}");
+        line(2, "} while (stillNewTransitionsFiring);");
+        line(2, "for (int i = 0; i < x.firedCount; i++) {");
+        line(3, "final int transition = x.transitionsToFire[i];");
+        line(3, "x.firedBefore[transition >>> 6] &= ~(1L << transition);");
+        line(2, "}");
+        line(2, "x.firedCount = 0;");
+        line(2, "scratch = x;");
+        line(1, "}");
+    }
+
+    /**
+     * Writes the evaluation of the transitions of every state, one priority
+     * tier after the other.
+     */
+    private void writeEvaluate() {
+        line(0, "");
+        line(1, "private void evaluate(int state, Scratch x) {");
+        line(2, "boolean firing = false;");
+        line(2, "switch (state) {");
+        final var transitions = m.transitions();
+        int transition = 0;
+        while (transition < transitions.size()) {
+            final int source = transitions.get(transition).source();
+            line(3, "case " + source + " -> { // " + m.states().get(source));
+            int priority = transitions.get(transition).priority();
+            for (; transition < transitions.size() && transitions.get(transition).source() == source; transition++) {
+                final var t = transitions.get(transition);
+                if (t.priority() != priority) {
+                    line(4, "if (firing) {");
+                    line(5, "return;");
+                    line(4, "}");
+                    priority = t.priority();
+                }
+                final var condition = t.events().isEmpty() ? "" : " && (flags[" + (transition >>> 6) + "] & " + mask(transition) + ") != 0";
+                line(4, "if ((x.firedBefore[" + (transition >>> 6) + "] & " + mask(transition) + ") == 0" + condition + ") {");
+                line(5, "firing = x.fire(" + source + ", " + transition + ", " + t.destination() + ", firing);");
+                line(4, "}");
+            }
+            line(3, "}");
+        }
+        line(3, "default -> {");
+        line(3, "}");
+        line(2, "}");
+        line(1, "}");
+    }
+
+    private void writeEnterAndExit() {
+        line(0, "");
+        line(1, "private void exit(int state) {");
+        line(2, "if (isActive(state)) {");
+        writeHooks(3, m.exitHooks());
+        line(3, "active[state >>> 6] &= ~(1L << state);");
+        line(2, "}");
+        line(1, "}");
+        line(0, "");
+        line(1, "private void enter(int state) {");
+        line(2, "if ((END_STATES[state >>> 6] & (1L << state)) != 0) {");
+        writeHooks(3, m.entryHooks());
+        line(3, "return;");
+        line(2, "}");
+        line(2, "if (!isActive(state)) {");
+        line(3, "active[state >>> 6] |= 1L << state;");
+        writeHooks(3, m.entryHooks());
+        line(3, "switch (state) {");
+        final var transitions = m.transitions();
+        for (int state = 0; state < m.states().size(); state++) {
+            final var masks = new long[words(transitions.size())];
+            for (int transition = 0; transition < transitions.size(); transition++) {
+                if (transitions.get(transition).source() == state && !transitions.get(transition).events().isEmpty()) {
+                    masks[transition >>> 6] |= 1L << transition;
+                }
+            }
+            final var resets = new StringBuilder();
+            for (int word = 0; word < masks.length; word++) {
+                if (masks[word] != 0) {
+                    resets.append("                    flags[").append(word).append("] &= ~").append(hex(masks[word])).append(";\n");
+                }
+            }
+            if (!resets.isEmpty()) {
+                line(4, "case " + state + " -> { // " + m.states().get(state));
+                out.append(resets);
+                line(4, "}");
+            }
+        }
+        line(4, "default -> {");
+        line(4, "}");
+        line(3, "}");
+        line(2, "}");
+        line(1, "}");
+    }
+
+    private void writeHooks(int indent, List<List<String>> hooks) {
+        if (hooks.stream().allMatch(List::isEmpty)) {
+            return;
+        }
+        line(indent, "switch (state) {");
+        for (int state = 0; state < hooks.size(); state++) {
+            if (!hooks.get(state).isEmpty()) {
+                line(indent + 1, "case " + state + " -> { // " + m.states().get(state));
+                for (var hook : hooks.get(state)) {
+                    line(indent + 2, "hooks." + hook + "();");
+                }
+                line(indent + 1, "}");
+            }
+        }
+        line(indent + 1, "default -> {");
+        line(indent + 1, "}");
+        line(indent, "}");
+    }
+
+    private void writeScratch(int stateWords, int transitionWords) {
+        final int stateCount = Math.max(m.states().size(), 1);
+        line(0, "");
+        line(1, "private static final class Scratch {");
+        line(2, "final long[] firedBefore = new long[" + transitionWords + "];");
+        line(2, "final long[] entering = new long[" + stateWords + "];");
+        line(2, "final int[] statesToExit = new int[" + stateCount + "];");
+        line(2, "/** Every transition fires at most once per poll. */");
+        line(2, "final int[] transitionsToFire = new int[" + Math.max(m.transitions().size(), 1) + "];");
+        line(2, "final int[] statesToEnter = new int[" + stateCount + "];");
+        line(2, "int exitCount;");
+        line(2, "int firedCount;");
+        line(2, "int enterCount;");
+        line(0, "");
+        line(2, "boolean fire(int source, int transition, int destination, boolean firing) {");
+        line(3, "if (!firing) {");
+        line(4, "statesToExit[exitCount++] = source;");
+        line(3, "}");
+        line(3, "transitionsToFire[firedCount++] = transition;");
+        line(3, "if ((entering[destination >>> 6] & (1L << destination)) == 0) {");
+        line(4, "entering[destination >>> 6] |= 1L << destination;");
+        line(4, "statesToEnter[enterCount++] = destination;");
+        line(3, "}");
+        line(3, "return true;");
+        line(2, "}");
+        line(1, "}");
+    }
+
+    private void line(int indent, String text) {
+        if (!text.isEmpty()) {
+            out.append("    ".repeat(indent)).append(text);
+        }
+        out.append('\n');
+    }
+
+    private static int words(int bitCount) {
+        return Math.max((bitCount + 63) >>> 6, 1);
+    }
+
+    private static String bits(List<Integer> indexes, int wordCount) {
+        final var words = new long[wordCount];
+        for (var index : indexes) {
+            words[index >>> 6] |= 1L << index;
+        }
+        final var text = new StringBuilder("{");
+        for (int word = 0; word < wordCount; word++) {
+            text.append(word == 0 ? "" : ", ").append(hex(words[word]));
+        }
+        return text.append('}').toString();
+    }
+
+    private static String mask(int index) {
+        return hex(1L << index);
+    }
+
+    private static String hex(long value) {
+        return "0x" + Long.toHexString(value) + "L";
+    }
+}
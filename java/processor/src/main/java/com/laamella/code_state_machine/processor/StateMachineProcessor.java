@@ -0,0 +1,215 @@
+package com.laamella.code_state_machine.processor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import com.laamella.code_state_machine.processor.MachineModel.TransitionModel;
+
+/**
+ * Writes a class for every interface annotated with
+ * {@code @GenerateStateMachine}. The class has a switch per state and per
+ * event instead of tables, and calls the hooks directly, so it needs no
+ * building or reflection at runtime.
+ */
+@SupportedAnnotationTypes(StateMachineProcessor.GENERATE_STATE_MACHINE)
+public final class StateMachineProcessor extends AbstractProcessor {
+    static final String GENERATE_STATE_MACHINE = "com.laamella.code_state_machine.annotation.GenerateStateMachine";
+    private static final String TRANSITION = "com.laamella.code_state_machine.annotation.Transition";
+    private static final String TRANSITIONS = "com.laamella.code_state_machine.annotation.Transitions";
+    private static final String ON_ENTRY = "com.laamella.code_state_machine.annotation.OnEntry";
+    private static final String ON_EXIT = "com.laamella.code_state_machine.annotation.OnExit";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        final var annotation = processingEnv.getElementUtils().getTypeElement(GENERATE_STATE_MACHINE);
+        if (annotation == null) {
+            return false;
+        }
+        for (var element : round.getElementsAnnotatedWith(annotation)) {
+            try {
+                final var model = read((TypeElement) element);
+                final var name = model.packageName().isEmpty() ? model.className() : model.packageName() + "." + model.className();
+                try (var writer = processingEnv.getFiler().createSourceFile(name, element).openWriter()) {
+                    writer.write(new MachineWriter(model).write());
+                }
+            } catch (InvalidDeclarationException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Writing the machine failed: " + e.getMessage(), element);
+            }
+        }
+        return true;
+    }
+
+    private MachineModel read(TypeElement type) {
+        if (type.getKind() != ElementKind.INTERFACE || !type.getTypeParameters().isEmpty()) {
+            throw new InvalidDeclarationException(type, "@GenerateStateMachine must be on an interface without type parameters");
+        }
+        final var generate = mirror(type, GENERATE_STATE_MACHINE);
+        final var statesType = enumType(type, value(generate, "states"));
+        final var eventsType = enumType(type, value(generate, "events"));
+        final var states = constants(statesType);
+        final var events = constants(eventsType);
+
+        final var startStates = new ArrayList<Integer>();
+        for (var name : strings(value(generate, "startStates"))) {
+            startStates.add(indexOf(type, states, name, "state"));
+        }
+        final var endStates = new ArrayList<Integer>();
+        for (var name : strings(value(generate, "endStates"))) {
+            endStates.add(indexOf(type, states, name, "state"));
+        }
+
+        final var transitionMirrors = new ArrayList<AnnotationMirror>();
+        for (var mirror : type.getAnnotationMirrors()) {
+            final var name = ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString();
+            if (name.equals(TRANSITION)) {
+                transitionMirrors.add(mirror);
+            } else if (name.equals(TRANSITIONS)) {
+                for (var repeated : list(value(mirror, "value"))) {
+                    transitionMirrors.add((AnnotationMirror) repeated.getValue());
+                }
+            }
+        }
+        final var transitions = new ArrayList<TransitionModel>();
+        for (var mirror : transitionMirrors) {
+            final var destination = indexOf(type, states, (String) value(mirror, "to"), "state");
+            final var transitionEvents = new ArrayList<Integer>();
+            for (var name : strings(value(mirror, "on"))) {
+                transitionEvents.add(indexOf(type, events, name, "event"));
+            }
+            final var priority = (VariableElement) value(mirror, "priority");
+            final int priorityOrdinal = constants((TypeElement) priority.getEnclosingElement()).indexOf(priority.getSimpleName().toString());
+            for (var name : strings(value(mirror, "from"))) {
+                transitions.add(new TransitionModel(indexOf(type, states, name, "state"), destination, transitionEvents, priorityOrdinal));
+            }
+        }
+        // A stable sort, so the order of declaration is kept within a priority.
+        transitions.sort(Comparator.comparingInt(TransitionModel::source).thenComparingInt(TransitionModel::priority));
+
+        final var entryHooks = new ArrayList<List<String>>();
+        final var exitHooks = new ArrayList<List<String>>();
+        for (int i = 0; i < states.size(); i++) {
+            entryHooks.add(new ArrayList<>());
+            exitHooks.add(new ArrayList<>());
+        }
+        boolean abstractMethods = false;
+        for (var method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            abstractMethods |= method.getModifiers().contains(Modifier.ABSTRACT);
+            final var onEntry = mirror(method, ON_ENTRY);
+            final var onExit = mirror(method, ON_EXIT);
+            if (onEntry == null && onExit == null) {
+                continue;
+            }
+            if (!method.getParameters().isEmpty() || method.getReturnType().getKind() != TypeKind.VOID
+                    || method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new InvalidDeclarationException(method, "Hooks must be instance methods without parameters that return void");
+            }
+            addHooks(method, onEntry, states, entryHooks);
+            addHooks(method, onExit, states, exitHooks);
+        }
+
+        final var packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        final var name = (String) value(generate, "name");
+        final var className = name.isEmpty() ? type.getSimpleName() + "Machine" : name;
+        return new MachineModel(packageName, className, type.getQualifiedName().toString(), abstractMethods,
+                statesType.getQualifiedName().toString(), eventsType.getQualifiedName().toString(),
+                states, events, startStates, endStates, transitions, entryHooks, exitHooks);
+    }
+
+    private void addHooks(ExecutableElement method, AnnotationMirror hook, List<String> states, List<List<String>> hooks) {
+        if (hook != null) {
+            for (var state : strings(value(hook, "value"))) {
+                hooks.get(indexOf(method, states, state, "state")).add(method.getSimpleName().toString());
+            }
+        }
+    }
+
+    private static int indexOf(Element element, List<String> constants, String name, String kind) {
+        final int index = constants.indexOf(name);
+        if (index < 0) {
+            throw new InvalidDeclarationException(element, "Unknown " + kind + " " + name);
+        }
+        return index;
+    }
+
+    private static TypeElement enumType(Element element, Object type) {
+        final var typeElement = (TypeElement) ((DeclaredType) type).asElement();
+        if (typeElement.getKind() != ElementKind.ENUM) {
+            throw new InvalidDeclarationException(element, typeElement.getQualifiedName() + " is not an enum");
+        }
+        return typeElement;
+    }
+
+    /**
+     * @return the names of the constants of the enum, in the order of their
+     * ordinals.
+     */
+    private static List<String> constants(TypeElement enumType) {
+        return enumType.getEnclosedElements().stream()
+                .filter(element -> element.getKind() == ElementKind.ENUM_CONSTANT)
+                .map(element -> element.getSimpleName().toString())
+                .toList();
+    }
+
+    private static AnnotationMirror mirror(Element element, String annotation) {
+        for (var mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Object value(AnnotationMirror mirror, String name) {
+        for (var entry : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        throw new IllegalStateException("No value " + name + " in " + mirror);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<? extends AnnotationValue> list(Object value) {
+        return (List<? extends AnnotationValue>) value;
+    }
+
+    private static List<String> strings(Object value) {
+        return list(value).stream().map(element -> (String) element.getValue()).toList();
+    }
+
+    private static final class InvalidDeclarationException extends RuntimeException {
+        private final transient Element element;
+
+        InvalidDeclarationException(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+    }
+}
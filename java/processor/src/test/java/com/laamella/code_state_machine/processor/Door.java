@@ -0,0 +1,13 @@
+package com.laamella.code_state_machine.processor;
+
+import com.laamella.code_state_machine.annotation.GenerateStateMachine;
+import com.laamella.code_state_machine.annotation.Transition;
+
+/**
+ * A machine without hooks to implement.
+ */
+@GenerateStateMachine(states = Light.class, events = Signal.class, startStates = {"OFF", "BROKEN"}, name = "GeneratedDoor")
+@Transition(from = "OFF", on = "POWER", to = "RED")
+@Transition(from = "BROKEN", on = "REPAIR", to = "GREEN")
+interface Door {
+}
@@ -0,0 +1,5 @@
+package com.laamella.code_state_machine.processor;
+
+enum Light {
+    OFF, RED, GREEN, YELLOW, FLASHING, BROKEN, SCRAPPED
+}
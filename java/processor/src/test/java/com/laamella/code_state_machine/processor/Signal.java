@@ -0,0 +1,5 @@
+package com.laamella.code_state_machine.processor;
+
+enum Signal {
+    POWER, TICK, HIT, REPAIR, SCRAP
+}
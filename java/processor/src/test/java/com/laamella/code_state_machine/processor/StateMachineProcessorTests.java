@@ -0,0 +1,121 @@
+package com.laamella.code_state_machine.processor;
+
+import com.laamella.code_state_machine.Action;
+import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.priority.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static com.laamella.code_state_machine.processor.Light.*;
+import static com.laamella.code_state_machine.processor.Signal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StateMachineProcessorTests {
+    private final StringBuffer generatedTrace = new StringBuffer();
+    private final StringBuffer builtTrace = new StringBuffer();
+
+    private final TrafficLightMachine generated = new TrafficLightMachine(new TrafficLight() {
+        @Override
+        public void stop() {
+            generatedTrace.append("stop ");
+        }
+
+        @Override
+        public void go() {
+            generatedTrace.append("go ");
+        }
+
+        @Override
+        public void slowDown() {
+            generatedTrace.append("slowDown ");
+        }
+
+        @Override
+        public void switchLampOff() {
+            generatedTrace.append("switchLampOff ");
+        }
+
+        @Override
+        public void callTheMechanic() {
+            generatedTrace.append("callTheMechanic ");
+        }
+
+        @Override
+        public void recycle() {
+            generatedTrace.append("recycle ");
+        }
+    });
+
+    /**
+     * The machine that TrafficLight declares, built at runtime. The
+     * transitions with more than one source state are declared once per
+     * source, like the processor does.
+     */
+    private final StateMachine<Light, Signal, Priority> built = new DslStateMachineBuilder<Light, Signal, Priority>(Priority.NORMAL) {
+        @Override
+        protected void executeBuildInstructions() {
+            state(OFF).isAStartState().when(POWER).then(RED).when(HIT).then(FLASHING);
+            state(FLASHING).onEntry(trace("go ")).when(always()).then(OFF);
+            state(RED).onEntry(trace("stop ")).onExit(trace("switchLampOff ")).when(TICK).then(GREEN);
+            state(GREEN).onEntry(trace("go ")).onExit(trace("switchLampOff ")).when(TICK).then(YELLOW);
+            state(YELLOW).onEntry(trace("slowDown ")).onExit(trace("switchLampOff ")).when(TICK).then(RED);
+            for (var lit : EnumSet.of(RED, GREEN, YELLOW)) {
+                state(lit).when(POWER).then(OFF);
+                state(lit).when(HIT).withPrio(Priority.HIGH).then(BROKEN);
+            }
+            state(BROKEN).onEntry(trace("callTheMechanic ")).onExit(trace("callTheMechanic "))
+                    .when(REPAIR, POWER).then(OFF)
+                    .when(SCRAP).withPrio(Priority.HIGHEST).then(SCRAPPED);
+            state(SCRAPPED).isAnEndState().onEntry(trace("recycle "));
+        }
+
+        private Action trace(String signature) {
+            return () -> builtTrace.append(signature);
+        }
+    }.build();
+
+    @Test
+    void generatedMachineBehavesLikeTheBuiltMachine() {
+        final var random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            if (built.isFinished()) {
+                assertTrue(generated.isFinished());
+                built.reset();
+                generated.reset();
+            }
+            final var event = Signal.values()[random.nextInt(Signal.values().length)];
+            built.handleEvent(event);
+            generated.handleEvent(event);
+            assertEquals(built.getActiveStates(), generated.getActiveStates(), "after event " + i);
+        }
+        assertEquals(builtTrace.toString(), generatedTrace.toString());
+    }
+
+    @Test
+    void endStatesFinishTheMachine() {
+        generated.handleEvents(List.of(POWER, TICK, HIT));
+        assertEquals(Set.of(BROKEN), generated.getActiveStates());
+        assertEquals("stop switchLampOff go switchLampOff callTheMechanic ", generatedTrace.toString());
+        generated.handleEvent(SCRAP);
+        assertTrue(generated.isFinished());
+        assertFalse(generated.isActive(SCRAPPED));
+        assertEquals("stop switchLampOff go switchLampOff callTheMechanic callTheMechanic recycle ", generatedTrace.toString());
+        generated.reset();
+        assertEquals(Set.of(OFF), generated.getActiveStates());
+    }
+
+    @Test
+    void hooksAreOptionalWhenTheyHaveDefaults() {
+        final var door = new GeneratedDoor();
+        assertEquals(Set.of(OFF, BROKEN), door.getActiveStates());
+        door.handleEvents(List.of(POWER, REPAIR, TICK));
+        assertEquals(Set.of(RED, GREEN), door.getActiveStates());
+    }
+}
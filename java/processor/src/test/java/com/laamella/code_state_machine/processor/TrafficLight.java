@@ -0,0 +1,40 @@
+package com.laamella.code_state_machine.processor;
+
+import com.laamella.code_state_machine.annotation.GenerateStateMachine;
+import com.laamella.code_state_machine.annotation.OnEntry;
+import com.laamella.code_state_machine.annotation.OnExit;
+import com.laamella.code_state_machine.annotation.Transition;
+import com.laamella.code_state_machine.priority.Priority;
+
+@GenerateStateMachine(states = Light.class, events = Signal.class, startStates = "OFF", endStates = "SCRAPPED")
+@Transition(from = "OFF", on = "POWER", to = "RED")
+@Transition(from = "OFF", on = "HIT", to = "FLASHING")
+@Transition(from = "FLASHING", to = "OFF")
+@Transition(from = "RED", on = "TICK", to = "GREEN")
+@Transition(from = "GREEN", on = "TICK", to = "YELLOW")
+@Transition(from = "YELLOW", on = "TICK", to = "RED")
+@Transition(from = {"RED", "GREEN", "YELLOW"}, on = "POWER", to = "OFF")
+@Transition(from = {"RED", "GREEN", "YELLOW"}, on = "HIT", to = "BROKEN", priority = Priority.HIGH)
+@Transition(from = "BROKEN", on = {"REPAIR", "POWER"}, to = "OFF")
+@Transition(from = "BROKEN", on = "SCRAP", to = "SCRAPPED", priority = Priority.HIGHEST)
+interface TrafficLight {
+    @OnEntry("RED")
+    void stop();
+
+    @OnEntry({"GREEN", "FLASHING"})
+    void go();
+
+    @OnEntry("YELLOW")
+    void slowDown();
+
+    @OnExit({"RED", "GREEN", "YELLOW"})
+    void switchLampOff();
+
+    @OnEntry("BROKEN")
+    @OnExit("BROKEN")
+    void callTheMechanic();
+
+    @OnEntry("SCRAPPED")
+    default void recycle() {
+    }
+}
@@ -0,0 +1,404 @@
+package com.laamella.code_state_machine;
+
+import static com.laamella.code_state_machine.StateMachineDefinition.ASYNC;
+import static com.laamella.code_state_machine.StateMachineDefinition.MULTI_EVENT;
+import static com.laamella.code_state_machine.StateMachineDefinition.OPAQUE;
+import static com.laamella.code_state_machine.StateMachineDefinition.SINGLE_EVENT;
+import static com.laamella.code_state_machine.StateMachineDefinition.STATES_ACTIVE;
+import static com.laamella.code_state_machine.StateMachineDefinition.STATES_INACTIVE;
+import static com.laamella.code_state_machine.StateMachineDefinition.TASK;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.laamella.code_state_machine.action.ExecutorTaskAction;
+import com.laamella.code_state_machine.condition.AsyncCondition;
+import com.laamella.code_state_machine.util.Indexer;
+
+/**
+ * Writes the tables of a {@link StateMachineDefinition} in a binary form, and
+ * reads them back without running a builder or compiling anything. A
+ * definition can be written when the application is built, and loaded when it
+ * starts.
+ * <p/>
+ * The form starts with a magic number and a format version. Then come the
+ * names of the states and events, the names of the actions, and the tables of
+ * the definition as they are: arrays of ints and longs that are read in bulk.
+ * Built-in conditions are stored as their kind and data, other conditions and
+ * all actions by the names in the {@link DefinitionBindings}. Definitions are
+ * read from the current position of a buffer and leave it after their end, so
+ * several definitions can be stored after each other in one file.
+ * <p/>
+ * Version 2 added the sub states, initial sub states and parallel states of
+ * compound states at the end. Version 1 is still read, as a definition
+ * without compound states.
+ * <p/>
+ * Definitions with sub machines can not be written.
+ */
+public final class BinaryDefinitions {
+    /** "CSMD" */
+    private static final int MAGIC = 0x43534d44;
+    /** The version of the format that is written. */
+    public static final int VERSION = 2;
+
+    private BinaryDefinitions() {
+    }
+
+    /**
+     * @throws IllegalArgumentException when the definition has sub machines, or
+     *                                  uses an action or condition that has
+     *                                  no name in the bindings.
+     */
+    public static <T, E, P extends Comparable<P>> void write(StateMachineDefinition<T, E, P> definition, DefinitionBindings<T, E, P> bindings, OutputStream output) throws IOException {
+        if (definition.subMachines.length > 0) {
+            throw new IllegalArgumentException("Definitions with sub machines can not be written");
+        }
+        final var out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeNames(out, definition.states.size(), index -> DefinitionBindings.nameOf(definition.states.get(index)));
+        writeNames(out, definition.events.size(), index -> DefinitionBindings.nameOf(definition.events.get(index)));
+
+        final var actionIndexes = new LinkedHashMap<String, Integer>();
+        for (var actions : List.of(definition.entryActions, definition.exitActions, definition.transitionActions)) {
+            for (var list : actions) {
+                for (var action : list) {
+                    actionIndexes.putIfAbsent(bindings.nameOf(action), actionIndexes.size());
+                }
+            }
+        }
+        final var actionNames = List.copyOf(actionIndexes.keySet());
+        writeNames(out, actionNames.size(), actionNames::get);
+        final Function<Action, Integer> actionIndex = action -> actionIndexes.get(bindings.nameOf(action));
+
+        writeInts(out, definition.startStates);
+        writeLongs(out, definition.endStates);
+        writeActions(out, definition.entryActions, actionIndex);
+        writeActions(out, definition.exitActions, actionIndex);
+
+        writeInts(out, definition.firstTransition);
+        writeInts(out, definition.firstTier);
+        writeInts(out, definition.tierStart);
+        writeInts(out, definition.transitionSource);
+        writeInts(out, definition.transitionDestination);
+        final var priorityIndexes = new LinkedHashMap<String, Integer>();
+        final var priorities = new int[definition.transitionPriority.length];
+        for (int transition = 0; transition < priorities.length; transition++) {
+            final var name = DefinitionBindings.nameOf(definition.transitionPriority[transition]);
+            priorities[transition] = priorityIndexes.computeIfAbsent(name, n -> priorityIndexes.size());
+        }
+        final var priorityNames = List.copyOf(priorityIndexes.keySet());
+        writeNames(out, priorityNames.size(), priorityNames::get);
+        writeInts(out, priorities);
+        writeActions(out, definition.transitionActions, actionIndex);
+        writeInts(out, definition.firstCondition);
+        writeInts(out, definition.transitionConditions);
+
+        writeInts(out, definition.conditionKind);
+        writeInts(out, definition.conditionSlot);
+        for (int condition = 0; condition < definition.conditionKind.length; condition++) {
+            writeConditionData(out, definition, bindings, condition);
+        }
+        out.writeInt(definition.flagCount);
+        writeLongs(out, definition.timerMilliseconds);
+
+        writeInts(out, definition.firstEventTarget);
+        writeInts(out, definition.eventTargetState);
+        writeInts(out, definition.eventTargetFlag);
+        writeLongs(out, definition.fallbackStates);
+        writeInts(out, definition.firstFallbackCondition);
+        writeInts(out, definition.fallbackConditions);
+        writeLongs(out, definition.opaqueStates);
+        writeLongs(out, definition.timedStates);
+        writeInts(out, definition.firstObserver);
+        writeInts(out, definition.observerStates);
+        final var hierarchy = definition.hierarchy;
+        if (hierarchy == null) {
+            writeInts(out, new int[0]);
+        } else {
+            writeInts(out, hierarchy.firstSubState);
+            writeInts(out, hierarchy.subStates);
+            writeInts(out, hierarchy.initialSubState);
+            writeLongs(out, hierarchy.parallelStates);
+        }
+        out.flush();
+    }
+
+    public static <T, E, P extends Comparable<P>> void write(StateMachineDefinition<T, E, P> definition, DefinitionBindings<T, E, P> bindings, Path file) throws IOException {
+        try (var output = Files.newOutputStream(file)) {
+            write(definition, bindings, output);
+        }
+    }
+
+    public static <T, E, P extends Comparable<P>> byte[] toBytes(StateMachineDefinition<T, E, P> definition, DefinitionBindings<T, E, P> bindings) {
+        final var output = new ByteArrayOutputStream();
+        try {
+            write(definition, bindings, output);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to memory failed", e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Reads a definition from the position of the buffer, and moves the
+     * position to the end of the definition.
+     *
+     * @throws IllegalArgumentException when the buffer does not hold a
+     *                                  definition of a known version, or the
+     *                                  bindings do not match it.
+     */
+    public static <T, E, P extends Comparable<P>> StateMachineDefinition<T, E, P> read(ByteBuffer buffer, DefinitionBindings<T, E, P> bindings) {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary definition");
+        }
+        final int version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported definition version " + version);
+        }
+        return new StateMachineDefinition<>(new Reader<>(buffer, version, bindings));
+    }
+
+    /**
+     * Maps the file into memory and reads the definition from it.
+     */
+    public static <T, E, P extends Comparable<P>> StateMachineDefinition<T, E, P> load(Path file, DefinitionBindings<T, E, P> bindings) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), bindings);
+        }
+    }
+
+    /**
+     * Maps the file into memory and reads all definitions in it.
+     */
+    public static <T, E, P extends Comparable<P>> List<StateMachineDefinition<T, E, P>> loadAll(Path file, DefinitionBindings<T, E, P> bindings) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final var definitions = new ArrayList<StateMachineDefinition<T, E, P>>();
+            while (buffer.hasRemaining()) {
+                definitions.add(read(buffer, bindings));
+            }
+            return definitions;
+        }
+    }
+
+    private static <T, E, P extends Comparable<P>> void writeConditionData(DataOutputStream out, StateMachineDefinition<T, E, P> definition, DefinitionBindings<T, E, P> bindings, int condition) throws IOException {
+        final var data = definition.conditionData[condition];
+        switch (definition.conditionKind[condition]) {
+            case SINGLE_EVENT -> out.writeInt(definition.events.indexOf(data));
+            case MULTI_EVENT -> {
+                final var events = (Set<?>) data;
+                out.writeInt(events.size());
+                for (var event : events) {
+                    out.writeInt(definition.events.indexOf(event));
+                }
+            }
+            case STATES_ACTIVE, STATES_INACTIVE -> writeLongs(out, (long[]) data);
+            case OPAQUE, ASYNC -> {
+                @SuppressWarnings("unchecked")
+                final var opaque = (Condition<E>) data;
+                writeName(out, bindings.nameOf(opaque));
+            }
+            case TASK -> writeName(out, bindings.nameOf((Action) data));
+            default -> {
+                // No data.
+            }
+        }
+    }
+
+    private interface Names {
+        String get(int index);
+    }
+
+    private static void writeNames(DataOutputStream out, int count, Names names) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            writeName(out, names.get(i));
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        final var bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (var value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (var value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    /**
+     * Writes lists of actions as the length of every list, followed by the
+     * action indexes of all lists.
+     */
+    private static void writeActions(DataOutputStream out, Action[][] actions, Function<Action, Integer> actionIndex) throws IOException {
+        out.writeInt(actions.length);
+        int total = 0;
+        for (var list : actions) {
+            out.writeInt(list.length);
+            total += list.length;
+        }
+        out.writeInt(total);
+        for (var list : actions) {
+            for (var action : list) {
+                out.writeInt(actionIndex.apply(action));
+            }
+        }
+    }
+
+    /**
+     * Reads the parts of a definition, in the order in which they were
+     * written, for {@link StateMachineDefinition}.
+     */
+    static final class Reader<T, E, P extends Comparable<P>> {
+        private static final Action[] NO_ACTIONS = new Action[0];
+
+        private final ByteBuffer buffer;
+        final int version;
+        private final DefinitionBindings<T, E, P> bindings;
+        final Indexer<T> states;
+        final Indexer<E> events;
+        private final Action[] actions;
+
+        private Reader(ByteBuffer buffer, int version, DefinitionBindings<T, E, P> bindings) {
+            this.buffer = buffer;
+            this.version = version;
+            this.bindings = bindings;
+            states = indexer(bindings::state, "states");
+            events = indexer(bindings::event, "events");
+            actions = new Action[buffer.getInt()];
+            for (int i = 0; i < actions.length; i++) {
+                actions[i] = bindings.action(readName());
+            }
+        }
+
+        private <V> Indexer<V> indexer(Function<String, V> values, String kind) {
+            final int count = buffer.getInt();
+            final var list = new ArrayList<V>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(values.apply(readName()));
+            }
+            final var indexer = Indexer.of(list);
+            boolean sameIndexes = indexer.size() == count;
+            for (int i = 0; sameIndexes && i < count; i++) {
+                sameIndexes = Objects.equals(indexer.get(i), list.get(i));
+            }
+            if (!sameIndexes) {
+                throw new IllegalArgumentException("The " + kind + " do not have the indexes they had when the definition was written");
+            }
+            return indexer;
+        }
+
+        private String readName() {
+            final var bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        int[] ints() {
+            final var values = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + values.length * Integer.BYTES);
+            return values;
+        }
+
+        long[] longs() {
+            final var values = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(values);
+            buffer.position(buffer.position() + values.length * Long.BYTES);
+            return values;
+        }
+
+        Action[][] actionLists() {
+            final var lists = new Action[buffer.getInt()][];
+            for (int i = 0; i < lists.length; i++) {
+                final int length = buffer.getInt();
+                lists[i] = length == 0 ? NO_ACTIONS : new Action[length];
+            }
+            buffer.getInt();
+            for (var list : lists) {
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = actions[buffer.getInt()];
+                }
+            }
+            return lists;
+        }
+
+        Object[] priorities() {
+            final var names = new Object[buffer.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = bindings.priority(readName());
+            }
+            final var indexes = ints();
+            final var priorities = new Object[indexes.length];
+            for (int transition = 0; transition < indexes.length; transition++) {
+                priorities[transition] = names[indexes[transition]];
+            }
+            return priorities;
+        }
+
+        Object[] conditionData(int[] kinds) {
+            final var data = new Object[kinds.length];
+            for (int condition = 0; condition < kinds.length; condition++) {
+                data[condition] = switch (kinds[condition]) {
+                    case SINGLE_EVENT -> events.get(buffer.getInt());
+                    case MULTI_EVENT -> {
+                        final var multi = new HashSet<E>();
+                        for (int i = buffer.getInt(); i > 0; i--) {
+                            multi.add(events.get(buffer.getInt()));
+                        }
+                        yield multi;
+                    }
+                    case STATES_ACTIVE, STATES_INACTIVE -> longs();
+                    case OPAQUE -> bindings.condition(readName());
+                    case ASYNC -> {
+                        final var name = readName();
+                        if (!(bindings.condition(name) instanceof AsyncCondition<E, ?> async)) {
+                            throw new IllegalArgumentException("Condition " + name + " must be asynchronous");
+                        }
+                        yield async;
+                    }
+                    case TASK -> {
+                        final var name = readName();
+                        if (!(bindings.action(name) instanceof ExecutorTaskAction<?> task)) {
+                            throw new IllegalArgumentException("Action " + name + " must be an executor task action");
+                        }
+                        yield task;
+                    }
+                    default -> null;
+                };
+            }
+            return data;
+        }
+    }
+}
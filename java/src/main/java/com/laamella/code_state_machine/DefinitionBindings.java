@@ -0,0 +1,112 @@
+package com.laamella.code_state_machine;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Connects a binary definition to the objects of the application. States,
+ * events and priorities are stored by name: the name of enum constants, or
+ * the string value of anything else. Actions and conditions that are not
+ * built-in are code, so they are bound to a name, and the same name must be
+ * bound when the definition is read.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ * @param <P> priority type.
+ * @see BinaryDefinitions
+ */
+public final class DefinitionBindings<T, E, P extends Comparable<P>> {
+    private final Function<String, T> states;
+    private final Function<String, E> events;
+    private final Function<String, P> priorities;
+    private final Map<String, Action> actions = new HashMap<>();
+    private final Map<Action, String> actionNames = new IdentityHashMap<>();
+    private final Map<String, Condition<E>> conditions = new HashMap<>();
+    private final Map<Condition<E>, String> conditionNames = new IdentityHashMap<>();
+
+    /**
+     * @param states     turns the name of a state into the state.
+     * @param events     turns the name of an event into the event.
+     * @param priorities turns the name of a priority into the priority.
+     */
+    public DefinitionBindings(Function<String, T> states, Function<String, E> events, Function<String, P> priorities) {
+        this.states = states;
+        this.events = events;
+        this.priorities = priorities;
+    }
+
+    /**
+     * @return bindings for states, events and priorities that are enums.
+     */
+    public static <T extends Enum<T>, E extends Enum<E>, P extends Enum<P>> DefinitionBindings<T, E, P> ofEnums(Class<T> states, Class<E> events, Class<P> priorities) {
+        return new DefinitionBindings<>(name -> Enum.valueOf(states, name), name -> Enum.valueOf(events, name), name -> Enum.valueOf(priorities, name));
+    }
+
+    public DefinitionBindings<T, E, P> bindAction(String name, Action action) {
+        bind(name, action, actions, actionNames);
+        return this;
+    }
+
+    public DefinitionBindings<T, E, P> bindCondition(String name, Condition<E> condition) {
+        bind(name, condition, conditions, conditionNames);
+        return this;
+    }
+
+    private static <V> void bind(String name, V value, Map<String, V> values, Map<V, String> names) {
+        if (values.containsKey(name) || names.containsKey(value)) {
+            throw new IllegalArgumentException("Binding " + name + " to " + value + " conflicts with an earlier binding");
+        }
+        values.put(name, value);
+        names.put(value, name);
+    }
+
+    static String nameOf(Object value) {
+        return value instanceof Enum<?> constant ? constant.name() : String.valueOf(value);
+    }
+
+    T state(String name) {
+        return states.apply(name);
+    }
+
+    E event(String name) {
+        return events.apply(name);
+    }
+
+    P priority(String name) {
+        return priorities.apply(name);
+    }
+
+    String nameOf(Action action) {
+        return nameOf(action, actionNames, "action");
+    }
+
+    Action action(String name) {
+        return valueOf(name, actions, "action");
+    }
+
+    String nameOf(Condition<E> condition) {
+        return nameOf(condition, conditionNames, "condition");
+    }
+
+    Condition<E> condition(String name) {
+        return valueOf(name, conditions, "condition");
+    }
+
+    private static <V> String nameOf(V value, Map<V, String> names, String kind) {
+        final var name = names.get(value);
+        if (name == null) {
+            throw new IllegalArgumentException("No name is bound to " + kind + " " + value);
+        }
+        return name;
+    }
+
+    private static <V> V valueOf(String name, Map<String, V> values, String kind) {
+        final var value = values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("No " + kind + " is bound to " + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,73 @@
+package com.laamella.code_state_machine;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * The surface that is shared by everything that runs a state machine: the
+ * interpreted {@link StateMachine} and the {@link StateMachineInstance}s of a
+ * compiled {@link StateMachineDefinition}.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ */
+public interface Machine<T, E> {
+    /**
+     * Resets all active states to the start states.
+     */
+    void reset();
+
+    /**
+     * @return a set of all active states.
+     */
+    Set<T> getActiveStates();
+
+    /**
+     * @return whether the state is currently active.
+     */
+    boolean isActive(T state);
+
+    /**
+     * @return whether no states are active.
+     */
+    boolean isFinished();
+
+    /**
+     * Handle an event coming from the user application, then poll().
+     */
+    void handleEvent(E event);
+
+    /**
+     * Handle a batch of events, with exactly the same result as calling
+     * handleEvent for each of them in order. Implementations can share work
+     * between the events of the batch.
+     */
+    default void handleEvents(Iterable<? extends E> events) {
+        for (var event : events) {
+            handleEvent(event);
+        }
+    }
+
+    /**
+     * @see #handleEvents(Iterable)
+     */
+    default void handleEvents(E[] events) {
+        handleEvents(Arrays.asList(events));
+    }
+
+    /**
+     * @see #handleEvents(Iterable)
+     */
+    @SuppressWarnings("unchecked")
+    default void handleEvents(Stream<? extends E> events) {
+        final var iterator = (Iterator<E>) events.iterator();
+        handleEvents(() -> iterator);
+    }
+
+    /**
+     * Look for state changes to execute.
+     */
+    void poll();
+}
@@ -0,0 +1,68 @@
+package com.laamella.code_state_machine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Evaluates the conditions of many source states at once on a fork join pool.
+ * Only the evaluation runs in parallel: the machine collects the results and
+ * fires the transitions on its own thread, in the same order as when it
+ * evaluates them itself.
+ */
+final class ParallelEvaluation {
+    /** The amount of tasks per thread of the pool, so busy threads can be helped out. */
+    private static final int TASKS_PER_THREAD = 4;
+
+    final ForkJoinPool pool;
+    /** The least amount of source states to evaluate for which the pool is used. */
+    final int threshold;
+
+    ParallelEvaluation(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("The threshold must be at least 1, not " + threshold);
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Calls the evaluation with every index from 0 to the count, and returns
+     * when all calls are done. Everything they wrote is visible afterwards.
+     */
+    void run(int count, IntConsumer evaluation) {
+        final int grain = Math.max(1, count / (pool.getParallelism() * TASKS_PER_THREAD));
+        pool.invoke(new Range(evaluation, 0, count, grain));
+    }
+
+    /**
+     * Tasks are never serialized, but RecursiveAction is Serializable.
+     */
+    private static final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient IntConsumer evaluation;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        Range(IntConsumer evaluation, int from, int to, int grain) {
+            this.evaluation = evaluation;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    evaluation.accept(i);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new Range(evaluation, from, middle, grain), new Range(evaluation, middle, to, grain));
+        }
+    }
+}
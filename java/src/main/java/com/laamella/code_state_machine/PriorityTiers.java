@@ -0,0 +1,44 @@
+package com.laamella.code_state_machine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * The transitions of a single source state, frozen into an array that is
+ * sorted on priority, and grouped into tiers of transitions with equal
+ * priority. The tiers are determined once, so firing transitions does not need
+ * to compare priorities.
+ */
+final class PriorityTiers<T, E, P extends Comparable<P>> {
+    final Transition<T, E, P>[] transitions;
+    /**
+     * The index of the first transition of each tier, followed by the amount of
+     * transitions.
+     */
+    final int[] tierStarts;
+
+    PriorityTiers(Collection<Transition<T, E, P>> unsortedTransitions) {
+        final var sorted = new ArrayList<Transition<T, E, P>>();
+        if (unsortedTransitions != null) {
+            sorted.addAll(unsortedTransitions);
+        }
+        sorted.sort(Comparator.naturalOrder());
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Transition<T, E, P>[] sortedArray = sorted.toArray(new Transition[0]);
+        transitions = sortedArray;
+
+        final var starts = new ArrayList<Integer>();
+        for (int i = 0; i < transitions.length; i++) {
+            if (i == 0 || transitions[i].compareTo(transitions[i - 1]) != 0) {
+                starts.add(i);
+            }
+        }
+        starts.add(transitions.length);
+        tierStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    int tierCount() {
+        return tierStarts.length - 1;
+    }
+}
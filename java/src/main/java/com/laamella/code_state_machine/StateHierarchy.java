@@ -0,0 +1,135 @@
+package com.laamella.code_state_machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.laamella.code_state_machine.util.Bits;
+
+/**
+ * The compound states of a {@link StateMachineDefinition}, and what every
+ * transition exits and enters because of them. Only the sub states, initial
+ * sub states and parallel states are given; the rest is derived from them, so
+ * poll() never has to walk the hierarchy.
+ * <p/>
+ * This works like the hierarchy of a {@link StateMachine}: a transition
+ * happens inside its domain, the closest state that contains both its source
+ * and destination state and is not parallel. The active states below the
+ * domain on the side of the source state are exited, and the states below it
+ * on the side of the destination state are entered.
+ */
+final class StateHierarchy {
+    /** Per state, the index of its first entry in subStates. Has one extra entry at the end. */
+    final int[] firstSubState;
+    /** The sub states of every state, in the order they were added. */
+    final int[] subStates;
+    /** Per state, the sub state that is entered with it, or -1 for parallel states and states without sub states. */
+    final int[] initialSubState;
+    final long[] parallelStates;
+
+    /** Per state, the compound state it is in, or -1 for top level states. */
+    final int[] parentState;
+    /** Per state, the index of its first entry in defaultEntryStates. Has one extra entry at the end. */
+    final int[] firstDefaultEntry;
+    /** Per state, the states that are entered when it is entered by itself, outermost first, starting with the state. */
+    final int[] defaultEntryStates;
+    /** Per state, its place among the sub states of its compound state. */
+    final int[] subStatePosition;
+    /** Per transition, the state under the domain that contains the source state. The active states in its subtree are exited. */
+    final int[] transitionExitRoot;
+    /** Per transition, the index of its first entry in entryStates. Has one extra entry at the end. */
+    final int[] firstEntry;
+    /** Per transition, the states it enters, outermost first. */
+    final int[] entryStates;
+
+    StateHierarchy(int[] firstSubState, int[] subStates, int[] initialSubState, long[] parallelStates, int[] transitionSource, int[] transitionDestination) {
+        this.firstSubState = firstSubState;
+        this.subStates = subStates;
+        this.initialSubState = initialSubState;
+        this.parallelStates = parallelStates;
+        final int stateCount = initialSubState.length;
+
+        parentState = new int[stateCount];
+        subStatePosition = new int[stateCount];
+        Arrays.fill(parentState, -1);
+        for (int state = 0; state < stateCount; state++) {
+            for (int s = firstSubState[state]; s < firstSubState[state + 1]; s++) {
+                parentState[subStates[s]] = state;
+                subStatePosition[subStates[s]] = s - firstSubState[state];
+            }
+        }
+
+        firstDefaultEntry = new int[stateCount + 1];
+        final var defaultEntries = new ArrayList<Integer>();
+        for (int state = 0; state < stateCount; state++) {
+            firstDefaultEntry[state] = defaultEntries.size();
+            addDefaultEntry(state, defaultEntries);
+        }
+        firstDefaultEntry[stateCount] = defaultEntries.size();
+        defaultEntryStates = toArray(defaultEntries);
+
+        final int transitionCount = transitionSource.length;
+        transitionExitRoot = new int[transitionCount];
+        firstEntry = new int[transitionCount + 1];
+        final var entries = new ArrayList<Integer>();
+        for (int transition = 0; transition < transitionCount; transition++) {
+            firstEntry[transition] = entries.size();
+            transitionExitRoot[transition] = addScope(transitionSource[transition], transitionDestination[transition], entries);
+        }
+        firstEntry[transitionCount] = entries.size();
+        entryStates = toArray(entries);
+    }
+
+    /**
+     * Adds the states that the transition enters, and returns the state whose
+     * subtree it exits.
+     */
+    private int addScope(int source, int destination, List<Integer> entries) {
+        final var sourceChain = ancestorChain(source);
+        final var destinationChain = ancestorChain(destination);
+        int sourceDepth = sourceChain.size() - 1;
+        int destinationDepth = destinationChain.size() - 1;
+        for (int i = 1; i < sourceChain.size(); i++) {
+            final int candidate = sourceChain.get(i);
+            final int inDestinationChain = destinationChain.indexOf(candidate);
+            if (inDestinationChain > 0 && !Bits.isSet(parallelStates, candidate)) {
+                sourceDepth = i - 1;
+                destinationDepth = inDestinationChain - 1;
+                break;
+            }
+        }
+        for (int i = destinationDepth; i > 0; i--) {
+            entries.add(destinationChain.get(i));
+        }
+        for (int e = firstDefaultEntry[destination]; e < firstDefaultEntry[destination + 1]; e++) {
+            entries.add(defaultEntryStates[e]);
+        }
+        return sourceChain.get(sourceDepth);
+    }
+
+    /**
+     * @return the state, its compound state, and so on up to a top level state.
+     */
+    private List<Integer> ancestorChain(int state) {
+        final var chain = new ArrayList<Integer>();
+        for (int ancestor = state; ancestor >= 0; ancestor = parentState[ancestor]) {
+            chain.add(ancestor);
+        }
+        return chain;
+    }
+
+    private void addDefaultEntry(int state, List<Integer> entry) {
+        entry.add(state);
+        if (Bits.isSet(parallelStates, state)) {
+            for (int s = firstSubState[state]; s < firstSubState[state + 1]; s++) {
+                addDefaultEntry(subStates[s], entry);
+            }
+        } else if (initialSubState[state] >= 0) {
+            addDefaultEntry(initialSubState[state], entry);
+        }
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
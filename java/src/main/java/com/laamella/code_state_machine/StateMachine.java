@@ -1,11 +1,17 @@
 package com.laamella.code_state_machine;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,11 +29,15 @@ import org.slf4j.LoggerFactory;
  * graphs may exist inside a single state machine.</li>
  * <li>Each state has a chain of entry and exit actions.</li>
  * <li>Each transition has a chain of actions.</li>
- * <li>It does not do any kind of compilation.</li>
+ * <li>It does not need any kind of compilation, but it can be compiled into a
+ * {@link StateMachineDefinition} to run many lightweight instances of it.</li>
  * <li>Its code is written in a straightforward way, and is hopefully easy to
  * understand.</li>
  * <li>It has a priority system for transitions.</li>
  * <li>It does not have sub state machines; a state machine is not a state.</li>
+ * <li>It has compound states that contain sub states, of which one or, for
+ * parallel states, all are active. A transition of a compound state is stored
+ * once and applies to all its sub states.</li>
  * <li>It has transitions that use a state machine for their condition.</li>
  * <li>With the DSL, transitions to a certain state can be added for multiple
  * source states, thereby faking global transitions.</li>
@@ -49,8 +59,10 @@ import org.slf4j.LoggerFactory;
  * @param <P> Priority type. Will be used to give priorities to transitions.
  *            Enums and Integers are useful here.
  */
-public class StateMachine<T, E, P extends Comparable<P>> {
+public class StateMachine<T, E, P extends Comparable<P>> implements Machine<T, E> {
     private static final Logger log = LoggerFactory.getLogger(StateMachine.class);
+    @SuppressWarnings("rawtypes")
+    private static final StateMachineListener[] NO_LISTENERS = new StateMachineListener[0];
 
     private final Set<T> startStates = new HashSet<>();
     private final Set<T> endStates = new HashSet<>();
@@ -58,6 +70,23 @@ public class StateMachine<T, E, P extends Comparable<P>> {
     private final Map<T, Actions> exitEvents = new HashMap<>();
     private final Map<T, Actions> entryEvents = new HashMap<>();
     private final Map<T, Queue<Transition<T, E, P>>> transitions = new HashMap<>();
+    /** The transitions per source state, frozen into priority tiers. Dropped when a transition is added. */
+    private final Map<T, PriorityTiers<T, E, P>> tiers = new HashMap<>();
+    /** The compound state that each sub state is in. */
+    private final Map<T, T> parents = new HashMap<>();
+    /** The sub states of each compound state, in the order they were added. */
+    private final Map<T, List<T>> subStates = new HashMap<>();
+    /** The sub state that is entered with its compound state, when it is not the first one. */
+    private final Map<T, T> initialSubStates = new HashMap<>();
+    /** The compound states whose sub states are all active at once. */
+    private final Set<T> parallelStates = new HashSet<>();
+    /** The states that each transition exits and enters. Dropped when the hierarchy changes. */
+    private final Map<Transition<T, E, P>, Scope<T>> scopes = new HashMap<>();
+    /** Replaced as a whole when a listener is added or removed. */
+    @SuppressWarnings("unchecked")
+    private StateMachineListener<T, E, P>[] listeners = NO_LISTENERS;
+    /** Null when conditions are evaluated on the calling thread. */
+    private ParallelEvaluation parallelEvaluation;
 
     /**
      * Create a new, empty state machine. To fill it, use the internals, or use
@@ -67,9 +96,37 @@ public class StateMachine<T, E, P extends Comparable<P>> {
         log.debug("New Machine");
     }
 
+    /**
+     * Makes poll() evaluate the conditions of the active states on the pool,
+     * when at least the threshold amount of states is active. This pays off
+     * when conditions are expensive. Exits, transition actions and entries
+     * still run on the calling thread, in the same order as without a pool.
+     * The conditions must be safe to call from several threads at once.
+     *
+     * @param pool null to evaluate on the calling thread again.
+     */
+    public void setParallelEvaluation(ForkJoinPool pool, int threshold) {
+        parallelEvaluation = pool == null ? null : new ParallelEvaluation(pool, threshold);
+    }
+
+    /**
+     * Registers a listener that is told what this machine does.
+     */
+    public void addListener(StateMachineListener<T, E, P> listener) {
+        final var newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void removeListener(StateMachineListener<T, E, P> listener) {
+        listeners = Arrays.stream(listeners).filter(l -> l != listener).toArray(StateMachineListener[]::new);
+    }
+
     /**
      * Resets all active states to the start states.
      */
+    @Override
     public void reset() {
         log.debug("reset()");
         if (startStates.size() == 0) {
@@ -77,13 +134,17 @@ public class StateMachine<T, E, P extends Comparable<P>> {
         }
         activeStates.clear();
         for (var startState : startStates) {
-            enterState(startState);
+            for (var state : defaultEntry(startState)) {
+                enterState(state);
+            }
         }
     }
 
     /**
-     * @return a set of all active states.
+     * @return a set of all active states. A compound state is active while one
+     * of its sub states is.
      */
+    @Override
     public Set<T> getActiveStates() {
         return activeStates;
     }
@@ -91,6 +152,7 @@ public class StateMachine<T, E, P extends Comparable<P>> {
     /**
      * @return whether the state is currently active.
      */
+    @Override
     public boolean isActive(T state) {
         return activeStates.contains(state);
     }
@@ -100,6 +162,7 @@ public class StateMachine<T, E, P extends Comparable<P>> {
      * having disappeared into end states, or by having no start states
      * at all.
      */
+    @Override
     public boolean isFinished() {
         return activeStates.size() == 0;
     }
@@ -111,15 +174,44 @@ public class StateMachine<T, E, P extends Comparable<P>> {
      *
      * @param event some event that has happened.
      */
+    @Override
     public void handleEvent(E event) {
         log.debug("handle event {}", event);
+        for (var listener : listeners) {
+            listener.eventReceived(event);
+        }
+        dispatch(event);
+        poll();
+    }
+
+    /**
+     * Handles the events one by one like {@link #handleEvent(Object)}, but
+     * decides on logging once, and reuses the bookkeeping of poll() for the
+     * whole batch.
+     */
+    @Override
+    public void handleEvents(Iterable<? extends E> events) {
+        final boolean debug = log.isDebugEnabled();
+        final var transitionsThatHaveFiredBefore = new HashSet<Transition<T, E, P>>();
+        for (var event : events) {
+            if (debug) {
+                log.debug("handle event {}", event);
+            }
+            for (var listener : listeners) {
+                listener.eventReceived(event);
+            }
+            dispatch(event);
+            transitionsThatHaveFiredBefore.clear();
+            poll(transitionsThatHaveFiredBefore);
+        }
+    }
 
+    private void dispatch(E event) {
         for (var sourceState : activeStates) {
-            for (var transition : findTransitionsForState(sourceState)) {
+            for (var transition : findTiersForState(sourceState).transitions) {
                 transition.getCondition().handleEvent(event);
             }
         }
-        poll();
     }
 
     /**
@@ -134,9 +226,15 @@ public class StateMachine<T, E, P extends Comparable<P>> {
      * <li>Ignore transitions that have already fired in this poll().</li>
      * <li>For a single source state, find the transition of the highest
      * priority which will fire (if any fire at all.) If multiple transitions
-     * share this priority, fire them all.</li>
+     * share this priority, fire them all. The transitions are kept sorted in
+     * tiers of equal priority, so this goes one tier at a time.</li>
+     * <li>A transition of a compound state does not fire when a transition of
+     * one of its sub states fires.</li>
      * </ul>
-     * <li>For all states that will be exited, fire the exit state event.</li>
+     * <li>For all states that will be exited, fire the exit state event. These
+     * are the source states, and in a hierarchy the active states below the
+     * closest compound state that contains both the source and destination
+     * state, innermost first.</li>
      * <li>For all transitions that fire, fire the transition action.</li>
      * <li>For all states that will be entered, fire the entry state event.</li>
      * </ol>
@@ -147,32 +245,50 @@ public class StateMachine<T, E, P extends Comparable<P>> {
      * machine by only considering transitions that have not fired before in
      * this poll.
      */
+    @Override
     public void poll() {
+        poll(new HashSet<>());
+    }
+
+    private void poll(Set<Transition<T, E, P>> transitionsThatHaveFiredBefore) {
         boolean stillNewTransitionsFiring;
-        final var transitionsThatHaveFiredBefore = new HashSet<Transition<T, E, P>>();
+        int iteration = 0;
 
         do {
             stillNewTransitionsFiring = false;
-            final var statesToExit = new HashSet<T>();
-            final var transitionsToFire = new HashSet<Transition<T, E, P>>();
-            final var statesToEnter = new HashSet<T>();
-
-            for (var sourceState : activeStates) {
-                P firingPriority = null;
-                for (var transition : findTransitionsForState(sourceState)) {
-                    if (!transitionsThatHaveFiredBefore.contains(transition)) {
-                        if (firingPriority != null && !transition.getPriority().equals(firingPriority)) {
-                            // We reached a lower prio while higher prio transitions are firing.
-                            // Don't consider these anymore, go to the next source state.
-                            break;
-                        }
-                        if (transition.getCondition().isMet()) {
-                            statesToExit.add(sourceState);
-                            transitionsToFire.add(transition);
-                            statesToEnter.add(transition.getDestinationState());
-                            firingPriority = transition.getPriority();
-                        }
-                    }
+            final var transitionsToFire = new ArrayList<Transition<T, E, P>>();
+
+            if (parallelEvaluation != null && activeStates.size() >= parallelEvaluation.threshold) {
+                final var sourceStates = new ArrayList<>(activeStates);
+                final var stateTiers = new ArrayList<PriorityTiers<T, E, P>>(sourceStates.size());
+                for (var sourceState : sourceStates) {
+                    stateTiers.add(findTiersForState(sourceState));
+                }
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                final List<Transition<T, E, P>>[] firing = new List[sourceStates.size()];
+                parallelEvaluation.run(firing.length, i -> firing[i] = findFiringTransitions(stateTiers.get(i), transitionsThatHaveFiredBefore));
+                for (var transitions : firing) {
+                    transitionsToFire.addAll(transitions);
+                }
+            } else {
+                for (var sourceState : activeStates) {
+                    transitionsToFire.addAll(findFiringTransitions(findTiersForState(sourceState), transitionsThatHaveFiredBefore));
+                }
+            }
+
+            final var statesToExit = new LinkedHashSet<T>();
+            final var statesToEnter = new LinkedHashSet<T>();
+            if (parents.isEmpty()) {
+                for (var transition : transitionsToFire) {
+                    statesToExit.add(transition.getSourceState());
+                    statesToEnter.add(transition.getDestinationState());
+                }
+            } else {
+                dropPreemptedTransitions(transitionsToFire);
+                for (var transition : transitionsToFire) {
+                    final var scope = findScope(transition);
+                    collectActiveStates(scope.exitRoot(), statesToExit);
+                    statesToEnter.addAll(scope.entries());
                 }
             }
 
@@ -183,14 +299,187 @@ public class StateMachine<T, E, P extends Comparable<P>> {
                 executeActions(transitionToFire.getActions());
                 transitionsThatHaveFiredBefore.add(transitionToFire);
                 stillNewTransitionsFiring = true;
+                for (var listener : listeners) {
+                    listener.transitionFired(transitionToFire.getSourceState(), transitionToFire.getDestinationState(), transitionToFire.getPriority());
+                }
             }
             for (var stateToEnter : statesToEnter) {
                 enterState(stateToEnter);
             }
+            for (var listener : listeners) {
+                listener.pollIterated(iteration, transitionsToFire.size());
+            }
+            iteration++;
 
         } while (stillNewTransitionsFiring);
     }
 
+    /**
+     * @return the transitions of the highest priority tier that has met
+     * transitions, or none. Lower tiers are not considered once a tier fires.
+     * Called from the threads of the pool during a parallel evaluation, so it
+     * changes nothing.
+     */
+    private List<Transition<T, E, P>> findFiringTransitions(PriorityTiers<T, E, P> stateTiers, Set<Transition<T, E, P>> transitionsThatHaveFiredBefore) {
+        for (int tier = 0; tier < stateTiers.tierCount(); tier++) {
+            List<Transition<T, E, P>> firing = null;
+            for (int i = stateTiers.tierStarts[tier]; i < stateTiers.tierStarts[tier + 1]; i++) {
+                final var transition = stateTiers.transitions[i];
+                if (!transitionsThatHaveFiredBefore.contains(transition) && transition.getCondition().isMet()) {
+                    if (firing == null) {
+                        firing = new ArrayList<>();
+                    }
+                    firing.add(transition);
+                }
+            }
+            if (firing != null) {
+                return firing;
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Removes the transitions of compound states that have a sub state with a
+     * firing transition. Their conditions are reset, so an event that the sub
+     * state reacted to does not fire them later.
+     */
+    private void dropPreemptedTransitions(List<Transition<T, E, P>> transitionsToFire) {
+        final var preempted = new HashSet<T>();
+        for (var transition : transitionsToFire) {
+            for (var state = parents.get(transition.getSourceState()); state != null && preempted.add(state); state = parents.get(state)) {
+                // Going up until an ancestor that was already seen.
+            }
+        }
+        if (!preempted.isEmpty()) {
+            transitionsToFire.removeIf(transition -> {
+                if (preempted.contains(transition.getSourceState())) {
+                    transition.getCondition().reset();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    private Scope<T> findScope(Transition<T, E, P> transition) {
+        var scope = scopes.get(transition);
+        if (scope == null) {
+            scope = findScope(transition.getSourceState(), transition.getDestinationState());
+            scopes.put(transition, scope);
+        }
+        return scope;
+    }
+
+    /**
+     * A transition happens inside its domain: the closest state that contains
+     * both its source and destination state, and is not parallel. Everything
+     * below the domain on the side of the source state is exited, and
+     * everything below it on the side of the destination state is entered.
+     * Without a domain, the transition happens between the top level states.
+     */
+    private Scope<T> findScope(T source, T destination) {
+        final var sourceChain = ancestorChain(source);
+        final var destinationChain = ancestorChain(destination);
+        int sourceDepth = sourceChain.size() - 1;
+        int destinationDepth = destinationChain.size() - 1;
+        for (int i = 1; i < sourceChain.size(); i++) {
+            final var candidate = sourceChain.get(i);
+            final int inDestinationChain = destinationChain.indexOf(candidate);
+            if (inDestinationChain > 0 && !parallelStates.contains(candidate)) {
+                sourceDepth = i - 1;
+                destinationDepth = inDestinationChain - 1;
+                break;
+            }
+        }
+        final var entries = new ArrayList<T>();
+        for (int i = destinationDepth; i > 0; i--) {
+            entries.add(destinationChain.get(i));
+        }
+        entries.addAll(defaultEntry(destination));
+        return new Scope<>(sourceChain.get(sourceDepth), entries);
+    }
+
+    /**
+     * @return the state, its compound state, and so on up to a top level state.
+     */
+    private List<T> ancestorChain(T state) {
+        final var chain = new ArrayList<T>();
+        for (var ancestor = state; ancestor != null; ancestor = parents.get(ancestor)) {
+            chain.add(ancestor);
+        }
+        return chain;
+    }
+
+    /**
+     * @return the states that are entered when entering the state by itself,
+     * outermost first: the state, and then its initial sub state or, for
+     * parallel states, all its sub states, and so on.
+     */
+    private List<T> defaultEntry(T state) {
+        final var entry = new ArrayList<T>();
+        addDefaultEntry(state, entry);
+        return entry;
+    }
+
+    private void addDefaultEntry(T state, List<T> entry) {
+        entry.add(state);
+        final var children = subStates.get(state);
+        if (children == null) {
+            return;
+        }
+        if (parallelStates.contains(state)) {
+            for (var child : children) {
+                addDefaultEntry(child, entry);
+            }
+        } else {
+            addDefaultEntry(initialSubStates.getOrDefault(state, children.getFirst()), entry);
+        }
+    }
+
+    /**
+     * Adds the active states of the tree under the state, innermost first.
+     */
+    private void collectActiveStates(T state, Collection<T> states) {
+        final var children = subStates.get(state);
+        if (children != null) {
+            for (var child : children) {
+                if (activeStates.contains(child)) {
+                    collectActiveStates(child, states);
+                }
+            }
+        }
+        if (activeStates.contains(state)) {
+            states.add(state);
+        }
+    }
+
+    /**
+     * Activates the default entry of an active state again, without running
+     * any actions. Used while the hierarchy is being built.
+     */
+    private void activateDefaultEntry(T state) {
+        if (activeStates.contains(state)) {
+            final var below = new ArrayList<T>();
+            collectActiveStates(state, below);
+            // The state itself comes last, and stays active.
+            below.removeLast();
+            activeStates.removeAll(below);
+            for (var entered : defaultEntry(state)) {
+                if (!endStates.contains(entered)) {
+                    activeStates.add(entered);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state under the domain of a transition that contains its source
+     * state, and the states it enters, outermost first.
+     */
+    private record Scope<T>(T exitRoot, List<T> entries) {
+    }
+
     private void executeActions(Actions actions) {
         if (actions != null) {
             actions.execute();
@@ -202,6 +491,9 @@ public class StateMachine<T, E, P extends Comparable<P>> {
         if (activeStates.contains(state)) {
             executeExitActions(state);
             activeStates.remove(state);
+            for (var listener : listeners) {
+                listener.stateExited(state);
+            }
         }
     }
 
@@ -209,20 +501,29 @@ public class StateMachine<T, E, P extends Comparable<P>> {
         if (endStates.contains(newState)) {
             log.debug("enter end state {}", newState);
             executeEntryActions(newState);
+            for (var listener : listeners) {
+                listener.stateEntered(newState);
+            }
             if (activeStates.size() == 0) {
                 log.debug("machine is finished");
+                for (var listener : listeners) {
+                    listener.finished();
+                }
             }
             return;
         }
         if (activeStates.add(newState)) {
             log.debug("enter state {}", newState);
             executeEntryActions(newState);
+            for (var listener : listeners) {
+                listener.stateEntered(newState);
+            }
             resetTransitions(newState);
         }
     }
 
     private void resetTransitions(T sourceState) {
-        for (var transition : transitions.get(sourceState)) {
+        for (var transition : findTiersForState(sourceState).transitions) {
             transition.getCondition().reset();
         }
     }
@@ -231,6 +532,15 @@ public class StateMachine<T, E, P extends Comparable<P>> {
         return transitions.get(sourceState);
     }
 
+    private PriorityTiers<T, E, P> findTiersForState(T sourceState) {
+        var stateTiers = tiers.get(sourceState);
+        if (stateTiers == null) {
+            stateTiers = new PriorityTiers<>(transitions.get(sourceState));
+            tiers.put(sourceState, stateTiers);
+        }
+        return stateTiers;
+    }
+
     private void executeExitActions(T state) {
         executeActions(exitEvents.get(state));
     }
@@ -264,6 +574,44 @@ public class StateMachine<T, E, P extends Comparable<P>> {
             return new HashSet<>(StateMachine.this.transitions.keySet());
         }
 
+        /**
+         * @return all states that are known to this machine: start, end and
+         * source states, destinations of transitions, and states with entry or
+         * exit actions.
+         */
+        public Set<T> getStates() {
+            final var states = new HashSet<>(StateMachine.this.startStates);
+            states.addAll(StateMachine.this.endStates);
+            states.addAll(StateMachine.this.entryEvents.keySet());
+            states.addAll(StateMachine.this.exitEvents.keySet());
+            states.addAll(StateMachine.this.parents.keySet());
+            states.addAll(StateMachine.this.subStates.keySet());
+            states.addAll(StateMachine.this.initialSubStates.values());
+            for (var sourceTransitions : StateMachine.this.transitions.values()) {
+                for (var transition : sourceTransitions) {
+                    states.add(transition.getSourceState());
+                    states.add(transition.getDestinationState());
+                }
+            }
+            return states;
+        }
+
+        /**
+         * @return the actions executed when the state is entered, or null if
+         * there are none.
+         */
+        public Actions getEntryActions(T state) {
+            return StateMachine.this.entryEvents.get(state);
+        }
+
+        /**
+         * @return the actions executed when the state is exited, or null if
+         * there are none.
+         */
+        public Actions getExitActions(T state) {
+            return StateMachine.this.exitEvents.get(state);
+        }
+
         /**
          * @return the outgoing transitions for a source state.
          */
@@ -271,8 +619,91 @@ public class StateMachine<T, E, P extends Comparable<P>> {
             return StateMachine.this.findTransitionsForState(sourceState);
         }
 
+        /**
+         * @return the compound state that the state is in, or null for a top
+         * level state.
+         */
+        public T getParentState(T state) {
+            return parents.get(state);
+        }
+
+        /**
+         * @return the sub states of a compound state, in the order they were
+         * added. Empty for other states.
+         */
+        public List<T> getSubStates(T state) {
+            return List.copyOf(subStates.getOrDefault(state, List.of()));
+        }
+
+        /**
+         * @return the sub state that is entered when the compound state is
+         * entered, or null for other states and parallel states.
+         */
+        public T getInitialSubState(T state) {
+            final var children = subStates.get(state);
+            if (children == null || parallelStates.contains(state)) {
+                return null;
+            }
+            return initialSubStates.getOrDefault(state, children.getFirst());
+        }
+
+        /**
+         * @return whether all sub states of the compound state are active at
+         * once.
+         */
+        public boolean isParallel(T state) {
+            return parallelStates.contains(state);
+        }
+
         // TODO complete meta information
 
+        /**
+         * Puts a state inside a compound state. The first sub state that is
+         * added is the one that is entered with the compound state, unless
+         * another one is set.
+         */
+        public void addSubState(T parent, T subState) {
+            log.debug("Add sub state '{}' to '{}'", subState, parent);
+            final var existingParent = parents.get(subState);
+            if (existingParent != null && !existingParent.equals(parent)) {
+                throw new IllegalArgumentException(subState + " is already a sub state of " + existingParent);
+            }
+            for (var ancestor = parent; ancestor != null; ancestor = parents.get(ancestor)) {
+                if (ancestor.equals(subState)) {
+                    throw new IllegalArgumentException(subState + " can not be inside itself");
+                }
+            }
+            if (existingParent == null) {
+                parents.put(subState, parent);
+                subStates.computeIfAbsent(parent, p -> new ArrayList<>()).add(subState);
+                hierarchyChanged(parent);
+            }
+        }
+
+        /**
+         * Sets the sub state that is entered when the compound state is
+         * entered.
+         */
+        public void setInitialSubState(T parent, T initialSubState) {
+            log.debug("Set initial sub state of '{}' to '{}'", parent, initialSubState);
+            initialSubStates.put(parent, initialSubState);
+            hierarchyChanged(parent);
+        }
+
+        /**
+         * Makes all sub states of the compound state active at once.
+         */
+        public void setParallel(T state) {
+            log.debug("Make '{}' parallel", state);
+            parallelStates.add(state);
+            hierarchyChanged(state);
+        }
+
+        private void hierarchyChanged(T state) {
+            scopes.clear();
+            activateDefaultEntry(state);
+        }
+
         /**
          * Add 0 or more actions to be executed when the state is exited.
          */
@@ -302,18 +733,23 @@ public class StateMachine<T, E, P extends Comparable<P>> {
          */
         public void addTransition(Transition<T, E, P> transition) {
             final var sourceState = transition.getSourceState();
-            log.debug("Create transition from '{}' to '{}' (pre: '{}', action: '{}')", sourceState,
-                    transition.getDestinationState(), transition.getCondition(), transition.getActions());
+            if (log.isDebugEnabled()) {
+                log.debug("Create transition from '{}' to '{}' (pre: '{}', action: '{}')", sourceState,
+                        transition.getDestinationState(), transition.getCondition(), transition.getActions());
+            }
             transitions.computeIfAbsent(sourceState, e -> new PriorityQueue<>()).add(transition);
+            tiers.remove(sourceState);
         }
 
         /**
-         * Adds a start state, and immediately activates it.
+         * Adds a start state, and immediately activates it, with the sub states
+         * it would enter.
          */
         public void addStartState( T startState) {
             log.debug("Add start state '{}'", startState);
             startStates.add(startState);
             activeStates.add(startState);
+            activateDefaultEntry(startState);
         }
 
         /**
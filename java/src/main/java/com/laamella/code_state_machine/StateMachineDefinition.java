@@ -0,0 +1,628 @@
+package com.laamella.code_state_machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.action.ExecutorTaskAction;
+import com.laamella.code_state_machine.condition.AfterCondition;
+import com.laamella.code_state_machine.condition.AlwaysCondition;
+import com.laamella.code_state_machine.condition.AsyncCondition;
+import com.laamella.code_state_machine.condition.MultiEventMatchCondition;
+import com.laamella.code_state_machine.condition.NeverCondition;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.condition.StatesActiveCondition;
+import com.laamella.code_state_machine.condition.StatesInactiveCondition;
+import com.laamella.code_state_machine.condition.SubStateMachineCondition;
+import com.laamella.code_state_machine.util.Bits;
+import com.laamella.code_state_machine.util.Clock;
+import com.laamella.code_state_machine.util.Indexer;
+
+/**
+ * An immutable, compiled form of a {@link StateMachine}. The states,
+ * transitions, actions and conditions are stored once, in tables, and are
+ * shared by all {@link StateMachineInstance}s created from the definition. An
+ * instance only holds what differs per instance: the active states and the
+ * state of the conditions.
+ * <p/>
+ * Every state gets a dense index: its ordinal for enum states, or an interned
+ * id for any other type. Sets of states are stored as bitsets over these
+ * indexes.
+ * <p/>
+ * Events are dispatched through an index from event to the event match
+ * conditions that wait for it, so handling an event only touches conditions
+ * that can react to it.
+ * <p/>
+ * Compound and parallel states are compiled into a {@link StateHierarchy},
+ * which tells per transition which states it exits and enters.
+ * <p/>
+ * The built-in conditions are compiled: their state is kept in the instances.
+ * This includes the results of {@link AsyncCondition}s, and the tasks of
+ * {@link ExecutorTaskAction}s whose isFinished condition is used.
+ * Any other condition is called as-is, and is therefore shared by all
+ * instances. Such conditions should not keep state of their own.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ * @param <P> priority type.
+ */
+public final class StateMachineDefinition<T, E, P extends Comparable<P>> {
+    private static final Logger log = LoggerFactory.getLogger(StateMachineDefinition.class);
+
+    static final int ALWAYS = 0;
+    static final int NEVER = 1;
+    static final int SINGLE_EVENT = 2;
+    static final int MULTI_EVENT = 3;
+    static final int AFTER = 4;
+    static final int STATES_ACTIVE = 5;
+    static final int STATES_INACTIVE = 6;
+    static final int SUB_MACHINE = 7;
+    static final int OPAQUE = 8;
+    static final int ASYNC = 9;
+    static final int TASK = 10;
+
+    private static final Action[] NO_ACTIONS = new Action[0];
+
+    final Indexer<T> states;
+    final int[] startStates;
+    final long[] endStates;
+    final Action[][] entryActions;
+    final Action[][] exitActions;
+
+    /** Per state, the index of its first transition. Has one extra entry at the end. */
+    final int[] firstTransition;
+    /** Per state, the index of its first priority tier. Has one extra entry at the end. */
+    final int[] firstTier;
+    /** Per priority tier, the index of its first transition. Has one extra entry at the end. */
+    final int[] tierStart;
+    final int[] transitionSource;
+    final int[] transitionDestination;
+    final Object[] transitionPriority;
+    final Action[][] transitionActions;
+    /** Per transition, the index of its first entry in transitionConditions. Has one extra entry at the end. */
+    final int[] firstCondition;
+    final int[] transitionConditions;
+    /** The compound states, or null when there are none. */
+    final StateHierarchy hierarchy;
+
+    final int[] conditionKind;
+    /** The flag slot for event based conditions, the timer slot for time based conditions. */
+    final int[] conditionSlot;
+    final Object[] conditionData;
+    final int flagCount;
+    /** The amount of asynchronous conditions, which are the slots of those conditions. */
+    final int asyncCount;
+    /** The task actions that finished conditions wait for. The index is the slot of those conditions. */
+    final ExecutorTaskAction<?>[] tasks;
+    /**
+     * Per action list, the task slot of every action in it, which is -1 for
+     * other actions and tasks that nobody waits for. Null for lists without
+     * task actions.
+     */
+    final int[][] entryTaskSlots;
+    final int[][] exitTaskSlots;
+    final int[][] transitionTaskSlots;
+    final long[] timerMilliseconds;
+    final StateMachineDefinition<?, E, ?>[] subMachines;
+
+    /** All events that event match conditions wait for. */
+    final Indexer<E> events;
+    /** Per event, the index of its first entry in eventTargetState and eventTargetFlag. Has one extra entry at the end. */
+    final int[] firstEventTarget;
+    /** The source state that must be active for the event to set the flag. */
+    final int[] eventTargetState;
+    final int[] eventTargetFlag;
+    /** The states with conditions that must see every event: sub machines and conditions that were not compiled. */
+    final long[] fallbackStates;
+    /** Per state, the index of its first entry in fallbackConditions. Has one extra entry at the end. */
+    final int[] firstFallbackCondition;
+    final int[] fallbackConditions;
+    /** The states with conditions that were not compiled or are asynchronous, so nobody can tell when they change. */
+    final long[] opaqueStates;
+    /** The states with time based conditions. */
+    final long[] timedStates;
+    /** Per state, the index of its first entry in observerStates. Has one extra entry at the end. */
+    final int[] firstObserver;
+    /** The source states with active or inactive conditions that refer to the state. */
+    final int[] observerStates;
+    /** Worked out on first use. Like String.hashCode, every thread that races computes the same value. */
+    private long fingerprint;
+
+    /**
+     * Compiles the current contents of a state machine. Later changes to the
+     * machine are not seen by the definition.
+     */
+    public StateMachineDefinition(StateMachine<T, E, P> machine) {
+        final var internals = machine.new Internals();
+
+        final var knownStates = new LinkedHashSet<>(internals.getStates());
+        for (var sourceState : internals.getSourceStates()) {
+            for (var transition : internals.getTransitionsForSourceState(sourceState)) {
+                for (var condition : transition.getCondition().toList()) {
+                    knownStates.addAll(statesReferencedBy(condition, machine));
+                }
+            }
+        }
+        states = Indexer.of(knownStates);
+        final int stateCount = states.size();
+
+        final var compiler = new ConditionCompiler(machine);
+        final var sortedTransitions = new ArrayList<PriorityTiers<T, E, P>>();
+        int transitionCount = 0;
+        int tierCount = 0;
+        for (int state = 0; state < stateCount; state++) {
+            final var stateTiers = new PriorityTiers<>(internals.getTransitionsForSourceState(states.get(state)));
+            sortedTransitions.add(stateTiers);
+            transitionCount += stateTiers.transitions.length;
+            tierCount += stateTiers.tierCount();
+        }
+
+        endStates = new long[Bits.words(stateCount)];
+        entryActions = new Action[stateCount][];
+        exitActions = new Action[stateCount][];
+        for (int i = 0; i < stateCount; i++) {
+            final var state = states.get(i);
+            if (internals.getEndStates().contains(state)) {
+                Bits.set(endStates, i);
+            }
+            entryActions[i] = flatten(internals.getEntryActions(state));
+            exitActions[i] = flatten(internals.getExitActions(state));
+        }
+        startStates = internals.getStartStates().stream().mapToInt(states::indexOf).toArray();
+
+        firstTransition = new int[stateCount + 1];
+        firstTier = new int[stateCount + 1];
+        tierStart = new int[tierCount + 1];
+        transitionSource = new int[transitionCount];
+        transitionDestination = new int[transitionCount];
+        transitionPriority = new Object[transitionCount];
+        transitionActions = new Action[transitionCount][];
+        firstCondition = new int[transitionCount + 1];
+        final var conditionReferences = new ArrayList<Integer>();
+        int transition = 0;
+        int tier = 0;
+        for (int state = 0; state < sortedTransitions.size(); state++) {
+            final var stateTiers = sortedTransitions.get(state);
+            firstTransition[state] = transition;
+            firstTier[state] = tier;
+            for (int i = 0; i < stateTiers.tierCount(); i++) {
+                tierStart[tier++] = transition + stateTiers.tierStarts[i];
+            }
+            for (var t : stateTiers.transitions) {
+                transitionSource[transition] = state;
+                transitionDestination[transition] = states.indexOf(t.getDestinationState());
+                transitionPriority[transition] = t.getPriority();
+                transitionActions[transition] = flatten(t.getActions());
+                firstCondition[transition] = conditionReferences.size();
+                for (var condition : t.getCondition().toList()) {
+                    conditionReferences.add(compiler.compile(condition));
+                }
+                transition++;
+            }
+        }
+        firstTransition[stateCount] = transition;
+        firstTier[stateCount] = tier;
+        tierStart[tierCount] = transition;
+        firstCondition[transitionCount] = conditionReferences.size();
+        transitionConditions = conditionReferences.stream().mapToInt(Integer::intValue).toArray();
+        hierarchy = compileHierarchy(internals);
+
+        conditionKind = compiler.kinds.stream().mapToInt(Integer::intValue).toArray();
+        conditionSlot = compiler.slots.stream().mapToInt(Integer::intValue).toArray();
+        conditionData = compiler.data.toArray();
+        flagCount = compiler.flagCount;
+        asyncCount = compiler.asyncCount;
+        tasks = tasksOf(conditionKind, conditionSlot, conditionData);
+        entryTaskSlots = taskSlotsOf(entryActions, tasks);
+        exitTaskSlots = taskSlotsOf(exitActions, tasks);
+        transitionTaskSlots = taskSlotsOf(transitionActions, tasks);
+        timerMilliseconds = compiler.timerMilliseconds.stream().mapToLong(Long::longValue).toArray();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final StateMachineDefinition<?, E, ?>[] subMachineArray = compiler.subMachines.toArray(new StateMachineDefinition[0]);
+        subMachines = subMachineArray;
+
+        final var eventValues = new LinkedHashSet<E>();
+        for (int condition = 0; condition < conditionKind.length; condition++) {
+            eventValues.addAll(eventsOf(condition));
+        }
+        events = Indexer.of(eventValues);
+        final var eventTargets = new ArrayList<Set<List<Integer>>>();
+        for (int event = 0; event < events.size(); event++) {
+            eventTargets.add(new LinkedHashSet<>());
+        }
+        fallbackStates = new long[Bits.words(stateCount)];
+        firstFallbackCondition = new int[stateCount + 1];
+        final var fallbackList = new ArrayList<Integer>();
+        opaqueStates = new long[Bits.words(stateCount)];
+        timedStates = new long[Bits.words(stateCount)];
+        final var observers = new ArrayList<Set<Integer>>();
+        for (int state = 0; state < stateCount; state++) {
+            observers.add(new LinkedHashSet<>());
+        }
+        for (int state = 0; state < stateCount; state++) {
+            firstFallbackCondition[state] = fallbackList.size();
+            for (int t = firstTransition[state]; t < firstTransition[state + 1]; t++) {
+                for (int c = firstCondition[t]; c < firstCondition[t + 1]; c++) {
+                    final int condition = transitionConditions[c];
+                    for (var event : eventsOf(condition)) {
+                        eventTargets.get(events.indexOf(event)).add(List.of(state, conditionSlot[condition]));
+                    }
+                    if (conditionKind[condition] == SUB_MACHINE || conditionKind[condition] == OPAQUE) {
+                        fallbackList.add(condition);
+                        Bits.set(fallbackStates, state);
+                    }
+                    switch (conditionKind[condition]) {
+                        case OPAQUE, ASYNC, TASK -> Bits.set(opaqueStates, state);
+                        case AFTER -> Bits.set(timedStates, state);
+                        case STATES_ACTIVE, STATES_INACTIVE -> {
+                            final var mask = (long[]) conditionData[condition];
+                            for (int observed = Bits.nextSet(mask, 0); observed >= 0; observed = Bits.nextSet(mask, observed + 1)) {
+                                observers.get(observed).add(state);
+                            }
+                        }
+                        default -> {
+                            // Changes only through events or state entry.
+                        }
+                    }
+                }
+            }
+        }
+        firstFallbackCondition[stateCount] = fallbackList.size();
+        fallbackConditions = fallbackList.stream().mapToInt(Integer::intValue).toArray();
+        final int eventTargetCount = eventTargets.stream().mapToInt(Set::size).sum();
+        firstEventTarget = new int[events.size() + 1];
+        eventTargetState = new int[eventTargetCount];
+        eventTargetFlag = new int[eventTargetCount];
+        int eventTarget = 0;
+        for (int event = 0; event < events.size(); event++) {
+            firstEventTarget[event] = eventTarget;
+            for (var target : eventTargets.get(event)) {
+                eventTargetState[eventTarget] = target.get(0);
+                eventTargetFlag[eventTarget] = target.get(1);
+                eventTarget++;
+            }
+        }
+        firstEventTarget[events.size()] = eventTarget;
+
+        firstObserver = new int[stateCount + 1];
+        observerStates = new int[observers.stream().mapToInt(Set::size).sum()];
+        int observer = 0;
+        for (int state = 0; state < stateCount; state++) {
+            firstObserver[state] = observer;
+            for (var observerState : observers.get(state)) {
+                observerStates[observer++] = observerState;
+            }
+        }
+        firstObserver[stateCount] = observer;
+
+        log.debug("Compiled definition with {} states and {} transitions", stateCount, transitionCount);
+    }
+
+    /**
+     * Reads the tables that {@link BinaryDefinitions} wrote, in the same
+     * order.
+     */
+    StateMachineDefinition(BinaryDefinitions.Reader<T, E, P> in) {
+        states = in.states;
+        events = in.events;
+        startStates = in.ints();
+        endStates = in.longs();
+        entryActions = in.actionLists();
+        exitActions = in.actionLists();
+        firstTransition = in.ints();
+        firstTier = in.ints();
+        tierStart = in.ints();
+        transitionSource = in.ints();
+        transitionDestination = in.ints();
+        transitionPriority = in.priorities();
+        transitionActions = in.actionLists();
+        firstCondition = in.ints();
+        transitionConditions = in.ints();
+        conditionKind = in.ints();
+        conditionSlot = in.ints();
+        conditionData = in.conditionData(conditionKind);
+        flagCount = in.readInt();
+        asyncCount = count(conditionKind, ASYNC);
+        tasks = tasksOf(conditionKind, conditionSlot, conditionData);
+        entryTaskSlots = taskSlotsOf(entryActions, tasks);
+        exitTaskSlots = taskSlotsOf(exitActions, tasks);
+        transitionTaskSlots = taskSlotsOf(transitionActions, tasks);
+        timerMilliseconds = in.longs();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final StateMachineDefinition<?, E, ?>[] noSubMachines = new StateMachineDefinition[0];
+        subMachines = noSubMachines;
+        firstEventTarget = in.ints();
+        eventTargetState = in.ints();
+        eventTargetFlag = in.ints();
+        fallbackStates = in.longs();
+        firstFallbackCondition = in.ints();
+        fallbackConditions = in.ints();
+        opaqueStates = in.longs();
+        timedStates = in.longs();
+        firstObserver = in.ints();
+        observerStates = in.ints();
+        // Version 1 had no compound states.
+        final var firstSubState = in.version > 1 ? in.ints() : new int[0];
+        hierarchy = firstSubState.length == 0 ? null : new StateHierarchy(firstSubState, in.ints(), in.ints(), in.longs(), transitionSource, transitionDestination);
+    }
+
+    /**
+     * @return a new instance of this definition, with the start states active.
+     */
+    public StateMachineInstance<T, E, P> newInstance() {
+        return new StateMachineInstance<>(this);
+    }
+
+    /**
+     * @return a new instance that keeps the time with the clock.
+     */
+    public StateMachineInstance<T, E, P> newInstance(Clock clock) {
+        return new StateMachineInstance<>(this, clock);
+    }
+
+    /**
+     * @return the dense index of the state, or -1 if the state is not part of
+     * this definition.
+     */
+    public int indexOf(T state) {
+        return states.indexOf(state);
+    }
+
+    /**
+     * @return the state with the dense index.
+     */
+    public T stateAt(int index) {
+        return states.get(index);
+    }
+
+    /**
+     * @return the amount of states in this definition. For enum states, this
+     * is the amount of constants in the enum.
+     */
+    public int getStateCount() {
+        return states.size();
+    }
+
+    /**
+     * @return the amount of transitions in this definition.
+     */
+    public int getTransitionCount() {
+        return transitionDestination.length;
+    }
+
+    /**
+     * State that is kept outside the instance, like a snapshot, refers to
+     * states by their dense index and to conditions by their slot. It only
+     * fits a definition with the same fingerprint, so it is not restored into
+     * the wrong states after the states or transitions were reordered.
+     *
+     * @return a hash of the names of the states in the order of their dense
+     * indexes, of every transition with the kinds and slots of its conditions,
+     * and of the fingerprints of the sub machines. The same in every run of
+     * the same build.
+     */
+    public long getFingerprint() {
+        long hash = fingerprint;
+        if (hash == 0) {
+            hash = 0xcbf29ce484222325L;
+            hash = mix(hash, states.size());
+            for (int state = 0; state < states.size(); state++) {
+                final var value = states.get(state);
+                final var name = value instanceof Enum<?> constant ? constant.name() : String.valueOf(value);
+                hash = mix(hash, name.length());
+                for (int i = 0; i < name.length(); i++) {
+                    hash = mix(hash, name.charAt(i));
+                }
+            }
+            hash = mix(hash, transitionDestination.length);
+            for (int transition = 0; transition < transitionDestination.length; transition++) {
+                hash = mix(hash, transitionSource[transition]);
+                hash = mix(hash, transitionDestination[transition]);
+                hash = mix(hash, firstCondition[transition + 1] - firstCondition[transition]);
+                for (int c = firstCondition[transition]; c < firstCondition[transition + 1]; c++) {
+                    final int condition = transitionConditions[c];
+                    hash = mix(hash, conditionKind[condition]);
+                    hash = mix(hash, conditionSlot[condition]);
+                }
+            }
+            hash = mix(hash, flagCount);
+            hash = mix(hash, timerMilliseconds.length);
+            hash = mix(hash, subMachines.length);
+            for (var subMachine : subMachines) {
+                hash = mix(hash, subMachine.getFingerprint());
+            }
+            fingerprint = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * One step of 64 bit FNV-1a, on a whole value at a time.
+     */
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    /**
+     * @return the compound states of the machine, or null when there are none.
+     */
+    private StateHierarchy compileHierarchy(StateMachine<T, E, P>.Internals internals) {
+        final int stateCount = states.size();
+        final var firstSubState = new int[stateCount + 1];
+        final var subStates = new ArrayList<Integer>();
+        final var initialSubState = new int[stateCount];
+        final var parallelStates = new long[Bits.words(stateCount)];
+        for (int state = 0; state < stateCount; state++) {
+            firstSubState[state] = subStates.size();
+            for (var subState : internals.getSubStates(states.get(state))) {
+                subStates.add(states.indexOf(subState));
+            }
+            final var initial = internals.getInitialSubState(states.get(state));
+            initialSubState[state] = initial == null ? -1 : states.indexOf(initial);
+            if (internals.isParallel(states.get(state))) {
+                Bits.set(parallelStates, state);
+            }
+        }
+        firstSubState[stateCount] = subStates.size();
+        if (subStates.isEmpty()) {
+            return null;
+        }
+        return new StateHierarchy(firstSubState, subStates.stream().mapToInt(Integer::intValue).toArray(), initialSubState, parallelStates, transitionSource, transitionDestination);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Collection<T> statesReferencedBy(Condition<?> condition, StateMachine<T, ?, ?> machine) {
+        if (condition instanceof StatesActiveCondition<?, ?, ?> statesActive && statesActive.getStateMachine() == machine) {
+            return (Collection<T>) statesActive.getStates();
+        }
+        if (condition instanceof StatesInactiveCondition<?, ?, ?> statesInactive && statesInactive.getStateMachine() == machine) {
+            return (Collection<T>) statesInactive.getStates();
+        }
+        return List.of();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<E> eventsOf(int condition) {
+        return switch (conditionKind[condition]) {
+            case SINGLE_EVENT -> Collections.singletonList((E) conditionData[condition]);
+            case MULTI_EVENT -> (Set<E>) conditionData[condition];
+            default -> List.of();
+        };
+    }
+
+    private static ExecutorTaskAction<?>[] tasksOf(int[] kinds, int[] slots, Object[] data) {
+        final var tasks = new ExecutorTaskAction<?>[count(kinds, TASK)];
+        for (int condition = 0; condition < kinds.length; condition++) {
+            if (kinds[condition] == TASK) {
+                tasks[slots[condition]] = (ExecutorTaskAction<?>) data[condition];
+            }
+        }
+        return tasks;
+    }
+
+    private static int[][] taskSlotsOf(Action[][] actionLists, ExecutorTaskAction<?>[] tasks) {
+        final var slots = new IdentityHashMap<Action, Integer>();
+        for (int slot = 0; slot < tasks.length; slot++) {
+            slots.put(tasks[slot], slot);
+        }
+        final var taskSlots = new int[actionLists.length][];
+        for (int list = 0; list < actionLists.length; list++) {
+            final var actions = actionLists[list];
+            for (int a = 0; a < actions.length; a++) {
+                if (actions[a] instanceof ExecutorTaskAction<?>) {
+                    if (taskSlots[list] == null) {
+                        taskSlots[list] = new int[actions.length];
+                        Arrays.fill(taskSlots[list], -1);
+                    }
+                    taskSlots[list][a] = slots.getOrDefault(actions[a], -1);
+                }
+            }
+        }
+        return taskSlots;
+    }
+
+    private static int count(int[] kinds, int kind) {
+        int count = 0;
+        for (var k : kinds) {
+            if (k == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Action[] flatten(Actions actions) {
+        if (actions == null) {
+            return NO_ACTIONS;
+        }
+        return actions.toList().toArray(NO_ACTIONS);
+    }
+
+    /**
+     * Turns conditions into entries in the condition tables. A condition
+     * object that is used by more than one transition gets a single entry, so
+     * it keeps sharing its state between those transitions.
+     */
+    private class ConditionCompiler {
+        private final StateMachine<T, E, P> machine;
+        private final Map<Condition<E>, Integer> compiled = new IdentityHashMap<>();
+        private final Map<StateMachine<?, E, ?>, Integer> subMachineSlots = new IdentityHashMap<>();
+        final List<Integer> kinds = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+        final List<Object> data = new ArrayList<>();
+        final List<Long> timerMilliseconds = new ArrayList<>();
+        final List<StateMachineDefinition<?, E, ?>> subMachines = new ArrayList<>();
+        int flagCount = 0;
+        int asyncCount = 0;
+        int taskCount = 0;
+
+        ConditionCompiler(StateMachine<T, E, P> machine) {
+            this.machine = machine;
+        }
+
+        int compile(Condition<E> condition) {
+            final var existing = compiled.get(condition);
+            if (existing != null) {
+                return existing;
+            }
+            final int index = kinds.size();
+            compiled.put(condition, index);
+            if (condition instanceof AlwaysCondition) {
+                add(ALWAYS, -1, null);
+            } else if (condition instanceof NeverCondition) {
+                add(NEVER, -1, null);
+            } else if (condition instanceof SingleEventMatchCondition<E> single) {
+                add(SINGLE_EVENT, flagCount++, single.getEvent());
+            } else if (condition instanceof MultiEventMatchCondition<E> multi) {
+                add(MULTI_EVENT, flagCount++, new HashSet<>(multi.getEvents()));
+            } else if (condition instanceof AfterCondition<E> after) {
+                add(AFTER, timerMilliseconds.size(), null);
+                timerMilliseconds.add(after.getMilliseconds());
+            } else if (condition instanceof StatesActiveCondition<?, E, ?> statesActive && statesActive.getStateMachine() == machine) {
+                add(STATES_ACTIVE, -1, indexStates(statesActive.getStates()));
+            } else if (condition instanceof StatesInactiveCondition<?, E, ?> statesInactive && statesInactive.getStateMachine() == machine) {
+                add(STATES_INACTIVE, -1, indexStates(statesInactive.getStates()));
+            } else if (condition instanceof SubStateMachineCondition<?, E, ?> subMachine) {
+                add(SUB_MACHINE, flagCount++, subMachineSlot(subMachine.getStateMachine()));
+            } else if (condition instanceof AsyncCondition<E, ?> async) {
+                add(ASYNC, asyncCount++, async);
+            } else if (condition instanceof ExecutorTaskAction.Finished<E> finished) {
+                add(TASK, taskCount++, finished.getTask());
+            } else {
+                add(OPAQUE, -1, condition);
+            }
+            return index;
+        }
+
+        private void add(int kind, int slot, Object conditionData) {
+            kinds.add(kind);
+            slots.add(slot);
+            data.add(conditionData);
+        }
+
+        private long[] indexStates(Iterable<?> statesToIndex) {
+            final var mask = new long[Bits.words(states.size())];
+            for (var state : statesToIndex) {
+                Bits.set(mask, states.indexOf(state));
+            }
+            return mask;
+        }
+
+        private <S, Q extends Comparable<Q>> Integer subMachineSlot(StateMachine<S, E, Q> subMachine) {
+            return subMachineSlots.computeIfAbsent(subMachine, m -> {
+                subMachines.add(new StateMachineDefinition<>(subMachine));
+                return subMachines.size() - 1;
+            });
+        }
+    }
+}
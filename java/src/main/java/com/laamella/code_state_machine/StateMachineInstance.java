@@ -0,0 +1,1112 @@
+package com.laamella.code_state_machine;
+
+import static com.laamella.code_state_machine.StateMachineDefinition.AFTER;
+import static com.laamella.code_state_machine.StateMachineDefinition.ALWAYS;
+import static com.laamella.code_state_machine.StateMachineDefinition.ASYNC;
+import static com.laamella.code_state_machine.StateMachineDefinition.MULTI_EVENT;
+import static com.laamella.code_state_machine.StateMachineDefinition.NEVER;
+import static com.laamella.code_state_machine.StateMachineDefinition.OPAQUE;
+import static com.laamella.code_state_machine.StateMachineDefinition.SINGLE_EVENT;
+import static com.laamella.code_state_machine.StateMachineDefinition.STATES_ACTIVE;
+import static com.laamella.code_state_machine.StateMachineDefinition.STATES_INACTIVE;
+import static com.laamella.code_state_machine.StateMachineDefinition.SUB_MACHINE;
+import static com.laamella.code_state_machine.StateMachineDefinition.TASK;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+
+import com.laamella.code_state_machine.action.ExecutorTaskAction;
+import com.laamella.code_state_machine.condition.AsyncCondition;
+import com.laamella.code_state_machine.util.Bits;
+import com.laamella.code_state_machine.util.Clock;
+
+/**
+ * A running instance of a {@link StateMachineDefinition}. It behaves like a
+ * {@link StateMachine} that was built with the same instructions, but it only
+ * holds the active states and the state of the conditions. Everything else is
+ * shared with the definition.
+ * <p/>
+ * The active states are a bitset over the dense state indexes of the
+ * definition, so checking or changing them does not need any hashing.
+ * <p/>
+ * poll() only evaluates the transitions of active states where something may
+ * have changed since they were last evaluated: states that were just entered,
+ * that received an event one of their conditions waits for, whose timers
+ * expired, or that have active or inactive conditions on a state that was
+ * entered or exited.
+ * States with conditions that were not compiled are evaluated every time.
+ * <p/>
+ * In a hierarchy, the states that a transition exits and enters were worked
+ * out by the definition. Every state keeps the sub states that have active
+ * states under them, so firing a transition only walks down to the active
+ * states it exits, and its cost depends on the depth of the hierarchy rather
+ * than on the amount of states under its domain.
+ * <p/>
+ * Time based conditions use the clock of the instance. A deadline listener can
+ * be told when they will be met, so the instance only needs to be polled then.
+ * In the same way, a completion listener can be told when the lookup of an
+ * asynchronous condition, or the task of an {@link ExecutorTaskAction},
+ * completes.
+ * <p/>
+ * An instance is not thread safe.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ * @param <P> priority type.
+ */
+public final class StateMachineInstance<T, E, P extends Comparable<P>> implements Machine<T, E> {
+    private static final long[] NO_TIMERS = new long[0];
+    private static final CompletableFuture<?>[] NO_RESULTS = new CompletableFuture<?>[0];
+    @SuppressWarnings("rawtypes")
+    private static final StateMachineListener[] NO_LISTENERS = new StateMachineListener[0];
+
+    private final StateMachineDefinition<T, E, P> definition;
+    private final long[] active;
+    private int activeCount;
+    /** Per state, the amount of active states in its subtree, itself included. Null without a hierarchy. */
+    private final int[] activeInSubtree;
+    /** Per state, the first of its sub states that has active states in its subtree, or -1. */
+    private final int[] firstLiveSubState;
+    /** Per state, the next sub state of its compound state that has active states in its subtree, or -1. */
+    private final int[] nextLiveSubState;
+    private final Set<T> activeStates = new ActiveStates();
+    /** One bit per event based condition: whether it has been met. */
+    private final long[] flags;
+    /** The states whose transitions need to be evaluated on the next poll. */
+    private final long[] dirty;
+    /** One deadline per time based condition. */
+    private final long[] timers;
+    /** The earliest deadline of the time based conditions that are not met yet. */
+    private long earliestDeadline = Long.MAX_VALUE;
+    /** One lookup per asynchronous condition, or null when it was not started. */
+    private final CompletableFuture<?>[] asyncResults;
+    /** The last task started per task action of the definition, or null when none was started. */
+    private final CompletableFuture<?>[] taskResults;
+    private final StateMachineInstance<?, E, ?>[] subMachines;
+    private final Clock clock;
+    private LongConsumer deadlineListener;
+    private Runnable completionListener;
+    /** Replaced as a whole when a listener is added or removed. */
+    @SuppressWarnings("unchecked")
+    private StateMachineListener<T, E, P>[] listeners = NO_LISTENERS;
+    /** Buffers for poll(), created on first use. */
+    private PollScratch scratch;
+    private boolean polling = false;
+    /** Null when conditions are evaluated on the calling thread. */
+    private ParallelEvaluation parallelEvaluation;
+    private boolean actionsSuppressed = false;
+
+    /**
+     * Create a new instance with the start states active.
+     */
+    public StateMachineInstance(StateMachineDefinition<T, E, P> definition) {
+        this(definition, Clock.SYSTEM);
+    }
+
+    /**
+     * Create a new instance with the start states active, that keeps the time
+     * with the clock.
+     */
+    public StateMachineInstance(StateMachineDefinition<T, E, P> definition, Clock clock) {
+        this.definition = definition;
+        this.clock = clock;
+        active = new long[Bits.words(definition.getStateCount())];
+        if (definition.hierarchy == null) {
+            activeInSubtree = null;
+            firstLiveSubState = null;
+            nextLiveSubState = null;
+        } else {
+            activeInSubtree = new int[definition.getStateCount()];
+            firstLiveSubState = new int[definition.getStateCount()];
+            nextLiveSubState = new int[definition.getStateCount()];
+            Arrays.fill(firstLiveSubState, -1);
+        }
+        flags = new long[Bits.words(definition.flagCount)];
+        timers = definition.timerMilliseconds.length == 0 ? NO_TIMERS : new long[definition.timerMilliseconds.length];
+        asyncResults = definition.asyncCount == 0 ? NO_RESULTS : new CompletableFuture<?>[definition.asyncCount];
+        taskResults = definition.tasks.length == 0 ? NO_RESULTS : new CompletableFuture<?>[definition.tasks.length];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final StateMachineInstance<?, E, ?>[] subMachineArray = new StateMachineInstance[definition.subMachines.length];
+        subMachines = subMachineArray;
+        for (int i = 0; i < subMachines.length; i++) {
+            subMachines[i] = definition.subMachines[i].newInstance(clock);
+        }
+        final var hierarchy = definition.hierarchy;
+        for (var startState : definition.startStates) {
+            if (!Bits.isSet(active, startState)) {
+                setActive(startState);
+            }
+            if (hierarchy != null) {
+                // Like the start state itself, the states it enters are active without running their entry actions.
+                for (int e = hierarchy.firstDefaultEntry[startState] + 1; e < hierarchy.firstDefaultEntry[startState + 1]; e++) {
+                    final int state = hierarchy.defaultEntryStates[e];
+                    if (!Bits.isSet(definition.endStates, state) && !Bits.isSet(active, state)) {
+                        setActive(state);
+                    }
+                }
+            }
+        }
+        dirty = active.clone();
+    }
+
+    /**
+     * @return the definition this is an instance of.
+     */
+    public StateMachineDefinition<T, E, P> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @param deadlineListener receives the time at which a time based condition
+     *                         will be met, whenever one is reset. This includes
+     *                         those of sub machines. Null to stop listening.
+     */
+    public void setDeadlineListener(LongConsumer deadlineListener) {
+        this.deadlineListener = deadlineListener;
+        for (var subMachine : subMachines) {
+            subMachine.setDeadlineListener(deadlineListener);
+        }
+    }
+
+    /**
+     * @param completionListener called on the thread that completes the lookup
+     *                           of an asynchronous condition or a task, so it
+     *                           should only ask for a poll. This includes those of sub
+     *                           machines. Null to stop listening.
+     */
+    public void setCompletionListener(Runnable completionListener) {
+        this.completionListener = completionListener;
+        for (var subMachine : subMachines) {
+            subMachine.setCompletionListener(completionListener);
+        }
+    }
+
+    /**
+     * @param actionsSuppressed whether to skip all actions, also those of sub
+     *                          machines. Used to replay events that already had
+     *                          their effect.
+     */
+    public void setActionsSuppressed(boolean actionsSuppressed) {
+        this.actionsSuppressed = actionsSuppressed;
+        for (var subMachine : subMachines) {
+            subMachine.setActionsSuppressed(actionsSuppressed);
+        }
+    }
+
+    /**
+     * Makes poll() evaluate the transitions of the states that need it on the
+     * pool, when there are at least the threshold amount of them. This pays
+     * off when conditions that are not built-in are expensive. Exits,
+     * transition actions and entries still run on the calling thread, in the
+     * same order as without a pool. Those conditions must be safe to call from
+     * several threads at once.
+     *
+     * @param pool null to evaluate on the calling thread again.
+     */
+    public void setParallelEvaluation(ForkJoinPool pool, int threshold) {
+        parallelEvaluation = pool == null ? null : new ParallelEvaluation(pool, threshold);
+    }
+
+    /**
+     * Registers a listener that is told what this instance does. Sub machines
+     * are not included.
+     */
+    public void addListener(StateMachineListener<T, E, P> listener) {
+        final var newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void removeListener(StateMachineListener<T, E, P> listener) {
+        listeners = Arrays.stream(listeners).filter(l -> l != listener).toArray(StateMachineListener[]::new);
+    }
+
+    @Override
+    public void reset() {
+        clearActive();
+        final var hierarchy = definition.hierarchy;
+        for (var startState : definition.startStates) {
+            if (hierarchy == null) {
+                enterState(startState);
+            } else {
+                for (int e = hierarchy.firstDefaultEntry[startState]; e < hierarchy.firstDefaultEntry[startState + 1]; e++) {
+                    enterState(hierarchy.defaultEntryStates[e]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a read-only view on the active states.
+     */
+    @Override
+    public Set<T> getActiveStates() {
+        return activeStates;
+    }
+
+    @Override
+    public boolean isActive(T state) {
+        final int index = definition.indexOf(state);
+        return index >= 0 && Bits.isSet(active, index);
+    }
+
+    @Override
+    public boolean isFinished() {
+        return activeCount == 0;
+    }
+
+    /**
+     * Works like {@link StateMachine#handleEvent(Object)}, but only touches the
+     * conditions that can react to the event: the event match conditions that
+     * wait for it, and the conditions that see every event.
+     */
+    @Override
+    public void handleEvent(E event) {
+        dispatch(event);
+        poll();
+    }
+
+    /**
+     * Handles the events one by one like {@link #handleEvent(Object)}, but sets
+     * up the buffers of poll() only once for the whole batch. When the machine
+     * has settled, an event that makes no active state dirty is not followed by
+     * a poll, since that poll could not fire anything.
+     */
+    @Override
+    public void handleEvents(Iterable<? extends E> events) {
+        if (polling) {
+            // Called from an action, so the buffers are in use.
+            for (var event : events) {
+                handleEvent(event);
+            }
+            return;
+        }
+        if (scratch == null) {
+            scratch = new PollScratch(definition);
+        }
+        polling = true;
+        try {
+            boolean settled = false;
+            for (var event : events) {
+                if (dispatch(event) || !settled) {
+                    poll(scratch);
+                    settled = listeners.length == 0 && isSettled();
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            scratch = null;
+            throw e;
+        } finally {
+            polling = false;
+        }
+    }
+
+    /**
+     * @return whether an active state became dirty.
+     */
+    private boolean dispatch(E event) {
+        for (var listener : listeners) {
+            listener.eventReceived(event);
+        }
+        final var d = definition;
+        boolean dirtied = false;
+        final int eventIndex = d.events.indexOf(event);
+        if (eventIndex >= 0) {
+            for (int target = d.firstEventTarget[eventIndex]; target < d.firstEventTarget[eventIndex + 1]; target++) {
+                final int sourceState = d.eventTargetState[target];
+                if (Bits.isSet(active, sourceState)) {
+                    setFlag(d.eventTargetFlag[target]);
+                    Bits.set(dirty, sourceState);
+                    dirtied = true;
+                }
+            }
+        }
+        for (int word = 0; word < active.length; word++) {
+            long sourceStates = active[word] & d.fallbackStates[word];
+            while (sourceStates != 0) {
+                final int sourceState = (word << 6) + Long.numberOfTrailingZeros(sourceStates);
+                sourceStates &= sourceStates - 1;
+                for (int c = d.firstFallbackCondition[sourceState]; c < d.firstFallbackCondition[sourceState + 1]; c++) {
+                    handleEvent(d.fallbackConditions[c], event);
+                }
+                Bits.set(dirty, sourceState);
+                dirtied = true;
+            }
+        }
+        return dirtied;
+    }
+
+    /**
+     * @return whether a poll() would find nothing to evaluate: no active state
+     * is dirty or opaque, and no timer runs.
+     */
+    private boolean isSettled() {
+        if (earliestDeadline != Long.MAX_VALUE) {
+            return false;
+        }
+        final var opaqueStates = definition.opaqueStates;
+        for (int word = 0; word < active.length; word++) {
+            if ((active[word] & (dirty[word] | opaqueStates[word])) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Works like {@link StateMachine#poll()}, but does not allocate anything:
+     * it works in buffers that are kept by the instance. Only when poll() is
+     * called again from an action during a poll() are new buffers allocated.
+     * When nothing changed since the last poll(), this does next to nothing.
+     */
+    @Override
+    public void poll() {
+        if (polling) {
+            poll(new PollScratch(definition));
+            return;
+        }
+        if (scratch == null) {
+            scratch = new PollScratch(definition);
+        }
+        polling = true;
+        try {
+            poll(scratch);
+        } catch (RuntimeException | Error e) {
+            // An action failed halfway, so the buffers may not be clean anymore.
+            scratch = null;
+            throw e;
+        } finally {
+            polling = false;
+        }
+    }
+
+    private void poll(PollScratch scratch) {
+        final var d = definition;
+        final var transitionsThatHaveFiredBefore = scratch.transitionsThatHaveFiredBefore;
+        final var statesToExit = scratch.statesToExit;
+        final var transitionsToFire = scratch.transitionsToFire;
+        final var statesToEnter = scratch.statesToEnter;
+        final var exiting = scratch.exiting;
+        final var entering = scratch.entering;
+        int firedCount = 0;
+        boolean stillNewTransitionsFiring;
+        int iteration = 0;
+
+        do {
+            stillNewTransitionsFiring = false;
+            int exitCount = 0;
+            final int firstToFire = firedCount;
+            int enterCount = 0;
+            markExpiredTimersDirty();
+
+            if (parallelEvaluation != null && evaluateInParallel(scratch)) {
+                final var parallel = scratch.parallel;
+                for (int i = 0; i < parallel.sourceCount; i++) {
+                    final int sourceState = parallel.sources[i];
+                    final int tier = parallel.firingTier[i];
+                    if (tier >= 0) {
+                        for (int transition = d.tierStart[tier]; transition < d.tierStart[tier + 1]; transition++) {
+                            if (parallel.met[transition]) {
+                                parallel.met[transition] = false;
+                                transitionsToFire[firedCount++] = transition;
+                            }
+                        }
+                    }
+                    if (!parallel.skippedFiredTransition[i]) {
+                        Bits.clear(dirty, sourceState);
+                    }
+                }
+            } else {
+                for (int word = 0; word < active.length; word++) {
+                    long sourceStates = active[word] & (dirty[word] | d.opaqueStates[word]);
+                    while (sourceStates != 0) {
+                        final int sourceState = (word << 6) + Long.numberOfTrailingZeros(sourceStates);
+                        sourceStates &= sourceStates - 1;
+                        boolean skippedFiredTransition = false;
+                        for (int tier = d.firstTier[sourceState]; tier < d.firstTier[sourceState + 1]; tier++) {
+                            boolean firing = false;
+                            for (int transition = d.tierStart[tier]; transition < d.tierStart[tier + 1]; transition++) {
+                                if (Bits.isSet(transitionsThatHaveFiredBefore, transition)) {
+                                    skippedFiredTransition = true;
+                                } else if (isMet(transition)) {
+                                    firing = true;
+                                    transitionsToFire[firedCount++] = transition;
+                                }
+                            }
+                            if (firing) {
+                                // Lower prio tiers are not considered anymore.
+                                break;
+                            }
+                        }
+                        if (!skippedFiredTransition) {
+                            // A transition that fired before may fire on the next poll, so then it stays dirty.
+                            Bits.clear(dirty, sourceState);
+                        }
+                    }
+                }
+            }
+
+            final var hierarchy = d.hierarchy;
+            if (hierarchy == null) {
+                for (int i = firstToFire; i < firedCount; i++) {
+                    final int transition = transitionsToFire[i];
+                    // The transitions of a source state were collected together.
+                    final int sourceState = d.transitionSource[transition];
+                    if (exitCount == 0 || statesToExit[exitCount - 1] != sourceState) {
+                        statesToExit[exitCount++] = sourceState;
+                    }
+                    final int destination = d.transitionDestination[transition];
+                    if (!Bits.isSet(entering, destination)) {
+                        Bits.set(entering, destination);
+                        statesToEnter[enterCount++] = destination;
+                    }
+                }
+            } else {
+                firedCount = dropPreemptedTransitions(scratch, firstToFire, firedCount);
+                for (int i = firstToFire; i < firedCount; i++) {
+                    final int transition = transitionsToFire[i];
+                    exitCount = addActiveSubtree(hierarchy.transitionExitRoot[transition], statesToExit, exitCount, exiting);
+                    for (int e = hierarchy.firstEntry[transition]; e < hierarchy.firstEntry[transition + 1]; e++) {
+                        final int state = hierarchy.entryStates[e];
+                        if (!Bits.isSet(entering, state)) {
+                            Bits.set(entering, state);
+                            statesToEnter[enterCount++] = state;
+                        }
+                    }
+                }
+                for (int i = 0; i < exitCount; i++) {
+                    Bits.clear(exiting, statesToExit[i]);
+                }
+            }
+
+            for (int i = 0; i < exitCount; i++) {
+                exitState(statesToExit[i]);
+            }
+            for (int i = firstToFire; i < firedCount; i++) {
+                final int transition = transitionsToFire[i];
+                executeActions(d.transitionActions[transition], d.transitionTaskSlots[transition]);
+                Bits.set(transitionsThatHaveFiredBefore, transition);
+                stillNewTransitionsFiring = true;
+                if (listeners.length != 0) {
+                    fireTransitionFired(transition);
+                }
+            }
+            for (int i = 0; i < enterCount; i++) {
+                final int state = statesToEnter[i];
+                Bits.clear(entering, state);
+                enterState(state);
+            }
+            for (var listener : listeners) {
+                listener.pollIterated(iteration, firedCount - firstToFire);
+            }
+            iteration++;
+        } while (stillNewTransitionsFiring);
+
+        // Every transition fires at most once per poll, so transitionsToFire holds all of them.
+        for (int i = 0; i < firedCount; i++) {
+            Bits.clear(transitionsThatHaveFiredBefore, transitionsToFire[i]);
+        }
+    }
+
+    /**
+     * Removes the transitions of compound states that have a sub state with a
+     * firing transition, like {@link StateMachine} does. Their conditions are
+     * reset, and their source states are evaluated again on the next poll.
+     *
+     * @return the new end of the transitions to fire.
+     */
+    private int dropPreemptedTransitions(PollScratch scratch, int from, int to) {
+        final var d = definition;
+        final var parentState = d.hierarchy.parentState;
+        final var transitionsToFire = scratch.transitionsToFire;
+        final var preempted = scratch.preempted;
+        boolean anyPreempted = false;
+        for (int i = from; i < to; i++) {
+            for (int state = parentState[d.transitionSource[transitionsToFire[i]]]; state >= 0 && !Bits.isSet(preempted, state); state = parentState[state]) {
+                Bits.set(preempted, state);
+                anyPreempted = true;
+            }
+        }
+        if (!anyPreempted) {
+            return to;
+        }
+        int kept = from;
+        for (int i = from; i < to; i++) {
+            final int transition = transitionsToFire[i];
+            final int sourceState = d.transitionSource[transition];
+            if (Bits.isSet(preempted, sourceState)) {
+                for (int c = d.firstCondition[transition]; c < d.firstCondition[transition + 1]; c++) {
+                    reset(d.transitionConditions[c]);
+                }
+                Bits.set(dirty, sourceState);
+            } else {
+                transitionsToFire[kept++] = transition;
+            }
+        }
+        Arrays.fill(preempted, 0);
+        return kept;
+    }
+
+    /**
+     * Evaluates the transitions of the source states that need it on the pool,
+     * when there are enough of them. Changes nothing but the parallel buffers.
+     *
+     * @return whether the states were evaluated.
+     */
+    private boolean evaluateInParallel(PollScratch scratch) {
+        final var d = definition;
+        int sourceCount = 0;
+        for (int word = 0; word < active.length; word++) {
+            sourceCount += Long.bitCount(active[word] & (dirty[word] | d.opaqueStates[word]));
+        }
+        if (sourceCount < parallelEvaluation.threshold) {
+            return false;
+        }
+        if (scratch.parallel == null) {
+            scratch.parallel = new ParallelScratch(d);
+        }
+        final var parallel = scratch.parallel;
+        parallel.sourceCount = 0;
+        for (int word = 0; word < active.length; word++) {
+            long sourceStates = active[word] & (dirty[word] | d.opaqueStates[word]);
+            while (sourceStates != 0) {
+                parallel.sources[parallel.sourceCount++] = (word << 6) + Long.numberOfTrailingZeros(sourceStates);
+                sourceStates &= sourceStates - 1;
+            }
+        }
+        final var transitionsThatHaveFiredBefore = scratch.transitionsThatHaveFiredBefore;
+        parallelEvaluation.run(parallel.sourceCount, i -> {
+            final int sourceState = parallel.sources[i];
+            boolean skippedFiredTransition = false;
+            int firingTier = -1;
+            for (int tier = d.firstTier[sourceState]; tier < d.firstTier[sourceState + 1] && firingTier < 0; tier++) {
+                for (int transition = d.tierStart[tier]; transition < d.tierStart[tier + 1]; transition++) {
+                    if (Bits.isSet(transitionsThatHaveFiredBefore, transition)) {
+                        skippedFiredTransition = true;
+                    } else if (isMet(transition)) {
+                        parallel.met[transition] = true;
+                        firingTier = tier;
+                    }
+                }
+            }
+            parallel.firingTier[i] = firingTier;
+            parallel.skippedFiredTransition[i] = skippedFiredTransition;
+        });
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fireTransitionFired(int transition) {
+        final var d = definition;
+        final var sourceState = d.stateAt(d.transitionSource[transition]);
+        final var destinationState = d.stateAt(d.transitionDestination[transition]);
+        final var priority = (P) d.transitionPriority[transition];
+        for (var listener : listeners) {
+            listener.transitionFired(sourceState, destinationState, priority);
+        }
+    }
+
+    /**
+     * Adds the active states in the subtree of the state that are not exiting
+     * yet, innermost first and in the order of the sub states, like the
+     * hierarchy of a {@link StateMachine} exits them.
+     *
+     * @return the new amount of states to exit.
+     */
+    private int addActiveSubtree(int state, int[] statesToExit, int exitCount, long[] exiting) {
+        for (int subState = firstLiveSubState[state]; subState >= 0; subState = nextLiveSubState[subState]) {
+            exitCount = addActiveSubtree(subState, statesToExit, exitCount, exiting);
+        }
+        if (Bits.isSet(active, state) && !Bits.isSet(exiting, state)) {
+            Bits.set(exiting, state);
+            statesToExit[exitCount++] = state;
+        }
+        return exitCount;
+    }
+
+    private void setActive(int state) {
+        Bits.set(active, state);
+        activeCount++;
+        if (activeInSubtree != null) {
+            final var parentState = definition.hierarchy.parentState;
+            for (int s = state; s >= 0; s = parentState[s]) {
+                if (activeInSubtree[s]++ == 0 && parentState[s] >= 0) {
+                    linkLiveSubState(s, parentState[s]);
+                }
+            }
+        }
+    }
+
+    private void setInactive(int state) {
+        Bits.clear(active, state);
+        activeCount--;
+        if (activeInSubtree != null) {
+            final var parentState = definition.hierarchy.parentState;
+            for (int s = state; s >= 0; s = parentState[s]) {
+                if (--activeInSubtree[s] == 0 && parentState[s] >= 0) {
+                    unlinkLiveSubState(s, parentState[s]);
+                }
+            }
+        }
+    }
+
+    private void clearActive() {
+        Arrays.fill(active, 0);
+        activeCount = 0;
+        if (activeInSubtree != null) {
+            Arrays.fill(activeInSubtree, 0);
+            Arrays.fill(firstLiveSubState, -1);
+        }
+    }
+
+    /**
+     * Keeps the live sub states in the order of the sub states, so states are
+     * exited in the same order as before. Only walks the live ones.
+     */
+    private void linkLiveSubState(int subState, int parent) {
+        final var subStatePosition = definition.hierarchy.subStatePosition;
+        int previous = -1;
+        int next = firstLiveSubState[parent];
+        while (next >= 0 && subStatePosition[next] < subStatePosition[subState]) {
+            previous = next;
+            next = nextLiveSubState[next];
+        }
+        nextLiveSubState[subState] = next;
+        if (previous < 0) {
+            firstLiveSubState[parent] = subState;
+        } else {
+            nextLiveSubState[previous] = subState;
+        }
+    }
+
+    private void unlinkLiveSubState(int subState, int parent) {
+        int previous = -1;
+        int current = firstLiveSubState[parent];
+        while (current != subState) {
+            previous = current;
+            current = nextLiveSubState[current];
+        }
+        if (previous < 0) {
+            firstLiveSubState[parent] = nextLiveSubState[subState];
+        } else {
+            nextLiveSubState[previous] = nextLiveSubState[subState];
+        }
+    }
+
+    private void exitState(int state) {
+        if (Bits.isSet(active, state)) {
+            executeActions(definition.exitActions[state], definition.exitTaskSlots[state]);
+            setInactive(state);
+            markObserversDirty(state);
+            for (var listener : listeners) {
+                listener.stateExited(definition.stateAt(state));
+            }
+        }
+    }
+
+    private void enterState(int state) {
+        if (Bits.isSet(definition.endStates, state)) {
+            executeActions(definition.entryActions[state], definition.entryTaskSlots[state]);
+            for (var listener : listeners) {
+                listener.stateEntered(definition.stateAt(state));
+            }
+            if (activeCount == 0) {
+                for (var listener : listeners) {
+                    listener.finished();
+                }
+            }
+            return;
+        }
+        if (!Bits.isSet(active, state)) {
+            setActive(state);
+            Bits.set(dirty, state);
+            markObserversDirty(state);
+            executeActions(definition.entryActions[state], definition.entryTaskSlots[state]);
+            for (var listener : listeners) {
+                listener.stateEntered(definition.stateAt(state));
+            }
+            resetTransitions(state);
+        }
+    }
+
+    /**
+     * Marks the states with active or inactive conditions on this state dirty.
+     */
+    private void markObserversDirty(int state) {
+        final var d = definition;
+        for (int observer = d.firstObserver[state]; observer < d.firstObserver[state + 1]; observer++) {
+            Bits.set(dirty, d.observerStates[observer]);
+        }
+    }
+
+    /**
+     * Marks the timed states dirty when a deadline has passed, and finds the
+     * next deadline.
+     */
+    private void markExpiredTimersDirty() {
+        if (earliestDeadline == Long.MAX_VALUE) {
+            return;
+        }
+        final long now = clock.millis();
+        if (now > earliestDeadline) {
+            final var timedStates = definition.timedStates;
+            for (int word = 0; word < active.length; word++) {
+                dirty[word] |= active[word] & timedStates[word];
+            }
+            long earliest = Long.MAX_VALUE;
+            for (var deadline : timers) {
+                if (deadline >= now && deadline < earliest) {
+                    earliest = deadline;
+                }
+            }
+            earliestDeadline = earliest;
+        }
+    }
+
+    private void resetTransitions(int sourceState) {
+        final var d = definition;
+        for (int transition = d.firstTransition[sourceState]; transition < d.firstTransition[sourceState + 1]; transition++) {
+            for (int c = d.firstCondition[transition]; c < d.firstCondition[transition + 1]; c++) {
+                reset(d.transitionConditions[c]);
+            }
+        }
+    }
+
+    /**
+     * @param taskSlots the task slots of the actions, or null when none of them
+     *                  is a task.
+     */
+    private void executeActions(Action[] actions, int[] taskSlots) {
+        if (actionsSuppressed) {
+            return;
+        }
+        for (int a = 0; a < actions.length; a++) {
+            final var action = actions[a];
+            if (taskSlots != null && action instanceof ExecutorTaskAction<?> task) {
+                final int slot = taskSlots[a];
+                if (slot >= 0) {
+                    taskResults[slot] = task.start(completionListener);
+                } else {
+                    // Nobody waits for it.
+                    task.start(null);
+                }
+            } else {
+                action.execute();
+            }
+        }
+    }
+
+    private boolean isMet(int transition) {
+        final var d = definition;
+        for (int c = d.firstCondition[transition]; c < d.firstCondition[transition + 1]; c++) {
+            if (!isConditionMet(d.transitionConditions[c])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isConditionMet(int condition) {
+        final var d = definition;
+        final int slot = d.conditionSlot[condition];
+        return switch (d.conditionKind[condition]) {
+            case ALWAYS -> true;
+            case NEVER -> false;
+            case SINGLE_EVENT, MULTI_EVENT, SUB_MACHINE -> isFlagSet(slot);
+            case AFTER -> clock.millis() > timers[slot];
+            case STATES_ACTIVE -> allActive((long[]) d.conditionData[condition]);
+            case STATES_INACTIVE -> noneActive((long[]) d.conditionData[condition]);
+            case OPAQUE -> ((Condition<E>) d.conditionData[condition]).isMet();
+            case ASYNC -> isAsyncMet(condition, slot);
+            case TASK -> taskResults[slot] != null && taskResults[slot].isDone();
+            default -> throw new IllegalStateException("Unknown condition kind");
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleEvent(int condition, E event) {
+        final var d = definition;
+        final int slot = d.conditionSlot[condition];
+        switch (d.conditionKind[condition]) {
+            case SUB_MACHINE -> {
+                if (!isFlagSet(slot)) {
+                    final var subMachine = subMachines[(Integer) d.conditionData[condition]];
+                    subMachine.handleEvent(event);
+                    if (subMachine.isFinished()) {
+                        setFlag(slot);
+                    }
+                }
+            }
+            case OPAQUE -> ((Condition<E>) d.conditionData[condition]).handleEvent(event);
+            default -> throw new IllegalStateException("Condition is dispatched through the event index");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reset(int condition) {
+        final var d = definition;
+        final int slot = d.conditionSlot[condition];
+        switch (d.conditionKind[condition]) {
+            case SINGLE_EVENT, MULTI_EVENT -> clearFlag(slot);
+            case AFTER -> {
+                timers[slot] = clock.millis() + d.timerMilliseconds[slot];
+                earliestDeadline = Math.min(earliestDeadline, timers[slot]);
+                if (deadlineListener != null) {
+                    deadlineListener.accept(timers[slot] + 1);
+                }
+            }
+            case SUB_MACHINE -> {
+                clearFlag(slot);
+                subMachines[(Integer) d.conditionData[condition]].reset();
+            }
+            case OPAQUE -> ((Condition<E>) d.conditionData[condition]).reset();
+            case ASYNC -> asyncResults[slot] = asyncCondition(condition).start(completionListener);
+            default -> {
+                // Stateless.
+            }
+        }
+    }
+
+    /**
+     * Starts the lookup when the source state became active without being
+     * entered, like start states.
+     */
+    private boolean isAsyncMet(int condition, int slot) {
+        final var async = asyncCondition(condition);
+        var result = asyncResults[slot];
+        if (result == null) {
+            result = async.start(completionListener);
+            asyncResults[slot] = result;
+        }
+        return async.isMet(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private AsyncCondition<E, ?> asyncCondition(int condition) {
+        return (AsyncCondition<E, ?>) definition.conditionData[condition];
+    }
+
+    private boolean allActive(long[] mask) {
+        for (int word = 0; word < mask.length; word++) {
+            if ((active[word] & mask[word]) != mask[word]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean noneActive(long[] mask) {
+        for (int word = 0; word < mask.length; word++) {
+            if ((active[word] & mask[word]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isFlagSet(int slot) {
+        return Bits.isSet(flags, slot);
+    }
+
+    private void setFlag(int slot) {
+        Bits.set(flags, slot);
+    }
+
+    private void clearFlag(int slot) {
+        Bits.clear(flags, slot);
+    }
+
+    /**
+     * The buffers that poll() works in, sized for the worst case so they never
+     * have to grow.
+     */
+    private static final class PollScratch {
+        final long[] transitionsThatHaveFiredBefore;
+        final int[] statesToExit;
+        /** The transitions that fired during this poll, in the order they fired. */
+        final int[] transitionsToFire;
+        final int[] statesToEnter;
+        final long[] exiting;
+        final long[] entering;
+        /** The compound states whose transitions are not fired, because a sub state fires. */
+        final long[] preempted;
+        /** Created when the states are first evaluated in parallel. */
+        ParallelScratch parallel;
+
+        PollScratch(StateMachineDefinition<?, ?, ?> definition) {
+            final int stateCount = definition.getStateCount();
+            final int transitionCount = definition.getTransitionCount();
+            transitionsThatHaveFiredBefore = new long[Bits.words(transitionCount)];
+            statesToExit = new int[stateCount];
+            transitionsToFire = new int[transitionCount];
+            statesToEnter = new int[stateCount];
+            exiting = new long[Bits.words(stateCount)];
+            entering = new long[Bits.words(stateCount)];
+            preempted = new long[Bits.words(stateCount)];
+        }
+    }
+
+    /**
+     * The results of evaluating source states in parallel. Every task writes
+     * only the entries of its own source states and their transitions.
+     */
+    private static final class ParallelScratch {
+        final int[] sources;
+        int sourceCount;
+        /** Per source state, the tier that fires, or -1. */
+        final int[] firingTier;
+        final boolean[] skippedFiredTransition;
+        /** Per transition, whether it was met. Cleared when it is collected. */
+        final boolean[] met;
+
+        ParallelScratch(StateMachineDefinition<?, ?, ?> definition) {
+            final int stateCount = definition.getStateCount();
+            sources = new int[stateCount];
+            firingTier = new int[stateCount];
+            skippedFiredTransition = new boolean[stateCount];
+            met = new boolean[definition.getTransitionCount()];
+        }
+    }
+
+    /**
+     * Gives access to the internals of the instance, for saving and restoring
+     * it. Changing the internals skips all actions.
+     */
+    public class Internals {
+        /**
+         * @return the index of the first active state at or after the index,
+         * or -1 if there is none.
+         */
+        public int nextActiveState(int fromIndex) {
+            return Bits.nextSet(active, fromIndex);
+        }
+
+        public int getActiveStateCount() {
+            return activeCount;
+        }
+
+        /**
+         * @return the amount of event based conditions that remember whether
+         * they have been met.
+         */
+        public int getFlagCount() {
+            return definition.flagCount;
+        }
+
+        public boolean isFlagSet(int slot) {
+            return StateMachineInstance.this.isFlagSet(slot);
+        }
+
+        /**
+         * @return the amount of time based conditions.
+         */
+        public int getTimerCount() {
+            return timers.length;
+        }
+
+        /**
+         * @return the milliseconds until the time based condition is met, or
+         * a negative number if it is met already.
+         */
+        public long getRemainingMilliseconds(int slot) {
+            return timers[slot] - clock.millis();
+        }
+
+        public int getSubMachineCount() {
+            return subMachines.length;
+        }
+
+        public StateMachineInstance<?, E, ?> getSubMachine(int index) {
+            return subMachines[index];
+        }
+
+        /**
+         * Deactivates all states and clears all conditions, without running
+         * any actions.
+         */
+        public void clear() {
+            clearActive();
+            Arrays.fill(flags, 0);
+            Arrays.fill(timers, 0);
+            Arrays.fill(asyncResults, null);
+            Arrays.fill(taskResults, null);
+            earliestDeadline = Long.MAX_VALUE;
+        }
+
+        /**
+         * Activates a state without running its entry actions or resetting its
+         * conditions.
+         */
+        public void activate(int state) {
+            if (!Bits.isSet(active, state)) {
+                setActive(state);
+            }
+            // Nothing is known about what changed, so it is evaluated on the next poll.
+            Bits.set(dirty, state);
+        }
+
+        public void setFlag(int slot) {
+            StateMachineInstance.this.setFlag(slot);
+        }
+
+        /**
+         * Sets a time based condition to be met after the milliseconds, or
+         * met already when negative. The deadline listener is told about it.
+         */
+        public void setRemainingMilliseconds(int slot, long milliseconds) {
+            timers[slot] = clock.millis() + milliseconds;
+            if (milliseconds >= 0) {
+                earliestDeadline = Math.min(earliestDeadline, timers[slot]);
+                if (deadlineListener != null) {
+                    deadlineListener.accept(timers[slot] + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * A view on the active states bitset.
+     */
+    private final class ActiveStates extends AbstractSet<T> {
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<>() {
+                private int next = Bits.nextSet(active, 0);
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public T next() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    final var state = definition.stateAt(next);
+                    next = Bits.nextSet(active, next + 1);
+                    return state;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return activeCount;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean contains(Object state) {
+            return isActive((T) state);
+        }
+    }
+}
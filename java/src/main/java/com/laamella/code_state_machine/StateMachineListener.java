@@ -0,0 +1,57 @@
+package com.laamella.code_state_machine;
+
+/**
+ * Is told what a {@link StateMachine} or a {@link StateMachineInstance} does.
+ * The arguments are objects that the machine already has, so nothing is
+ * allocated for calling a listener, and when no listener is registered nothing
+ * is called at all. Listeners are called on the thread that runs the machine,
+ * in the middle of its work, so they should be quick. All methods do nothing
+ * by default.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ * @param <P> priority type.
+ */
+public interface StateMachineListener<T, E, P> {
+    /**
+     * An event is about to be handled.
+     */
+    default void eventReceived(E event) {
+    }
+
+    /**
+     * A transition fired, right after its actions were executed.
+     */
+    default void transitionFired(T sourceState, T destinationState, P priority) {
+    }
+
+    /**
+     * A state was entered, right after its entry actions were executed. End
+     * states are entered too, but they do not become active.
+     */
+    default void stateEntered(T state) {
+    }
+
+    /**
+     * A state was exited, right after its exit actions were executed.
+     */
+    default void stateExited(T state) {
+    }
+
+    /**
+     * poll() has looked for transitions to fire once more.
+     *
+     * @param iteration        the number of the iteration in this poll,
+     *                         starting at 0.
+     * @param transitionsFired the amount of transitions that fired in the
+     *                         iteration. When 0, poll() is done.
+     */
+    default void pollIterated(int iteration, int transitionsFired) {
+    }
+
+    /**
+     * The last active state disappeared into an end state.
+     */
+    default void finished() {
+    }
+}
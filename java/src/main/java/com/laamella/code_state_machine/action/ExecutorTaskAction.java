@@ -0,0 +1,122 @@
+package com.laamella.code_state_machine.action;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.Condition;
+import com.laamella.code_state_machine.condition.NonEventBasedCondition;
+
+/**
+ * Like {@link TaskAction}, this action runs user code in the background, but it
+ * hands the code to an executor instead of starting a new platform thread. By
+ * default every task gets its own virtual thread.
+ * <p/>
+ * The isFinished condition is the same object for the lifetime of the action.
+ * It is met once the last started task has completed, normally or not, and is
+ * not met before the first task was started.
+ * <p/>
+ * Nobody polls a machine when a task completes, so a completion listener
+ * should wake it. Instances of a compiled definition keep the task per
+ * instance and tell their own completion listener instead, so one action can
+ * be shared by all instances.
+ *
+ * @param <E>
+ *            event type.
+ */
+public abstract class ExecutorTaskAction<E> implements Runnable, FinishableAction<E> {
+	private static final Logger log = LoggerFactory.getLogger(ExecutorTaskAction.class);
+
+	/**
+	 * Starts every task on a new virtual thread.
+	 */
+	public static final Executor VIRTUAL_THREADS = task -> Thread.ofVirtual().name("state-machine-task").start(task);
+
+	private final Executor executor;
+	private volatile Runnable completionListener;
+	private volatile CompletableFuture<Void> future;
+	private final Finished<E> finishedCondition = new Finished<>(this);
+
+	protected ExecutorTaskAction() {
+		this(VIRTUAL_THREADS);
+	}
+
+	protected ExecutorTaskAction(final Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param completionListener
+	 *            called on the thread of the task when it has completed, so it
+	 *            should only ask for a poll. Null to stop listening.
+	 */
+	public void setCompletionListener(final Runnable completionListener) {
+		this.completionListener = completionListener;
+	}
+
+	@Override
+	public final void execute() {
+		future = start(completionListener);
+	}
+
+	/**
+	 * Starts a task that is not kept by this action. Used by instances of a
+	 * compiled definition, which keep the task themselves.
+	 *
+	 * @param completionListener
+	 *            called when the task has completed, or null.
+	 */
+	public CompletableFuture<Void> start(final Runnable completionListener) {
+		final var started = CompletableFuture.runAsync(this, executor);
+		started.whenComplete((result, throwable) -> {
+			if (throwable != null) {
+				log.error("Task failed", throwable);
+			}
+			if (completionListener != null) {
+				completionListener.run();
+			}
+		});
+		return started;
+	}
+
+	/**
+	 * @return the completion of the last task started by execute(), or null
+	 *         when none was started.
+	 */
+	public CompletableFuture<Void> getFuture() {
+		return future;
+	}
+
+	@Override
+	public final Condition<E> isFinished() {
+		return finishedCondition;
+	}
+
+	/**
+	 * The isFinished condition of a task action.
+	 */
+	public static final class Finished<E> extends NonEventBasedCondition<E> {
+		private final ExecutorTaskAction<E> task;
+
+		private Finished(final ExecutorTaskAction<E> task) {
+			this.task = task;
+		}
+
+		public ExecutorTaskAction<E> getTask() {
+			return task;
+		}
+
+		@Override
+		public boolean isMet() {
+			final var started = task.future;
+			return started != null && started.isDone();
+		}
+
+		@Override
+		public String toString() {
+			return "finished";
+		}
+	}
+}
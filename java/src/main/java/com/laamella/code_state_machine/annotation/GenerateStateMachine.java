@@ -0,0 +1,50 @@
+package com.laamella.code_state_machine.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a state machine with enum states and events, for which the
+ * annotation processor of the code-state-machine-processor module writes a
+ * class at compile time. The transitions are declared with
+ * {@link Transition}, and the annotated interface is the type of the hooks:
+ * its methods annotated with {@link OnEntry} and {@link OnExit} are called
+ * when states are entered and exited.
+ * <p/>
+ * The generated class implements {@link com.laamella.code_state_machine.Machine}
+ * and behaves like a {@link com.laamella.code_state_machine.StateMachine} with
+ * the same transitions, except that a transition with more than one source
+ * state gets a separate condition per source state.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateStateMachine {
+    /**
+     * @return the enum of the states.
+     */
+    Class<? extends Enum<?>> states();
+
+    /**
+     * @return the enum of the events.
+     */
+    Class<? extends Enum<?>> events();
+
+    /**
+     * @return the names of the states that are active when the machine is
+     * created.
+     */
+    String[] startStates();
+
+    /**
+     * @return the names of the states that do not stay active when entered.
+     */
+    String[] endStates() default {};
+
+    /**
+     * @return the simple name of the generated class. By default, the name of
+     * the annotated interface followed by "Machine".
+     */
+    String name() default "";
+}
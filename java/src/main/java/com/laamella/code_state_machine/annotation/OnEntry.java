@@ -0,0 +1,19 @@
+package com.laamella.code_state_machine.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method without parameters of a {@link GenerateStateMachine}
+ * interface as the entry action of states.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface OnEntry {
+    /**
+     * @return the names of the states.
+     */
+    String[] value();
+}
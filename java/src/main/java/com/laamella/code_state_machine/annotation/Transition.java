@@ -0,0 +1,36 @@
+package com.laamella.code_state_machine.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.laamella.code_state_machine.priority.Priority;
+
+/**
+ * A transition of a machine declared with {@link GenerateStateMachine}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+@Repeatable(Transitions.class)
+public @interface Transition {
+    /**
+     * @return the names of the source states.
+     */
+    String[] from();
+
+    /**
+     * @return the names of the events of which any one fires the transition.
+     * Without events, the transition fires as soon as its source state is
+     * active.
+     */
+    String[] on() default {};
+
+    /**
+     * @return the name of the destination state.
+     */
+    String to();
+
+    Priority priority() default Priority.NORMAL;
+}
@@ -4,6 +4,9 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,10 +16,12 @@ import com.laamella.code_state_machine.Actions;
 import com.laamella.code_state_machine.Condition;
 import com.laamella.code_state_machine.Conditions;
 import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.StateMachineDefinition;
 import com.laamella.code_state_machine.Transition;
 import com.laamella.code_state_machine.action.LogAction;
 import com.laamella.code_state_machine.condition.AfterCondition;
 import com.laamella.code_state_machine.condition.AlwaysCondition;
+import com.laamella.code_state_machine.condition.AsyncCondition;
 import com.laamella.code_state_machine.condition.MultiEventMatchCondition;
 import com.laamella.code_state_machine.condition.NeverCondition;
 import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
@@ -77,6 +82,33 @@ public abstract class DslStateMachineBuilder<T, E, P extends Comparable<P>> impl
             return this;
         }
 
+        /**
+         * Puts the sub states inside this compound state. The first one is
+         * entered when this state is entered. Transitions of this state apply
+         * while any of the sub states is active.
+         */
+        @SafeVarargs
+        public final DefiningState contains(final T... subStates) {
+            for (final T state : sourceStates) {
+                for (final T subState : subStates) {
+                    internals.addSubState(state, subState);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Puts the sub states inside this state, and makes them all active
+         * together while this state is active.
+         */
+        @SafeVarargs
+        public final DefiningState containsInParallel(final T... subStates) {
+            for (final T state : sourceStates) {
+                internals.setParallel(state);
+            }
+            return contains(subStates);
+        }
+
         public DefiningState areEndStates() {
             return isAnEndState();
         }
@@ -170,6 +202,11 @@ public abstract class DslStateMachineBuilder<T, E, P extends Comparable<P>> impl
         return build(new StateMachine<>());
     }
 
+    @Override
+    public StateMachineDefinition<T, E, P> buildDefinition() {
+        return new StateMachineDefinition<>(build());
+    }
+
     public DefiningState state(T state) {
         Objects.requireNonNull(state);
         return states(state);
@@ -192,6 +229,10 @@ public abstract class DslStateMachineBuilder<T, E, P extends Comparable<P>> impl
         return new AfterCondition<>(milliseconds);
     }
 
+    public static <E, V> AsyncCondition<E, V> eventually(final Supplier<? extends CompletionStage<? extends V>> lookup, final Predicate<? super V> test) {
+        return new AsyncCondition<>(lookup, test);
+    }
+
     @SafeVarargs
     public static <E> Conditions<E> is(final E... events) {
         Objects.requireNonNull(events);
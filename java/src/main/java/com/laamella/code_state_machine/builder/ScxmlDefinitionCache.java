@@ -0,0 +1,122 @@
+package com.laamella.code_state_machine.builder;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keeps the definitions built from SCXML documents by the SHA-256 hash of their
+ * content, so that a document that was parsed before is not read again. Reading
+ * a document for its hash is much cheaper than parsing it.
+ * <p/>
+ * All documents are parsed by builders from the same factory, so a cache is for
+ * one way of interpreting states, events and conditions. When the cache is full,
+ * the least recently used definition is dropped.
+ * <p/>
+ * This class is thread safe. Two threads that miss the same document at the
+ * same time both parse it, and the first definition is kept.
+ */
+public final class ScxmlDefinitionCache<T, E> {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Function<InputSource, ? extends ScxmlStateMachineBuilder<T, E>> builders;
+    private final Map<String, StateMachineDefinition<T, E, Integer>> definitions;
+
+    /**
+     * @param builders    creates a builder that reads the input source.
+     * @param maximumSize the amount of definitions to keep.
+     */
+    public ScxmlDefinitionCache(Function<InputSource, ? extends ScxmlStateMachineBuilder<T, E>> builders, int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one definition, not " + maximumSize);
+        }
+        this.builders = builders;
+        definitions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, StateMachineDefinition<T, E, Integer>> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * @return the definition of the document in the file. The file should not
+     * change while it is being read.
+     */
+    public StateMachineDefinition<T, E, Integer> getDefinition(Path file) throws ParserConfigurationException, IOException, SAXException {
+        final String hash;
+        try (var input = Files.newInputStream(file)) {
+            hash = hash(input);
+        }
+        final var definition = cached(hash);
+        if (definition != null) {
+            return definition;
+        }
+        final var inputSource = new InputSource(Files.newInputStream(file));
+        inputSource.setSystemId(file.toUri().toString());
+        return cache(hash, builders.apply(inputSource).buildDefinition());
+    }
+
+    /**
+     * @return the definition of the document.
+     */
+    public StateMachineDefinition<T, E, Integer> getDefinition(byte[] document) throws ParserConfigurationException, IOException, SAXException {
+        final var hash = HexFormat.of().formatHex(sha256().digest(document));
+        final var definition = cached(hash);
+        if (definition != null) {
+            return definition;
+        }
+        return cache(hash, builders.apply(new InputSource(new ByteArrayInputStream(document))).buildDefinition());
+    }
+
+    /**
+     * @return the amount of definitions in the cache.
+     */
+    public synchronized int size() {
+        return definitions.size();
+    }
+
+    public synchronized void clear() {
+        definitions.clear();
+    }
+
+    private synchronized StateMachineDefinition<T, E, Integer> cached(String hash) {
+        return definitions.get(hash);
+    }
+
+    private synchronized StateMachineDefinition<T, E, Integer> cache(String hash, StateMachineDefinition<T, E, Integer> definition) {
+        final var cached = definitions.putIfAbsent(hash, definition);
+        return cached == null ? definition : cached;
+    }
+
+    private static String hash(InputStream input) throws IOException {
+        final var digest = sha256();
+        final var buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+}
@@ -4,14 +4,20 @@ import com.laamella.code_state_machine.*;
 import com.laamella.code_state_machine.priority.PriorityDeterminizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.util.ArrayList;
 
 /**
  * A State machine builder that attempts to read the <a
@@ -39,18 +45,26 @@ import java.io.IOException;
  * <td>(pre)conditions for transitions (interpretation is up to the user)
  * </tr>
  * <tr>
- * <td>&#x2717;
- * <td>clusters, compound states, or sub state machines (treated as normal
- * states. Substates are mixed into the main state machine)
+ * <td>&#x2713;
+ * <td>compound states (the initial attribute, or else the first sub state, is
+ * entered with them)
  * </tr>
  * <tr>
  * <td>&#x2717;
  * <td>executable content
  * </tr>
  * <tr>
+ * <td>&#x2713;
+ * <td>parallel states
+ * </tr>
+ * <tr>
  * <td>&#x2717;
- * <td>parallel states (treated as normal states)
+ * <td>initial and history elements, done events
  * </tr>
+ * </table>
+ * The document is read in a single pass with StAX, so only the machine that is
+ * being built is kept in memory, not the document. Use a
+ * {@link ScxmlDefinitionCache} to parse a document only once.
  */
 public abstract class ScxmlStateMachineBuilder<T, E> implements StateMachineBuilder<T, E, Integer> {
     private static final Logger log = LoggerFactory.getLogger(ScxmlStateMachineBuilder.class);
@@ -65,8 +79,8 @@ public abstract class ScxmlStateMachineBuilder<T, E> implements StateMachineBuil
     private static final String ID_ATTRIBUTE = "id";
     private static final String STATE_ELEMENT = "state";
     private static final String FINAL_STATE_ELEMENT = "final";
-
-    private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    private static final String ON_ENTRY_ELEMENT = "onentry";
+    private static final String ON_EXIT_ELEMENT = "onexit";
 
     private final InputSource inputSource;
 
@@ -74,13 +88,31 @@ public abstract class ScxmlStateMachineBuilder<T, E> implements StateMachineBuil
         this.inputSource = inputSource;
     }
 
+    /**
+     * Reads the document, and closes the streams of the input source.
+     *
+     * @throws SAXException                 when the document is not well-formed
+     *                                      XML.
+     * @throws ParserConfigurationException when the StAX implementation can not
+     *                                      be kept from reading DTDs and external
+     *                                      entities.
+     */
     @Override
-    public StateMachine<T, E, Integer> build(StateMachine<T, E, Integer> machine)
-            throws ParserConfigurationException, SAXException, IOException {
-        var documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        var root = (Element) documentBuilder.parse(inputSource).getChildNodes().item(0);
-
-        parseState(root, machine.new Internals());
+    public StateMachine<T, E, Integer> build(StateMachine<T, E, Integer> machine) throws ParserConfigurationException, SAXException, IOException {
+        final var inputFactory = createInputFactory();
+        final var characterStream = inputSource.getCharacterStream();
+        try (characterStream; var byteStream = characterStream == null ? openByteStream() : null) {
+            final var reader = createReader(inputFactory, characterStream, byteStream);
+            try {
+                parse(reader, machine.new Internals());
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            final var location = e.getLocation();
+            throw new SAXParseException(e.getMessage(), inputSource.getPublicId(), inputSource.getSystemId(),
+                    location == null ? -1 : location.getLineNumber(), location == null ? -1 : location.getColumnNumber(), e);
+        }
         return machine;
     }
 
@@ -89,59 +121,149 @@ public abstract class ScxmlStateMachineBuilder<T, E> implements StateMachineBuil
         return build(new StateMachine<>());
     }
 
-    private T parseState(final Element stateElement, final StateMachine<T, E, Integer>.Internals builder) {
-        if (stateElement.hasAttribute(INITIAL_ATTRIBUTE)) {
-            var initialState = interpretStateName(stateElement.getAttribute(INITIAL_ATTRIBUTE));
-            builder.addStartState(initialState);
+    @Override
+    public StateMachineDefinition<T, E, Integer> buildDefinition() throws ParserConfigurationException, SAXException, IOException {
+        return new StateMachineDefinition<>(build());
+    }
+
+    private static XMLInputFactory createInputFactory() throws ParserConfigurationException {
+        final var inputFactory = XMLInputFactory.newInstance();
+        try {
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        } catch (IllegalArgumentException e) {
+            throw new ParserConfigurationException(e.getMessage());
         }
-        var stateName = stateElement.getAttribute(ID_ATTRIBUTE);
-        var state = interpretStateName(stateName);
-
-        var childNodes = stateElement.getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            var subNode = childNodes.item(i);
-            if (subNode.getNodeType() == Node.ELEMENT_NODE) {
-                var subElement = (Element) subNode;
-                var subNodeName = subElement.getNodeName();
-                switch (subNodeName) {
-                    case STATE_ELEMENT:
-                    case PARALLEL_ELEMENT:
-                    case ROOT_STATE_MACHINE_ELEMENT:
-                        parseState(subElement, builder);
-                        break;
-                    case FINAL_STATE_ELEMENT:
-                        builder.addEndState(parseState(subElement, builder));
-                        break;
-                    case TRANSITION_ELEMENT:
-                        if (subElement.hasAttribute(TARGET_ATTRIBUTE)) {
-                            var targetState = interpretStateName(subElement.getAttribute(TARGET_ATTRIBUTE));
-
-                            var conditions = new Conditions<E>();
-                            if (subElement.hasAttribute(CONDITION_ATTRIBUTE)) {
-                                conditions.add(interpretCondition(subElement.getAttribute(CONDITION_ATTRIBUTE)));
-                            }
+        return inputFactory;
+    }
 
-                            var actions = new Actions();
-                            if (subElement.hasAttribute(EVENT_ATTRIBUTE)) {
-                                actions.add(interpretEvent(subElement.getAttribute(EVENT_ATTRIBUTE)));
-                            }
+    private XMLStreamReader createReader(XMLInputFactory inputFactory, Reader characterStream, InputStream byteStream) throws XMLStreamException {
+        if (characterStream != null) {
+            return inputFactory.createXMLStreamReader(inputSource.getSystemId(), characterStream);
+        }
+        if (inputSource.getEncoding() != null) {
+            return inputFactory.createXMLStreamReader(byteStream, inputSource.getEncoding());
+        }
+        return inputFactory.createXMLStreamReader(inputSource.getSystemId(), byteStream);
+    }
+
+    private InputStream openByteStream() throws IOException {
+        if (inputSource.getByteStream() != null) {
+            return inputSource.getByteStream();
+        }
+        if (inputSource.getSystemId() == null) {
+            throw new IllegalArgumentException("The input source has no stream and no system id");
+        }
+        return URI.create(inputSource.getSystemId()).toURL().openStream();
+    }
 
-                            // TODO do something about priorities
-                            builder.addTransition(new Transition<>(state, targetState, conditions, PriorityDeterminizer.nextPriority(), actions));
+    /**
+     * Builds the machine while reading the document. The root element and every
+     * state element directly in a state element is a state, and everything else
+     * in a state element is skipped, except for transitions and entry and exit
+     * actions. States in the root element are top level states, and states in
+     * other states are their sub states.
+     */
+    private void parse(final XMLStreamReader reader, final StateMachine<T, E, Integer>.Internals builder) throws XMLStreamException {
+        // The states that contain the current element, and their depths.
+        final var states = new ArrayList<T>();
+        final var stateDepths = new ArrayList<Integer>();
+        final var text = new StringBuilder();
+        int depth = -1;
+        int textDepth = -1;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT -> {
+                    depth++;
+                    final boolean inState = depth == 0 || (!stateDepths.isEmpty() && stateDepths.getLast() == depth - 1);
+                    final var elementName = !inState ? "" : depth == 0 ? ROOT_STATE_MACHINE_ELEMENT : reader.getLocalName();
+                    switch (elementName) {
+                        case STATE_ELEMENT, PARALLEL_ELEMENT, ROOT_STATE_MACHINE_ELEMENT, FINAL_STATE_ELEMENT -> {
+                            final var state = interpretStateName(attribute(reader, ID_ATTRIBUTE));
+                            if (depth > 1) {
+                                builder.addSubState(states.getLast(), state);
+                            }
+                            if (elementName.equals(PARALLEL_ELEMENT)) {
+                                builder.setParallel(state);
+                            }
+                            final var initial = reader.getAttributeValue(null, INITIAL_ATTRIBUTE);
+                            if (initial != null) {
+                                if (depth == 0) {
+                                    builder.addStartState(interpretStateName(initial));
+                                } else {
+                                    builder.setInitialSubState(state, interpretStateName(initial));
+                                }
+                            }
+                            states.add(state);
+                            stateDepths.add(depth);
+                        }
+                        case TRANSITION_ELEMENT -> parseTransition(reader, states.getLast(), builder);
+                        case ON_ENTRY_ELEMENT, ON_EXIT_ELEMENT -> {
+                            text.setLength(0);
+                            textDepth = depth;
+                        }
+                        default -> {
+                        }
+                    }
+                }
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> {
+                    if (textDepth >= 0) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                }
+                case XMLStreamConstants.END_ELEMENT -> {
+                    if (depth == textDepth) {
+                        if (reader.getLocalName().equals(ON_ENTRY_ELEMENT)) {
+                            builder.addEntryActions(states.getLast(), interpretEvent(text.toString()));
                         } else {
-                            log.warn("State " + stateName + " has a transition going nowhere.");
+                            builder.addExitActions(states.getLast(), interpretEvent(text.toString()));
                         }
-                        break;
-                    case "onentry":
-                        builder.addEntryActions(state, interpretEvent(subNode.getTextContent()));
-                        break;
-                    case "onexit":
-                        builder.addExitActions(state, interpretEvent(subNode.getTextContent()));
-                        break;
+                        textDepth = -1;
+                    } else if (!stateDepths.isEmpty() && stateDepths.getLast() == depth) {
+                        final var state = states.removeLast();
+                        stateDepths.removeLast();
+                        if (depth > 0 && reader.getLocalName().equals(FINAL_STATE_ELEMENT)) {
+                            builder.addEndState(state);
+                        }
+                    }
+                    depth--;
+                }
+                default -> {
                 }
             }
         }
-        return state;
+    }
+
+    private void parseTransition(final XMLStreamReader reader, final T state, final StateMachine<T, E, Integer>.Internals builder) {
+        final var target = reader.getAttributeValue(null, TARGET_ATTRIBUTE);
+        if (target == null) {
+            log.warn("State " + state + " has a transition going nowhere.");
+            return;
+        }
+        var targetState = interpretStateName(target);
+
+        var conditions = new Conditions<E>();
+        final var condition = reader.getAttributeValue(null, CONDITION_ATTRIBUTE);
+        if (condition != null) {
+            conditions.add(interpretCondition(condition));
+        }
+
+        var actions = new Actions();
+        final var event = reader.getAttributeValue(null, EVENT_ATTRIBUTE);
+        if (event != null) {
+            actions.add(interpretEvent(event));
+        }
+
+        // TODO do something about priorities
+        builder.addTransition(new Transition<>(state, targetState, conditions, PriorityDeterminizer.nextPriority(), actions));
+    }
+
+    /**
+     * @return the value of the attribute, or "" when it is missing.
+     */
+    private static String attribute(final XMLStreamReader reader, final String name) {
+        final var value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
     }
 
     protected abstract Action interpretEvent(final String attribute);
@@ -1,6 +1,7 @@
 package com.laamella.code_state_machine.builder;
 
 import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.StateMachineDefinition;
 
 /**
  * Interface that all builder should adhere to.
@@ -15,4 +16,12 @@ public interface StateMachineBuilder<T, E, P extends Comparable<P>> {
 	 * @return a new machine.
 	 */
 	StateMachine<T, E, P> build() throws Exception;
+
+	/**
+	 * @return a new definition, from which any amount of instances can be
+	 *         created.
+	 */
+	default StateMachineDefinition<T, E, P> buildDefinition() throws Exception {
+		return new StateMachineDefinition<>(build());
+	}
 }
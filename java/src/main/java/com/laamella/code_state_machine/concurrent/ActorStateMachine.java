@@ -0,0 +1,292 @@
+package com.laamella.code_state_machine.concurrent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.Machine;
+import com.laamella.code_state_machine.StateMachineInstance;
+
+/**
+ * Runs a machine as an actor: any thread can send it events, which are put in
+ * a lock-free mailbox. A single drainer at a time takes the events out of the
+ * mailbox in batches and hands them to the machine with
+ * {@link Machine#handleEvents(Iterable)}, each event running to completion
+ * before the next one is handled. The machine itself must not be
+ * used directly anymore.
+ * <p/>
+ * The drainer runs on an executor, by default a new virtual thread whenever
+ * there is work to do.
+ * <p/>
+ * When the mailbox is full, an action of the machine that sends it another
+ * event can not wait for room, since only the drainer it runs on makes room.
+ * Such events are rejected, also with the BLOCK overflow policy.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ */
+public final class ActorStateMachine<T, E> {
+    private static final Logger log = LoggerFactory.getLogger(ActorStateMachine.class);
+
+    /**
+     * Starts every task on a new virtual thread.
+     */
+    public static final Executor VIRTUAL_THREADS = task -> Thread.ofVirtual().name("state-machine-actor").start(task);
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int BATCH_SIZE = 256;
+    private static final long BLOCK_PARK_NANOS = 10_000;
+
+    private final Machine<T, E> machine;
+    private final MpscQueue<Object> mailbox;
+    private final OverflowPolicy overflowPolicy;
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicBoolean pollRequested = new AtomicBoolean(false);
+    /** The thread that is draining the mailbox, or null. */
+    private volatile Thread drainer;
+    /** The events taken out of the mailbox that are not handled yet. Only used by the drainer. */
+    private final ArrayList<E> events = new ArrayList<>();
+    private int nextEvent = 0;
+    private final Iterable<E> pendingEvents = () -> new Iterator<>() {
+        @Override
+        public boolean hasNext() {
+            return nextEvent < events.size();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return events.get(nextEvent++);
+        }
+    };
+
+    /**
+     * Create an actor with a mailbox for 1024 events that rejects events when
+     * it is full, and drains on virtual threads.
+     */
+    public ActorStateMachine(Machine<T, E> machine) {
+        this(machine, DEFAULT_CAPACITY, OverflowPolicy.REJECT, VIRTUAL_THREADS);
+    }
+
+    /**
+     * @param capacity       the maximum amount of events waiting in the mailbox,
+     *                       rounded up to a power of two, and at least 2.
+     * @param overflowPolicy what to do with events that do not fit in the
+     *                       mailbox.
+     * @param executor       runs the drainer.
+     */
+    public ActorStateMachine(Machine<T, E> machine, int capacity, OverflowPolicy overflowPolicy, Executor executor) {
+        this.machine = machine;
+        this.mailbox = new MpscQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.executor = executor;
+        if (machine instanceof StateMachineInstance<?, ?, ?> instance) {
+            instance.setCompletionListener(this::requestPoll);
+        }
+    }
+
+    /**
+     * Sends an event without a way to find out when it has been handled.
+     * Failures while handling it are logged.
+     *
+     * @return false if the event was discarded because the mailbox was full.
+     * @throws RejectedExecutionException if the mailbox was full and the
+     *                                    overflow policy is not DISCARD.
+     */
+    public boolean offer(E event) {
+        requireNonNull(event);
+        if (!enqueue(event)) {
+            if (overflowPolicy != OverflowPolicy.DISCARD) {
+                throw new RejectedExecutionException("Mailbox is full");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends an event.
+     *
+     * @return a future that completes when the machine has handled the event,
+     * or completes exceptionally when handling it failed. If the mailbox was
+     * full, it has failed with a {@link RejectedExecutionException}, or has been
+     * cancelled, depending on the overflow policy.
+     */
+    public CompletableFuture<Void> send(E event) {
+        requireNonNull(event);
+        final var message = new Message<T, E, Void>(event, null);
+        if (!enqueue(message)) {
+            if (overflowPolicy != OverflowPolicy.DISCARD) {
+                message.future.completeExceptionally(new RejectedExecutionException("Mailbox is full"));
+            } else {
+                message.future.cancel(false);
+            }
+        }
+        return message.future;
+    }
+
+    /**
+     * Runs a function on the machine, in between the handling of events, for
+     * example to find out what its active states are. The function must not
+     * keep a reference to the machine.
+     */
+    public <R> CompletableFuture<R> ask(Function<? super Machine<T, E>, R> question) {
+        final var message = new Message<T, E, R>(null, question);
+        if (!enqueue(message)) {
+            message.future.completeExceptionally(new RejectedExecutionException("Mailbox is full"));
+        }
+        return message.future;
+    }
+
+    /**
+     * Makes the drainer call poll() on the machine soon. Requests that arrive
+     * before the drainer gets to them are combined into one poll().
+     */
+    public void requestPoll() {
+        if (!pollRequested.getAndSet(true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return an estimate of the amount of events waiting to be handled.
+     */
+    public int getMailboxSize() {
+        return mailbox.size();
+    }
+
+    /**
+     * @return false when the mailbox is full, and the caller can not wait for
+     * room.
+     */
+    private boolean enqueue(Object message) {
+        while (!mailbox.offer(message)) {
+            if (overflowPolicy != OverflowPolicy.BLOCK || Thread.currentThread() == drainer) {
+                return false;
+            }
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+        }
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Otherwise no drainer would ever be scheduled again.
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        drainer = Thread.currentThread();
+        try {
+            for (int handled = 0; handled < BATCH_SIZE; handled++) {
+                final var message = mailbox.poll();
+                if (message == null) {
+                    break;
+                }
+                handle(message);
+            }
+            handleEvents();
+            if (pollRequested.getAndSet(false)) {
+                try {
+                    machine.poll();
+                } catch (RuntimeException e) {
+                    log.error("Polling failed", e);
+                }
+            }
+        } finally {
+            // Also after an Error, so the actor keeps draining.
+            drainer = null;
+            scheduled.set(false);
+            // Work may have arrived after the last poll() of the mailbox, but before scheduled was cleared.
+            if (!mailbox.isEmpty() || pollRequested.get()) {
+                schedule();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(Object message) {
+        if (message instanceof Message<?, ?, ?> envelope) {
+            // The events before it are handled first.
+            handleEvents();
+            ((Message<T, E, Object>) envelope).deliver(machine);
+            return;
+        }
+        events.add((E) message);
+    }
+
+    /**
+     * Hands the collected events to the machine in one batch. When one of them
+     * fails, the failure is logged and the batch goes on with the next one.
+     */
+    private void handleEvents() {
+        try {
+            while (nextEvent < events.size()) {
+                final int first = nextEvent;
+                try {
+                    machine.handleEvents(pendingEvents);
+                } catch (RuntimeException e) {
+                    if (nextEvent == first) {
+                        nextEvent++;
+                    }
+                    log.error("Handling event {} failed", events.get(nextEvent - 1), e);
+                }
+            }
+        } finally {
+            // After an Error, the rest of the batch is dropped.
+            events.clear();
+            nextEvent = 0;
+        }
+    }
+
+    /**
+     * An event or question that somebody is waiting for.
+     */
+    private static final class Message<T, E, R> {
+        private final E event;
+        private final Function<? super Machine<T, E>, R> question;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        Message(E event, Function<? super Machine<T, E>, R> question) {
+            this.event = event;
+            this.question = question;
+        }
+
+        void deliver(Machine<T, E> machine) {
+            try {
+                if (question == null) {
+                    machine.handleEvent(event);
+                    future.complete(null);
+                } else {
+                    future.complete(question.apply(machine));
+                }
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            } catch (Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+}
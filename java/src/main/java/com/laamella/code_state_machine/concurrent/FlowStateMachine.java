@@ -0,0 +1,289 @@
+package com.laamella.code_state_machine.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.Machine;
+import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.StateMachineInstance;
+import com.laamella.code_state_machine.StateMachineListener;
+import com.laamella.code_state_machine.util.Clock;
+
+/**
+ * Feeds the events of a reactive stream to machines, and publishes the states
+ * they enter and exit. Events are requested from upstream in batches: a batch
+ * is only requested again when the events before it have been handled, so
+ * slow actions slow down the stream instead of filling a queue. The states are
+ * published to subscribers that may be slow as well, in which case handling
+ * events waits until they catch up.
+ * <p/>
+ * Every event goes to the machine of its key, which is created by the factory
+ * for the first event with that key. Only {@link StateMachine}s and
+ * {@link StateMachineInstance}s tell which states they enter and exit; other
+ * machines are fed events, but publish nothing. The machines must not be used
+ * directly anymore.
+ * <p/>
+ * A {@link StateMachineInstance} is also polled when its time based
+ * conditions will be met, and when the lookup of one of its asynchronous
+ * conditions or one of its tasks completes, on the same executor as its
+ * events. Its clock must be the clock of the processor. Other machines are
+ * only polled by the events they get.
+ * <p/>
+ * When a machine fails to handle an event, the subscription is cancelled and
+ * the failure is passed on to the subscribers.
+ *
+ * @param <K> key type.
+ * @param <T> state type.
+ * @param <E> event type.
+ */
+public class FlowStateMachine<K, T, E> extends SubmissionPublisher<FlowStateMachine.StateChange<K, T>> implements Flow.Processor<E, FlowStateMachine.StateChange<K, T>> {
+    private static final Logger log = LoggerFactory.getLogger(FlowStateMachine.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * A state of the machine with the key was entered or exited.
+     */
+    public record StateChange<K, T>(K key, T state, boolean entered) {
+    }
+
+    private final Function<? super E, ? extends K> keys;
+    private final Function<? super K, ? extends Machine<T, E>> factory;
+    private final int batchSize;
+    private final Executor executor;
+    private final Clock clock;
+    private final MpscQueue<E> events;
+    /** The machines that asked to be polled. Not their keys, which may be null. */
+    private final Set<Machine<T, E>> pendingPolls = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /** Only touched by the drainer, like the machines. */
+    private final List<E> run = new ArrayList<>();
+    private final Map<K, Machine<T, E>> machines = new HashMap<>();
+    private volatile Flow.Subscription subscription;
+    /** The failure that upstream ended with, or null. */
+    private volatile Throwable upstreamFailure;
+    private volatile boolean upstreamDone = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a processor for a single machine, that handles batches of 256
+     * events on virtual threads. The keys of its state changes are null.
+     */
+    public static <T, E> FlowStateMachine<Void, T, E> of(Machine<T, E> machine) {
+        return new FlowStateMachine<>(event -> null, key -> machine, DEFAULT_BATCH_SIZE, ActorStateMachine.VIRTUAL_THREADS);
+    }
+
+    /**
+     * @param keys      tells which machine should handle an event.
+     * @param factory   creates the machine for a key.
+     * @param batchSize the amount of events that are requested at once, and
+     *                  the most that are waiting to be handled.
+     * @param executor  handles the events, and delivers the state changes.
+     */
+    public FlowStateMachine(Function<? super E, ? extends K> keys, Function<? super K, ? extends Machine<T, E>> factory, int batchSize, Executor executor) {
+        this(keys, factory, batchSize, executor, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock the clock of the instances the factory creates.
+     */
+    public FlowStateMachine(Function<? super E, ? extends K> keys, Function<? super K, ? extends Machine<T, E>> factory, int batchSize, Executor executor, Clock clock) {
+        super(executor, Flow.defaultBufferSize());
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1, not " + batchSize);
+        }
+        this.keys = keys;
+        this.factory = factory;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.clock = clock;
+        this.events = new MpscQueue<>(Math.max(2, batchSize));
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(E event) {
+        if (!events.offer(event)) {
+            // Upstream sent more than was requested.
+            subscription.cancel();
+            onError(new IllegalStateException("Received more events than were requested"));
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable failure) {
+        upstreamFailure = failure;
+        upstreamDone = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Makes the drainer poll the machine. Never blocks, and is ignored once
+     * the processor is done.
+     */
+    private void wake(Machine<T, E> machine) {
+        if (!closed && pendingPolls.add(machine)) {
+            schedule();
+        }
+    }
+
+    private void drain() {
+        try {
+            if (!closed) {
+                // Checked before emptying the mailbox, so no event that came before the end is missed.
+                final boolean done = upstreamDone;
+                try {
+                    final int handled = handleEvents();
+                    pollPending();
+                    if (done && events.isEmpty()) {
+                        closed = true;
+                        final var failure = upstreamFailure;
+                        if (failure == null) {
+                            close();
+                        } else {
+                            closeExceptionally(failure);
+                        }
+                    } else if (handled > 0) {
+                        subscription.request(handled);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Handling events failed", e);
+                    closed = true;
+                    subscription.cancel();
+                    closeExceptionally(e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Events and polls may have arrived after the mailbox was emptied, but before scheduled was cleared.
+            if (!closed && (!events.isEmpty() || upstreamDone || !pendingPolls.isEmpty())) {
+                schedule();
+            }
+        }
+    }
+
+    private void pollPending() {
+        for (var iterator = pendingPolls.iterator(); iterator.hasNext(); ) {
+            final var machine = iterator.next();
+            iterator.remove();
+            machine.poll();
+        }
+    }
+
+    /**
+     * Hands the waiting events to their machines, passing runs of events for
+     * the same machine as one batch.
+     *
+     * @return the amount of events handled.
+     */
+    private int handleEvents() {
+        int handled = 0;
+        Machine<T, E> current = null;
+        E event;
+        while (handled < batchSize && (event = events.poll()) != null) {
+            final var machine = machineFor(keys.apply(event));
+            if (machine != current) {
+                flush(current);
+                current = machine;
+            }
+            run.add(event);
+            handled++;
+        }
+        flush(current);
+        return handled;
+    }
+
+    private void flush(Machine<T, E> machine) {
+        if (!run.isEmpty()) {
+            try {
+                machine.handleEvents(run);
+            } finally {
+                run.clear();
+            }
+        }
+    }
+
+    private Machine<T, E> machineFor(K key) {
+        var machine = machines.get(key);
+        if (machine == null) {
+            machine = factory.apply(key);
+            machines.put(key, machine);
+            if (machine instanceof StateMachineInstance<T, E, ?> instance) {
+                listen(instance, key);
+            } else if (machine instanceof StateMachine<T, E, ?> stateMachine) {
+                listen(stateMachine, key);
+            }
+        }
+        return machine;
+    }
+
+    private <P extends Comparable<P>> void listen(StateMachineInstance<T, E, P> instance, K key) {
+        instance.addListener(new ChangePublisher<>(key));
+        instance.setCompletionListener(() -> wake(instance));
+        instance.setDeadlineListener(time -> CompletableFuture.delayedExecutor(Math.max(0, time - clock.millis()), TimeUnit.MILLISECONDS)
+                .execute(() -> wake(instance)));
+    }
+
+    private <P extends Comparable<P>> void listen(StateMachine<T, E, P> stateMachine, K key) {
+        stateMachine.addListener(new ChangePublisher<>(key));
+    }
+
+    /**
+     * Publishes the state changes of one machine. Waits while a subscriber
+     * has no room for them.
+     */
+    private final class ChangePublisher<P> implements StateMachineListener<T, E, P> {
+        private final K key;
+
+        ChangePublisher(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void stateEntered(T state) {
+            submit(new StateChange<>(key, state, true));
+        }
+
+        @Override
+        public void stateExited(T state) {
+            submit(new StateChange<>(key, state, false));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.laamella.code_state_machine.concurrent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer
+ * thread. It is an array of slots, each with a sequence number that tells
+ * producers and the consumer whose turn it is to use the slot.
+ *
+ * @param <E> element type.
+ */
+public final class MpscQueue<E> {
+    private static final VarHandle TAIL;
+    private static final VarHandle HEAD;
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle ELEMENTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    static {
+        try {
+            final var lookup = MethodHandles.lookup();
+            TAIL = lookup.findVarHandle(MpscQueue.class, "tail", long.class);
+            HEAD = lookup.findVarHandle(MpscQueue.class, "head", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int mask;
+    private final long[] sequences;
+    private final Object[] elements;
+    @SuppressWarnings("unused")
+    private volatile long tail = 0;
+    @SuppressWarnings("unused")
+    private volatile long head = 0;
+
+    /**
+     * @param capacity the maximum amount of elements, rounded up to a power of
+     *                 two, and at least 2.
+     */
+    public MpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        // With a single slot, "published" and "free for the next lap" would have the same sequence number.
+        final int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+        mask = size - 1;
+        sequences = new long[size];
+        elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    /**
+     * Adds an element. May be called by any thread.
+     *
+     * @return false if the queue is full.
+     * @throws NullPointerException when the element is null, since null
+     *                              means that the queue is empty.
+     */
+    public boolean offer(E element) {
+        requireNonNull(element);
+        long position = (long) TAIL.getVolatile(this);
+        while (true) {
+            final int slot = (int) position & mask;
+            final long sequence = (long) SEQUENCES.getAcquire(sequences, slot);
+            final long difference = sequence - position;
+            if (difference == 0) {
+                if (TAIL.compareAndSet(this, position, position + 1)) {
+                    ELEMENTS.setRelease(elements, slot, element);
+                    SEQUENCES.setRelease(sequences, slot, position + 1);
+                    return true;
+                }
+                position = (long) TAIL.getVolatile(this);
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = (long) TAIL.getVolatile(this);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element. May only be called by the consumer thread.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final long position = (long) HEAD.getOpaque(this);
+        final int slot = (int) position & mask;
+        final long sequence = (long) SEQUENCES.getAcquire(sequences, slot);
+        if (sequence != position + 1) {
+            return null;
+        }
+        final var element = (E) ELEMENTS.getAcquire(elements, slot);
+        ELEMENTS.setRelease(elements, slot, null);
+        HEAD.setRelease(this, position + 1);
+        SEQUENCES.setRelease(sequences, slot, position + mask + 1);
+        return element;
+    }
+
+    /**
+     * @return an estimate of the amount of elements in the queue.
+     */
+    public int size() {
+        final long size = (long) TAIL.getVolatile(this) - (long) HEAD.getVolatile(this);
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * @return whether the queue seems to be empty.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the maximum amount of elements.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
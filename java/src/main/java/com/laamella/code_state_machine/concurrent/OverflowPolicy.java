@@ -0,0 +1,19 @@
+package com.laamella.code_state_machine.concurrent;
+
+/**
+ * What to do with an event when a mailbox is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Refuse the event with a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT,
+    /**
+     * Silently drop the event. Its completion future is cancelled.
+     */
+    DISCARD,
+    /**
+     * Make the sending thread wait until there is room.
+     */
+    BLOCK
+}
@@ -0,0 +1,61 @@
+package com.laamella.code_state_machine.concurrent;
+
+/**
+ * A snapshot of what a shard of a {@link ShardedRuntime} is doing.
+ */
+public final class ShardStatistics {
+    private final int shard;
+    private final int queueDepth;
+    private final int machineCount;
+    private final long processedEvents;
+    private final double eventsPerSecond;
+
+    ShardStatistics(int shard, int queueDepth, int machineCount, long processedEvents, double eventsPerSecond) {
+        this.shard = shard;
+        this.queueDepth = queueDepth;
+        this.machineCount = machineCount;
+        this.processedEvents = processedEvents;
+        this.eventsPerSecond = eventsPerSecond;
+    }
+
+    /**
+     * @return the number of the shard.
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * @return the amount of commands waiting in the mailbox of the shard.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the amount of machines owned by the shard.
+     */
+    public int getMachineCount() {
+        return machineCount;
+    }
+
+    /**
+     * @return the amount of events the shard has handled since it started.
+     */
+    public long getProcessedEvents() {
+        return processedEvents;
+    }
+
+    /**
+     * @return the amount of events handled per second, measured over the last
+     * second or so.
+     */
+    public double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Shard %d: %d queued, %d machines, %d processed, %.1f events/s", shard, queueDepth, machineCount, processedEvents, eventsPerSecond);
+    }
+}
@@ -0,0 +1,453 @@
+package com.laamella.code_state_machine.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.Machine;
+import com.laamella.code_state_machine.StateMachineInstance;
+import com.laamella.code_state_machine.util.Clock;
+import com.laamella.code_state_machine.util.TimerWheel;
+
+/**
+ * Hosts many independent machines, each identified by a key, and spreads them
+ * over a fixed amount of shards. Every shard is a single thread that owns its
+ * machines, so machines never need locking. Other threads talk to a shard
+ * through its lock-free mailbox.
+ * <p/>
+ * A machine is created by the factory when the first command for its key
+ * arrives. Every shard handles the commands in its mailbox, and sleeps until
+ * the next command or timer otherwise.
+ * <p/>
+ * A {@link StateMachineInstance} tells its shard when its time based
+ * conditions will be met, and is only polled after events, at those times,
+ * when the lookup of one of its asynchronous conditions completes, and when
+ * requested. Its clock must be the clock of the runtime. Conditions that
+ * change by themselves in another way should wake the machine with
+ * {@link #requestPoll(Object)}. Other machines are polled regularly.
+ * <p/>
+ * When a mailbox is full, an action of a machine that sends a command to its
+ * own shard can not wait for room, since only its own thread makes room. Such
+ * commands are rejected, also with the BLOCK overflow policy.
+ *
+ * @param <K> key type.
+ * @param <T> state type.
+ * @param <E> event type.
+ */
+public class ShardedRuntime<K, T, E> implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShardedRuntime.class);
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long DEFAULT_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int BATCH_SIZE = 1024;
+    private static final long BLOCK_PARK_NANOS = 10_000;
+    private static final long TIMER_TICK_MILLIS = 1;
+    private static final int TIMER_WHEEL_SIZE = 4096;
+
+    private final Function<? super K, ? extends Machine<T, E>> factory;
+    private final OverflowPolicy overflowPolicy;
+    private final long pollIntervalNanos;
+    private final Clock clock;
+    private final List<Shard> shards = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * Create a runtime with one shard per available processor, mailboxes of
+     * 8192 commands that reject commands when full, a poll every 10 milliseconds for
+     * machines that are not instances, and the system clock.
+     */
+    public ShardedRuntime(Function<? super K, ? extends Machine<T, E>> factory) {
+        this(factory, Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY, OverflowPolicy.REJECT, DEFAULT_POLL_INTERVAL_NANOS);
+    }
+
+    /**
+     * @param factory           creates the machine for a key.
+     * @param shardCount        the amount of shards, and therefore threads.
+     * @param capacity          the maximum amount of commands waiting for a
+     *                          shard.
+     * @param overflowPolicy    what to do with events that do not fit in a
+     *                          mailbox.
+     * @param pollIntervalNanos the time between polls of all machines in a
+     *                          shard.
+     */
+    public ShardedRuntime(Function<? super K, ? extends Machine<T, E>> factory, int shardCount, int capacity, OverflowPolicy overflowPolicy, long pollIntervalNanos) {
+        this(factory, shardCount, capacity, overflowPolicy, pollIntervalNanos, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock the clock of the instances the factory creates.
+     * @see #ShardedRuntime(Function, int, int, OverflowPolicy, long)
+     */
+    public ShardedRuntime(Function<? super K, ? extends Machine<T, E>> factory, int shardCount, int capacity, OverflowPolicy overflowPolicy, long pollIntervalNanos, Clock clock) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Need at least one shard");
+        }
+        this.factory = factory;
+        this.overflowPolicy = overflowPolicy;
+        this.pollIntervalNanos = pollIntervalNanos;
+        this.clock = clock;
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new Shard(i, capacity));
+        }
+        for (var shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Sends an event to the machine for the key.
+     *
+     * @return false if the event was discarded because the mailbox was full.
+     * @throws RejectedExecutionException if the mailbox was full and the
+     *                                    overflow policy is REJECT, or it is
+     *                                    BLOCK and this is the thread of the
+     *                                    shard, or the runtime has been
+     *                                    closed.
+     */
+    public boolean handleEvent(K key, E event) {
+        return shardFor(key).enqueue(new Command<>(key, event, null));
+    }
+
+    /**
+     * Runs a function on the machine for the key, on the thread of its shard.
+     * The function must not keep a reference to the machine.
+     */
+    public <R> CompletableFuture<R> ask(K key, Function<? super Machine<T, E>, R> question) {
+        return submit(new Command<K, E>(key, null, question));
+    }
+
+    /**
+     * Makes the shard of the key poll its machine soon. This never blocks or
+     * throws, so it is safe to call from any thread, also from the shard
+     * itself. It does nothing when there is no machine for the key, or when
+     * the runtime has been closed.
+     */
+    public void requestPoll(K key) {
+        shardFor(key).wake(key);
+    }
+
+    /**
+     * Removes the machine for the key. Unlike the other commands, this does
+     * not create a machine when there is none.
+     *
+     * @return a future with the removed machine, or with null when there was
+     * no machine for the key.
+     */
+    public CompletableFuture<Machine<T, E>> remove(K key) {
+        return submit(new Command<K, E>(key));
+    }
+
+    /**
+     * Enqueues a command with a future, which fails instead of throwing when
+     * the command is not accepted.
+     */
+    private <R> CompletableFuture<R> submit(Command<K, E> command) {
+        try {
+            if (!shardFor(command.key).enqueue(command)) {
+                command.future.cancel(false);
+            }
+        } catch (RejectedExecutionException e) {
+            command.future.completeExceptionally(e);
+        }
+        @SuppressWarnings("unchecked")
+        final var future = (CompletableFuture<R>) command.future;
+        return future;
+    }
+
+    /**
+     * @return a snapshot of the statistics of every shard.
+     */
+    public List<ShardStatistics> getShardStatistics() {
+        final var statistics = new ArrayList<ShardStatistics>();
+        for (var shard : shards) {
+            statistics.add(new ShardStatistics(shard.index, shard.mailbox.size(), shard.machineCount, shard.processedEvents, shard.eventsPerSecond));
+        }
+        return statistics;
+    }
+
+    /**
+     * Stops all shards after they have handled the commands that are already
+     * in their mailboxes, or being put in them, and waits for them. Commands
+     * sent after that are rejected. When the calling thread is
+     * interrupted while waiting, this returns early with the interrupt flag
+     * set, and the shards stop by themselves.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (var shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (var shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private Shard shardFor(K key) {
+        final int hash = key.hashCode();
+        return shards.get(Math.floorMod(hash ^ (hash >>> 16), shards.size()));
+    }
+
+    /**
+     * An event, a question or a removal for one machine.
+     */
+    private static final class Command<K, E> {
+        final K key;
+        final E event;
+        final Function<? super Machine<?, E>, ?> question;
+        final boolean removal;
+        final CompletableFuture<Object> future;
+
+        @SuppressWarnings("unchecked")
+        Command(K key, E event, Function<?, ?> question) {
+            this.key = key;
+            this.event = event;
+            this.question = (Function<? super Machine<?, E>, ?>) question;
+            this.removal = false;
+            this.future = question == null ? null : new CompletableFuture<>();
+        }
+
+        /**
+         * A removal.
+         */
+        Command(K key) {
+            this.key = key;
+            this.event = null;
+            this.question = null;
+            this.removal = true;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    private final class Shard implements Runnable {
+        final int index;
+        final MpscQueue<Command<K, E>> mailbox;
+        final Thread thread;
+        /** Only touched by the shard thread, like the other maps and the timers. */
+        final Map<K, Machine<T, E>> machines = new HashMap<>();
+        /** The machines that cannot tell when they need to be polled. */
+        final Map<K, Machine<T, E>> polledMachines = new HashMap<>();
+        final TimerWheel<K> timers;
+        /** The machines that asked to be polled. Not in the mailbox, so asking never blocks. */
+        final Set<K> pendingPolls = ConcurrentHashMap.newKeySet();
+        /** Set after adding to pendingPolls, so polls are done before the commands that were sent after them. */
+        volatile boolean pollsPending = false;
+        volatile boolean sleeping = false;
+        volatile int machineCount = 0;
+        volatile long processedEvents = 0;
+        volatile double eventsPerSecond = 0;
+        /**
+         * The threads that are putting a command in the mailbox. The shard
+         * does not stop before they are done, so their commands are handled.
+         */
+        final AtomicInteger enqueuing = new AtomicInteger();
+        /** When the current rate window started, and how many events had been handled then. */
+        long rateWindowStart = System.nanoTime();
+        long rateWindowEvents = 0;
+
+        Shard(int index, int capacity) {
+            this.index = index;
+            this.mailbox = new MpscQueue<>(capacity);
+            this.timers = new TimerWheel<>(clock.millis(), TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+            this.thread = Thread.ofPlatform().name("state-machine-shard-" + index).daemon().unstarted(this);
+        }
+
+        boolean enqueue(Command<K, E> command) {
+            // Counted before running is read, so a shard that saw running cleared also sees this.
+            enqueuing.incrementAndGet();
+            try {
+                if (!running) {
+                    throw new RejectedExecutionException("Runtime has been closed");
+                }
+                while (!mailbox.offer(command)) {
+                    if (overflowPolicy == OverflowPolicy.DISCARD) {
+                        return false;
+                    }
+                    if (overflowPolicy == OverflowPolicy.REJECT || Thread.currentThread() == thread) {
+                        throw new RejectedExecutionException("Mailbox of shard " + index + " is full");
+                    }
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                }
+            } finally {
+                enqueuing.decrementAndGet();
+            }
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        void wake(K key) {
+            if (running && pendingPolls.add(key)) {
+                pollsPending = true;
+                if (sleeping) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextPoll = System.nanoTime() + pollIntervalNanos;
+            // The mailbox is checked last: a command that is being enqueued is either counted or already in it.
+            while (running || enqueuing.get() != 0 || !mailbox.isEmpty()) {
+                int handled = 0;
+                Command<K, E> command;
+                while (handled < BATCH_SIZE && (command = mailbox.poll()) != null) {
+                    if (pollsPending) {
+                        pollPending();
+                    }
+                    handle(command);
+                    handled++;
+                }
+                if (pollsPending) {
+                    pollPending();
+                }
+
+                timers.expire(clock.millis(), this::pollExisting);
+                final long now = System.nanoTime();
+                if (now - nextPoll >= 0) {
+                    pollAll();
+                    nextPoll = now + pollIntervalNanos;
+                }
+                if (now - rateWindowStart >= RATE_WINDOW_NANOS) {
+                    eventsPerSecond = (processedEvents - rateWindowEvents) * 1e9 / (now - rateWindowStart);
+                    rateWindowStart = now;
+                    rateWindowEvents = processedEvents;
+                }
+
+                if (handled == 0 && running) {
+                    final boolean idle = eventsPerSecond == 0 && processedEvents == rateWindowEvents;
+                    sleeping = true;
+                    // Commands and polls that arrived before sleeping was set did not unpark this thread.
+                    if (mailbox.isEmpty() && !pollsPending) {
+                        LockSupport.parkNanos(this, sleepNanos(nextPoll));
+                    }
+                    sleeping = false;
+                    if (idle) {
+                        // Nothing was measured while sleeping, so the next window starts now.
+                        rateWindowStart = System.nanoTime();
+                    }
+                } else if (handled == 0) {
+                    // Closing, and waiting for the commands that are still being enqueued.
+                    Thread.onSpinWait();
+                }
+            }
+            log.debug("Shard {} stopped", index);
+        }
+
+        private long sleepNanos(long nextPoll) {
+            long sleep = polledMachines.isEmpty() ? Long.MAX_VALUE : nextPoll - System.nanoTime();
+            if (eventsPerSecond != 0 || processedEvents != rateWindowEvents) {
+                // Wake up at the end of the window, so the rate drops to zero when the events stop.
+                sleep = Math.min(sleep, rateWindowStart + RATE_WINDOW_NANOS - System.nanoTime());
+            }
+            final long nextTimer = timers.nextExpiration();
+            if (nextTimer != Long.MAX_VALUE) {
+                final long untilTimer = nextTimer - clock.millis();
+                sleep = Math.min(sleep, untilTimer > Long.MAX_VALUE / 1_000_000 ? Long.MAX_VALUE : untilTimer * 1_000_000);
+            }
+            return Math.max(0, sleep);
+        }
+
+        private Machine<T, E> machineFor(K key) {
+            var machine = machines.get(key);
+            if (machine == null) {
+                machine = factory.apply(key);
+                machines.put(key, machine);
+                if (machine instanceof StateMachineInstance<?, ?, ?> instance) {
+                    instance.setDeadlineListener(time -> timers.schedule(key, time));
+                    instance.setCompletionListener(() -> wake(key));
+                } else {
+                    polledMachines.put(key, machine);
+                }
+            }
+            return machine;
+        }
+
+        private void handle(Command<K, E> command) {
+            if (command.removal) {
+                remove(command);
+                return;
+            }
+            try {
+                final var machine = machineFor(command.key);
+                machineCount = machines.size();
+                if (command.question != null) {
+                    command.future.complete(command.question.apply(machine));
+                } else {
+                    machine.handleEvent(command.event);
+                    processedEvents++;
+                }
+            } catch (RuntimeException e) {
+                if (command.future != null) {
+                    command.future.completeExceptionally(e);
+                } else {
+                    log.error("Command for {} failed", command.key, e);
+                }
+            }
+            machineCount = machines.size();
+        }
+
+        private void remove(Command<K, E> command) {
+            final var machine = machines.remove(command.key);
+            polledMachines.remove(command.key);
+            machineCount = machines.size();
+            if (machine instanceof StateMachineInstance<?, ?, ?> instance) {
+                // It should not wake up this shard anymore.
+                instance.setDeadlineListener(null);
+                instance.setCompletionListener(null);
+            }
+            command.future.complete(machine);
+        }
+
+        private void pollPending() {
+            pollsPending = false;
+            for (var iterator = pendingPolls.iterator(); iterator.hasNext(); ) {
+                final var key = iterator.next();
+                iterator.remove();
+                pollExisting(key);
+            }
+        }
+
+        private void pollExisting(K key) {
+            final var machine = machines.get(key);
+            // The machine may have been removed since.
+            if (machine != null) {
+                try {
+                    machine.poll();
+                } catch (RuntimeException e) {
+                    log.error("Polling {} failed", key, e);
+                }
+            }
+        }
+
+        private void pollAll() {
+            for (var entry : polledMachines.entrySet()) {
+                try {
+                    entry.getValue().poll();
+                } catch (RuntimeException e) {
+                    log.error("Polling {} failed", entry.getKey(), e);
+                }
+            }
+        }
+    }
+}
@@ -1,23 +1,39 @@
 package com.laamella.code_state_machine.condition;
 
+import com.laamella.code_state_machine.util.Clock;
+
 /**
- * This condition is met after a certain amount of milliseconds.
+ * This condition is met after a certain amount of milliseconds. Instances of a
+ * compiled definition keep the time with their own clock instead.
  */
 public final class AfterCondition<E> extends NonEventBasedCondition<E> {
 	private final long milliseconds;
+	private final Clock clock;
 	private long minimalMeetTime;
 
 	public AfterCondition(long milliseconds) {
+		this(milliseconds, Clock.SYSTEM);
+	}
+
+	public AfterCondition(long milliseconds, Clock clock) {
 		this.milliseconds = milliseconds;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return the amount of milliseconds after which this condition is met.
+	 */
+	public long getMilliseconds() {
+		return milliseconds;
 	}
 
 	@Override
 	public boolean isMet() {
-		return System.currentTimeMillis() > minimalMeetTime;
+		return clock.millis() > minimalMeetTime;
 	}
 
 	@Override
 	public void reset() {
-		minimalMeetTime = System.currentTimeMillis() + milliseconds;
+		minimalMeetTime = clock.millis() + milliseconds;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package com.laamella.code_state_machine.condition;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * This condition is met when an asynchronous lookup has completed with a value
+ * that passes the test. The lookup is started when the source state is
+ * entered, and isMet() never waits for it: until the value is there, the
+ * condition is simply not met. A lookup that fails leaves the condition unmet
+ * until the source state is entered again.
+ * <p/>
+ * Like any condition, it is combined with the other conditions of its
+ * transition, which must all be met as well. The lookup is started together
+ * with theirs, not after they are met.
+ * <p/>
+ * Nobody polls a machine when a lookup completes, so a completion listener
+ * should wake it, for example by requesting a poll from the actor or runtime
+ * that runs it. Instances of a compiled definition keep the results per
+ * instance and tell their own completion listener instead. For start states
+ * that were never entered, the lookup is started when the condition is first
+ * evaluated.
+ *
+ * @param <E> event type.
+ * @param <V> the type of the value that is looked up.
+ */
+public final class AsyncCondition<E, V> extends NonEventBasedCondition<E> {
+    private final Supplier<? extends CompletionStage<? extends V>> lookup;
+    private final Predicate<? super V> test;
+    private volatile Runnable completionListener;
+    private volatile CompletableFuture<? extends V> result;
+
+    /**
+     * @param lookup starts the lookup, and should not block.
+     * @param test   tells whether the value meets the condition.
+     */
+    public AsyncCondition(Supplier<? extends CompletionStage<? extends V>> lookup, Predicate<? super V> test) {
+        this.lookup = lookup;
+        this.test = test;
+    }
+
+    /**
+     * @param completionListener called on the thread that completes a lookup,
+     *                           so it should only ask for a poll. Null to stop
+     *                           listening.
+     */
+    public void setCompletionListener(Runnable completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    /**
+     * Starts a lookup that is not kept by this condition. Used by instances of
+     * a compiled definition, which keep the result themselves.
+     *
+     * @param completionListener called when the lookup completes later, or
+     *                           null.
+     */
+    public CompletableFuture<? extends V> start(Runnable completionListener) {
+        final CompletableFuture<? extends V> started = lookup.get().toCompletableFuture();
+        if (completionListener != null && !started.isDone()) {
+            started.whenComplete((value, failure) -> completionListener.run());
+        }
+        return started;
+    }
+
+    /**
+     * @return whether the lookup has completed with a value that passes the
+     * test. Does not wait for it.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean isMet(CompletableFuture<?> started) {
+        return started != null && started.isDone() && !started.isCompletedExceptionally() && test.test((V) started.join());
+    }
+
+    @Override
+    public boolean isMet() {
+        var started = result;
+        if (started == null) {
+            started = start(completionListener);
+            result = started;
+        }
+        return isMet(started);
+    }
+
+    @Override
+    public void reset() {
+        result = start(completionListener);
+    }
+
+    @Override
+    public String toString() {
+        return "async";
+    }
+}
@@ -1,6 +1,7 @@
 package com.laamella.code_state_machine.condition;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -16,6 +17,13 @@ public final class MultiEventMatchCondition<E> extends EventBasedCondition<E> {
 		matchEvents = new HashSet<>(Arrays.asList(events));
 	}
 
+	/**
+	 * @return the events that this condition waits for.
+	 */
+	public Set<E> getEvents() {
+		return Collections.unmodifiableSet(matchEvents);
+	}
+
 	@Override
 	public String toString() {
 		var str = new StringBuilder("one of (");
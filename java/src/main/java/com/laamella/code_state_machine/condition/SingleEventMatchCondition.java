@@ -11,6 +11,13 @@ public final class SingleEventMatchCondition<E> extends EventBasedCondition<E> {
         this.singleEvent = singleEvent;
     }
 
+    /**
+     * @return the event that this condition waits for.
+     */
+    public E getEvent() {
+        return singleEvent;
+    }
+
     @Override
     public String toString() {
         return "is " + singleEvent;
@@ -1,7 +1,9 @@
 package com.laamella.code_state_machine.condition;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
 import com.laamella.code_state_machine.StateMachine;
 
@@ -18,6 +20,20 @@ public final class StatesActiveCondition<T, E, P extends Comparable<P>> extends
         this.statesThatMustBeActive = new HashSet<>(Arrays.asList(statesThatMustBeActive));
     }
 
+    /**
+     * @return the machine whose active states are checked.
+     */
+    public StateMachine<T, E, P> getStateMachine() {
+        return stateMachine;
+    }
+
+    /**
+     * @return the states that must be active.
+     */
+    public Set<T> getStates() {
+        return Collections.unmodifiableSet(statesThatMustBeActive);
+    }
+
     @Override
     public boolean isMet() {
         return stateMachine.getActiveStates().containsAll(statesThatMustBeActive);
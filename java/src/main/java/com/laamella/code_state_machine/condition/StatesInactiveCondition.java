@@ -1,5 +1,9 @@
 package com.laamella.code_state_machine.condition;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import com.laamella.code_state_machine.StateMachine;
 
 /**
@@ -15,6 +19,20 @@ public final class StatesInactiveCondition<T, E, P extends Comparable<P>> extend
         this.statesThatMustBeInactive = statesThatMustBeInactive;
     }
 
+    /**
+     * @return the machine whose active states are checked.
+     */
+    public StateMachine<T, E, P> getStateMachine() {
+        return stateMachine;
+    }
+
+    /**
+     * @return the states that must be inactive.
+     */
+    public List<T> getStates() {
+        return Collections.unmodifiableList(Arrays.asList(statesThatMustBeInactive));
+    }
+
     @Override
     public boolean isMet() {
         for (var stateThatMustBeInactive : statesThatMustBeInactive) {
@@ -22,6 +22,13 @@ public final class SubStateMachineCondition<T, E, P extends Comparable<P>> exten
         this.stateMachine = stateMachine;
     }
 
+    /**
+     * @return the embedded state machine.
+     */
+    public StateMachine<T, E, P> getStateMachine() {
+        return stateMachine;
+    }
+
     @Override
     protected boolean conditionIsMetAfterHandlingEvent(E event) {
         stateMachine.handleEvent(event);
@@ -0,0 +1,34 @@
+package com.laamella.code_state_machine.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns events into bytes and back, for the {@link EventJournal}.
+ *
+ * @param <E> event type.
+ */
+public interface EventCodec<E> {
+    void write(E event, DataOutput output) throws IOException;
+
+    E read(DataInput input) throws IOException;
+
+    /**
+     * @return a codec that stores enum constants by name, so constants can be
+     * added and reordered.
+     */
+    static <E extends Enum<E>> EventCodec<E> ofEnum(Class<E> type) {
+        return new EventCodec<>() {
+            @Override
+            public void write(E event, DataOutput output) throws IOException {
+                output.writeUTF(event.name());
+            }
+
+            @Override
+            public E read(DataInput input) throws IOException {
+                return Enum.valueOf(type, input.readUTF());
+            }
+        };
+    }
+}
@@ -0,0 +1,560 @@
+package com.laamella.code_state_machine.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.StateMachineInstance;
+
+/**
+ * Records the events of many instances, each identified by an id, in append
+ * only files, so the instances can be recovered after a crash.
+ * <p/>
+ * Appending only puts the record in the current batch. A single writer thread
+ * writes a whole batch and forces it to disk at once, while the next batch
+ * fills up. The future returned by an append completes when its batch is on
+ * disk, so callers that must not lose an event wait for it before acting on
+ * it.
+ * <p/>
+ * Every instance gets a snapshot in the journal after a number of events, so
+ * replaying only needs to restore the latest snapshot and handle the events
+ * after it. The journal is split into segments of about the same size, named
+ * after the position of their first record. Every record has a checksum, so
+ * a record that was only half written during a crash is dropped when the
+ * journal is opened again. A segment is deleted once every instance in it has
+ * a snapshot in a later segment.
+ * <p/>
+ * When writing a batch fails, its futures fail and the batch is cut off the
+ * segment again, so the batches after it are not stuck behind a broken
+ * record. When even that fails, or no new segment can be started, the journal
+ * fails and rejects everything that is appended after that.
+ *
+ * @param <E> event type.
+ */
+public final class EventJournal<E> implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(EventJournal.class);
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    /** The length and the checksum of a record. */
+    private static final int RECORD_HEADER_BYTES = 8;
+    /** The type and the id of a record. */
+    private static final int RECORD_KEY_BYTES = 9;
+    private static final byte EVENT = 0;
+    private static final byte SNAPSHOT = 1;
+
+    private final Path directory;
+    private final EventCodec<E> codec;
+    private final long segmentBytes;
+    private final int snapshotInterval;
+    private final SegmentOpener opener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchAvailable = lock.newCondition();
+    private Batch batch = new Batch();
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOutput = new DataOutputStream(record);
+    private final CRC32 checksum = new CRC32();
+    private final Map<Long, Integer> eventsSinceSnapshot = new HashMap<>();
+    private boolean closed = false;
+    private IOException failure;
+
+    /** Only used by the writer thread after construction. */
+    private FileChannel segment;
+    private long segmentStart;
+    /** The ids that have records in each segment, by the start of the segment. */
+    private final TreeMap<Long, Set<Long>> segmentIds = new TreeMap<>();
+    /** The start of the segment with the latest snapshot, by id. */
+    private final Map<Long, Long> snapshotSegments = new HashMap<>();
+    private final Thread writer;
+
+    /**
+     * Opens the journal in the directory, with segments of 64 MB and a snapshot
+     * every thousand events.
+     */
+    public EventJournal(Path directory, EventCodec<E> codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_BYTES, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Opens the journal in the directory, creating it when needed. A record
+     * that was half written at the end is removed.
+     *
+     * @param segmentBytes     the size at which a new segment is started.
+     * @param snapshotInterval the amount of events of an instance after which
+     *                         {@link #handleEvent(long, StateMachineInstance, Object)}
+     *                         takes a snapshot of it.
+     */
+    public EventJournal(Path directory, EventCodec<E> codec, long segmentBytes, int snapshotInterval) throws IOException {
+        this(directory, codec, segmentBytes, snapshotInterval,
+                path -> FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    EventJournal(Path directory, EventCodec<E> codec, long segmentBytes, int snapshotInterval, SegmentOpener opener) throws IOException {
+        if (segmentBytes <= 0 || snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Segment size and snapshot interval must be positive");
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentBytes = segmentBytes;
+        this.snapshotInterval = snapshotInterval;
+        this.opener = opener;
+        Files.createDirectories(directory);
+
+        final var segments = segments();
+        long end = 0;
+        for (var path : segments) {
+            final long start = startOf(path);
+            segmentIds.put(start, new HashSet<>());
+            end = readSegment(path, (type, id, payload) -> index(start, type, id));
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            final var last = segments.get(segments.size() - 1);
+            openSegment(startOf(last));
+            if (end < segment.size()) {
+                log.warn("Dropping {} bytes of half written records at the end of {}", segment.size() - end, last);
+                segment.truncate(end);
+            }
+            segment.position(end);
+            deleteObsoleteSegments();
+        }
+
+        writer = Thread.ofPlatform().name("event-journal").daemon().start(this::writeBatches);
+    }
+
+    /**
+     * Adds the event for the instance to the journal.
+     *
+     * @return a future that completes when the event is on disk.
+     * @throws IllegalStateException when the journal was closed or has failed.
+     */
+    public CompletableFuture<Void> append(long id, E event) {
+        lock.lock();
+        try {
+            record.reset();
+            recordOutput.writeByte(EVENT);
+            recordOutput.writeLong(id);
+            codec.write(event, recordOutput);
+            final var committed = addRecord();
+            eventsSinceSnapshot.merge(id, 1, Integer::sum);
+            return committed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a snapshot of the instance to the journal. Replaying starts at the
+     * latest snapshot.
+     *
+     * @return a future that completes when the snapshot is on disk.
+     * @throws IllegalStateException when the journal was closed or has failed.
+     */
+    public CompletableFuture<Void> snapshot(long id, StateMachineInstance<?, E, ?> instance) {
+        final var snapshot = Snapshots.toBytes(instance);
+        lock.lock();
+        try {
+            record.reset();
+            recordOutput.writeByte(SNAPSHOT);
+            recordOutput.writeLong(id);
+            recordOutput.write(snapshot);
+            final var committed = addRecord();
+            eventsSinceSnapshot.remove(id);
+            return committed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the instance had enough events since its last snapshot
+     * to take a new one.
+     */
+    public boolean isSnapshotDue(long id) {
+        lock.lock();
+        try {
+            return eventsSinceSnapshot.getOrDefault(id, 0) >= snapshotInterval;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the event, lets the instance handle it, and takes a snapshot when
+     * one is due.
+     *
+     * @return a future that completes when the event, and the snapshot if one
+     * was taken, are on disk.
+     */
+    public CompletableFuture<Void> handleEvent(long id, StateMachineInstance<?, E, ?> instance, E event) {
+        final var appended = append(id, event);
+        instance.handleEvent(event);
+        return isSnapshotDue(id) ? snapshot(id, instance) : appended;
+    }
+
+    /**
+     * Recovers every instance in the journal. This should be done before
+     * anything is appended.
+     *
+     * @param factory         creates an instance with the start states active
+     *                        for an id.
+     * @param suppressActions whether to skip the actions while replaying the
+     *                        events, because they already had their effect.
+     * @return the recovered instances by id.
+     */
+    public <T, P extends Comparable<P>> Map<Long, StateMachineInstance<T, E, P>> replay(LongFunction<StateMachineInstance<T, E, P>> factory, boolean suppressActions) throws IOException {
+        final var recoveries = new HashMap<Long, Recovery<E>>();
+        for (var path : segments()) {
+            readSegment(path, (type, id, payload) ->
+                    recoveries.computeIfAbsent(id, i -> new Recovery<>()).add(type, payload, codec));
+        }
+        final var instances = new HashMap<Long, StateMachineInstance<T, E, P>>();
+        recoveries.forEach((id, recovery) -> instances.put(id, recovery.replay(factory.apply(id), suppressActions)));
+        lock.lock();
+        try {
+            recoveries.forEach((id, recovery) -> eventsSinceSnapshot.put(id, recovery.events.size()));
+        } finally {
+            lock.unlock();
+        }
+        return instances;
+    }
+
+    /**
+     * Recovers one instance.
+     *
+     * @param instance        an instance with the start states active.
+     * @param suppressActions whether to skip the actions while replaying the
+     *                        events, because they already had their effect.
+     * @return false if nothing was journaled for the id.
+     */
+    public boolean replay(long id, StateMachineInstance<?, E, ?> instance, boolean suppressActions) throws IOException {
+        final var recovery = new Recovery<E>();
+        for (var path : segments()) {
+            readSegment(path, (type, recordId, payload) -> {
+                if (recordId == id) {
+                    recovery.add(type, payload, codec);
+                }
+            });
+        }
+        if (recovery.snapshot == null && recovery.events.isEmpty()) {
+            return false;
+        }
+        recovery.replay(instance, suppressActions);
+        lock.lock();
+        try {
+            eventsSinceSnapshot.put(id, recovery.events.size());
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for everything that was appended to be on disk, and stops the
+     * writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            batchAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+
+    /**
+     * Moves the record into the batch. Must hold the lock.
+     */
+    private CompletableFuture<Void> addRecord() {
+        if (closed) {
+            throw new IllegalStateException("The journal is closed");
+        }
+        if (failure != null) {
+            throw new IllegalStateException("The journal has failed", failure);
+        }
+        checksum.reset();
+        checksum.update(record.array(), 0, record.size());
+        final var output = batch.output;
+        try {
+            output.writeInt(record.size());
+            output.writeInt((int) checksum.getValue());
+            record.writeTo(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        batchAvailable.signal();
+        return batch.committed;
+    }
+
+    private void writeBatches() {
+        while (true) {
+            final Batch full;
+            lock.lock();
+            try {
+                while (batch.bytes.size() == 0 && !closed) {
+                    batchAvailable.awaitUninterruptibly();
+                }
+                if (batch.bytes.size() == 0) {
+                    return;
+                }
+                full = batch;
+                batch = new Batch();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writeBatch(full);
+            } catch (IOException e) {
+                log.error("The journal failed and no longer accepts records", e);
+                fail(full, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the batch and forces it to disk. When that fails, the batch is cut
+     * off again, so the next batch does not end up behind a broken record.
+     *
+     * @throws IOException when the segment could not be cut off, or a new one
+     *                     could not be started, so nothing can be written
+     *                     anymore.
+     */
+    private void writeBatch(Batch full) throws IOException {
+        final long batchStart = segment.position();
+        try {
+            final var buffer = ByteBuffer.wrap(full.bytes.array(), 0, full.bytes.size());
+            while (buffer.hasRemaining()) {
+                segment.write(buffer);
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            log.error("Writing the journal failed", e);
+            full.committed.completeExceptionally(e);
+            segment.truncate(batchStart);
+            segment.position(batchStart);
+            return;
+        }
+        full.committed.complete(null);
+        final var records = ByteBuffer.wrap(full.bytes.array(), 0, full.bytes.size());
+        while (records.hasRemaining()) {
+            final int length = records.getInt();
+            final int key = records.position() + 4;
+            index(segmentStart, records.get(key), records.getLong(key + 1));
+            records.position(key + length);
+        }
+        if (segment.size() >= segmentBytes) {
+            final long end = segmentStart + segment.size();
+            segment.close();
+            openSegment(end);
+            deleteObsoleteSegments();
+        }
+    }
+
+    /**
+     * Fails the batch that could not be written and the one that was filling
+     * up, and makes every later append throw.
+     */
+    private void fail(Batch full, IOException e) {
+        final Batch rejected;
+        lock.lock();
+        try {
+            failure = e;
+            rejected = batch;
+            batch = new Batch();
+        } finally {
+            lock.unlock();
+        }
+        full.committed.completeExceptionally(e);
+        rejected.committed.completeExceptionally(e);
+    }
+
+    private void openSegment(long start) throws IOException {
+        segmentStart = start;
+        segmentIds.computeIfAbsent(start, s -> new HashSet<>());
+        segment = opener.open(segmentPath(start));
+    }
+
+    private void index(long start, byte type, long id) {
+        segmentIds.get(start).add(id);
+        if (type == SNAPSHOT) {
+            snapshotSegments.put(id, start);
+        }
+    }
+
+    /**
+     * Deletes the segments before the current one in which every id has a
+     * snapshot in a later segment, because replaying starts after those.
+     */
+    private void deleteObsoleteSegments() {
+        final var segments = segmentIds.headMap(segmentStart).entrySet().iterator();
+        next:
+        while (segments.hasNext()) {
+            final var entry = segments.next();
+            final long start = entry.getKey();
+            for (var id : entry.getValue()) {
+                if (snapshotSegments.getOrDefault(id, -1L) <= start) {
+                    continue next;
+                }
+            }
+            final var path = segmentPath(start);
+            try {
+                Files.deleteIfExists(path);
+                segments.remove();
+            } catch (IOException e) {
+                log.warn("Deleting {} failed", path, e);
+            }
+        }
+    }
+
+    private Path segmentPath(long start) {
+        return directory.resolve(String.format("%020d%s", start, SEGMENT_SUFFIX));
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+    }
+
+    private static long startOf(Path segment) {
+        final var name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Hands every intact record in the segment to the visitor, stopping at the
+     * first one that is not.
+     *
+     * @return the position after the last intact record.
+     */
+    private static long readSegment(Path path, RecordVisitor visitor) throws IOException {
+        final long size = Files.size(path);
+        final var crc = new CRC32();
+        var record = new byte[256];
+        long position = 0;
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (size - position >= RECORD_HEADER_BYTES) {
+                final int length = input.readInt();
+                final int expectedChecksum = input.readInt();
+                if (length < RECORD_KEY_BYTES || length > size - position - RECORD_HEADER_BYTES) {
+                    return position;
+                }
+                if (length > record.length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                input.readFully(record, 0, length);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != expectedChecksum) {
+                    return position;
+                }
+                final var buffer = ByteBuffer.wrap(record, 0, length);
+                visitor.visit(buffer.get(), buffer.getLong(), buffer.slice());
+                position += RECORD_HEADER_BYTES + length;
+            }
+        }
+        return position;
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @param payload only valid during the call, because the buffer is
+         *                reused for the next record.
+         */
+        void visit(byte type, long id, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Opens the channel of a segment, creating the file when needed.
+     */
+    interface SegmentOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    /**
+     * The latest snapshot of an instance and the events after it.
+     */
+    private static final class Recovery<E> {
+        private byte[] snapshot;
+        private final List<E> events = new ArrayList<>();
+
+        void add(byte type, ByteBuffer payload, EventCodec<E> codec) throws IOException {
+            if (type == SNAPSHOT) {
+                snapshot = new byte[payload.remaining()];
+                payload.get(snapshot);
+                events.clear();
+            } else {
+                events.add(codec.read(new DataInputStream(new ByteArrayInputStream(payload.array(), payload.arrayOffset(), payload.remaining()))));
+            }
+        }
+
+        <I extends StateMachineInstance<?, E, ?>> I replay(I instance, boolean suppressActions) {
+            if (snapshot != null) {
+                Snapshots.read(instance, ByteBuffer.wrap(snapshot));
+            }
+            instance.setActionsSuppressed(suppressActions);
+            try {
+                instance.handleEvents(events);
+            } finally {
+                instance.setActionsSuppressed(false);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Records waiting to be written, and the future of their commit.
+     */
+    private static final class Batch {
+        private final RecordBuffer bytes = new RecordBuffer();
+        private final DataOutputStream output = new DataOutputStream(bytes);
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+    }
+
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
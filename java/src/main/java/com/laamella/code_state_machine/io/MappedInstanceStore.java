@@ -0,0 +1,341 @@
+package com.laamella.code_state_machine.io;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.StateMachineInstance;
+import com.laamella.code_state_machine.util.Bits;
+
+/**
+ * Keeps the state of many instances of one definition in a memory mapped file,
+ * so they do not have to be on the heap while they are not used. Every id from
+ * 0 up to the capacity has a fixed size record, holding the active states, the
+ * event flags, the time left on every timer, and the same for every sub
+ * machine. Instances are copied straight from and to their record.
+ * <p/>
+ * The file survives restarts. Records refer to states by their dense index
+ * and to conditions by their slot, so the file keeps the
+ * {@link StateMachineDefinition#getFingerprint() fingerprint} of the
+ * definition, and is only opened with a definition that has the same one.
+ * Timers keep running while an instance is in the
+ * store, so they are stored with the wall clock time at which they were
+ * stored. Conditions that were not compiled are not stored.
+ * <p/>
+ * Any amount of threads can load records at the same time. Every record must
+ * have only one thread storing it at a time. Readers never see half a store:
+ * every record has a sequence number that is odd while it is being written,
+ * and readers try again when it changed while they were reading.
+ * <p/>
+ * A record that was being written when the process died is left with an odd
+ * sequence number and half a body. Such records are emptied when the store is
+ * opened.
+ *
+ * @param <T> state type.
+ * @param <E> event type.
+ * @param <P> priority type.
+ */
+public final class MappedInstanceStore<T, E, P extends Comparable<P>> implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MappedInstanceStore.class);
+
+    private static final long MAGIC = 0x43534d53544f5245L;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 128;
+    private static final int MAXIMUM_CHUNK_BYTES = 1 << 30;
+    /** How often a reader tries again before it gives up on a record that is being written. */
+    private static final int MAXIMUM_READ_ATTEMPTS = 1 << 20;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final StateMachineDefinition<T, E, P> definition;
+    private final long capacity;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    /** The amount of longs in a record, including the sequence number and the store time. */
+    private final int recordLongs;
+    private final int recordsPerChunk;
+
+    /**
+     * Opens the store in the file, creating it when it does not exist.
+     *
+     * @throws IllegalArgumentException when the file holds a store for a
+     *                                  definition of another shape or with
+     *                                  another fingerprint, or of another
+     *                                  capacity.
+     */
+    public MappedInstanceStore(Path file, StateMachineDefinition<T, E, P> definition, long capacity) throws IOException {
+        this.definition = definition;
+        this.capacity = capacity;
+        final var shape = definition.newInstance();
+        recordLongs = 2 + bodyLongs(shape);
+        final int recordBytes = recordLongs * 8;
+        recordsPerChunk = Math.max(1, MAXIMUM_CHUNK_BYTES / recordBytes);
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final boolean isNew = channel.size() == 0;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            final var internals = shape.new Internals();
+            if (isNew) {
+                header.putLong(8, VERSION);
+                header.putLong(16, recordLongs);
+                header.putLong(24, capacity);
+                header.putLong(32, definition.getStateCount());
+                header.putLong(40, internals.getFlagCount());
+                header.putLong(48, internals.getTimerCount());
+                header.putLong(56, internals.getSubMachineCount());
+                header.putLong(64, definition.getFingerprint());
+                header.putLong(0, MAGIC);
+            } else if (header.getLong(0) != MAGIC || header.getLong(8) != VERSION) {
+                throw new IllegalArgumentException("Not an instance store of a supported version: " + file);
+            } else if (header.getLong(16) != recordLongs || header.getLong(24) != capacity
+                    || header.getLong(32) != definition.getStateCount() || header.getLong(40) != internals.getFlagCount()
+                    || header.getLong(48) != internals.getTimerCount() || header.getLong(56) != internals.getSubMachineCount()) {
+                throw new IllegalArgumentException("Instance store does not fit the definition: " + file);
+            } else if (header.getLong(64) != definition.getFingerprint()) {
+                throw new IllegalArgumentException("Instance store was written for another definition: " + file);
+            }
+
+            for (long first = 0; first < capacity; first += recordsPerChunk) {
+                final long records = Math.min(recordsPerChunk, capacity - first);
+                final var chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first * recordBytes, records * recordBytes);
+                chunk.order(ByteOrder.LITTLE_ENDIAN);
+                chunks.add(chunk);
+            }
+            if (!isNew) {
+                emptyTornRecords();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Empties the records that were being written when the store was last
+     * used, so readers do not wait for a writer that is gone.
+     */
+    private void emptyTornRecords() {
+        long torn = 0;
+        for (long id = 0; id < capacity; id++) {
+            final var chunk = chunkOf(id);
+            final int offset = offsetOf(id);
+            final long sequence = chunk.getLong(offset);
+            if ((sequence & 1) != 0) {
+                chunk.putLong(offset + 8, 0);
+                LONGS.setRelease(chunk, offset, sequence + 1);
+                torn++;
+            }
+        }
+        if (torn > 0) {
+            log.warn("Emptied {} half written records", torn);
+        }
+    }
+
+    /**
+     * @return the definition of the stored instances.
+     */
+    public StateMachineDefinition<T, E, P> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return the amount of records; ids go from 0 up to this.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies the state of the instance into the record of the id.
+     */
+    public void store(long id, StateMachineInstance<T, E, P> instance) {
+        final var chunk = chunkOf(id);
+        final int offset = offsetOf(id);
+        final long sequence = (long) LONGS.getAcquire(chunk, offset);
+        LONGS.setRelease(chunk, offset, sequence + 1);
+        VarHandle.storeStoreFence();
+        chunk.putLong(offset + 8, System.currentTimeMillis());
+        writeBody(instance, chunk, offset + 16);
+        LONGS.setRelease(chunk, offset, sequence + 2);
+    }
+
+    /**
+     * Replaces the state of the instance with the record of the id. No actions
+     * are run.
+     *
+     * @return false if nothing was stored for the id, leaving the instance
+     * alone.
+     * @throws IllegalStateException when the record kept changing, or stayed
+     *                               half written, for too long.
+     */
+    public boolean load(long id, StateMachineInstance<T, E, P> instance) {
+        final var chunk = chunkOf(id);
+        final int offset = offsetOf(id);
+        final var record = new long[recordLongs];
+        for (int attempt = 0; ; attempt++) {
+            final long sequence = (long) LONGS.getAcquire(chunk, offset);
+            if ((sequence & 1) == 0) {
+                for (int i = 1; i < recordLongs; i++) {
+                    record[i] = chunk.getLong(offset + i * 8);
+                }
+                VarHandle.loadLoadFence();
+                if ((long) LONGS.getAcquire(chunk, offset) == sequence) {
+                    break;
+                }
+            }
+            if (attempt == MAXIMUM_READ_ATTEMPTS) {
+                throw new IllegalStateException("Record " + id + " is being written for too long");
+            }
+            Thread.onSpinWait();
+        }
+        final long storedAt = record[1];
+        if (storedAt == 0) {
+            return false;
+        }
+        readBody(instance, record, 2, System.currentTimeMillis() - storedAt);
+        return true;
+    }
+
+    /**
+     * @return a new instance with the state from the record of the id, or
+     * null if nothing was stored for it.
+     */
+    public StateMachineInstance<T, E, P> load(long id) {
+        final var instance = definition.newInstance();
+        return load(id, instance) ? instance : null;
+    }
+
+    public boolean contains(long id) {
+        return (long) LONGS.getAcquire(chunkOf(id), offsetOf(id) + 8) != 0;
+    }
+
+    /**
+     * Forgets the record of the id.
+     */
+    public void remove(long id) {
+        final var chunk = chunkOf(id);
+        final int offset = offsetOf(id);
+        final long sequence = (long) LONGS.getAcquire(chunk, offset);
+        LONGS.setRelease(chunk, offset, sequence + 1);
+        VarHandle.storeStoreFence();
+        chunk.putLong(offset + 8, 0);
+        LONGS.setRelease(chunk, offset, sequence + 2);
+    }
+
+    /**
+     * Writes all changes to the file.
+     */
+    public void force() {
+        header.force();
+        for (var chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private MappedByteBuffer chunkOf(long id) {
+        if (id < 0 || id >= capacity) {
+            throw new IndexOutOfBoundsException("Id " + id + " is outside the store");
+        }
+        return chunks.get((int) (id / recordsPerChunk));
+    }
+
+    private int offsetOf(long id) {
+        return (int) (id % recordsPerChunk) * recordLongs * 8;
+    }
+
+    private static int bodyLongs(StateMachineInstance<?, ?, ?> instance) {
+        final var internals = instance.new Internals();
+        int longs = Bits.words(instance.getDefinition().getStateCount()) + Bits.words(internals.getFlagCount()) + internals.getTimerCount();
+        for (int subMachine = 0; subMachine < internals.getSubMachineCount(); subMachine++) {
+            longs += bodyLongs(internals.getSubMachine(subMachine));
+        }
+        return longs;
+    }
+
+    /**
+     * @return the offset after the body.
+     */
+    private static int writeBody(StateMachineInstance<?, ?, ?> instance, MappedByteBuffer chunk, int offset) {
+        final var internals = instance.new Internals();
+        final int stateWords = Bits.words(instance.getDefinition().getStateCount());
+        int state = internals.nextActiveState(0);
+        for (int word = 0; word < stateWords; word++) {
+            long bits = 0;
+            while (state >= 0 && state >>> 6 == word) {
+                bits |= 1L << state;
+                state = internals.nextActiveState(state + 1);
+            }
+            chunk.putLong(offset, bits);
+            offset += 8;
+        }
+        final int flagCount = internals.getFlagCount();
+        for (int word = 0; word < Bits.words(flagCount); word++) {
+            long bits = 0;
+            for (int slot = word << 6; slot < Math.min(flagCount, (word + 1) << 6); slot++) {
+                if (internals.isFlagSet(slot)) {
+                    bits |= 1L << slot;
+                }
+            }
+            chunk.putLong(offset, bits);
+            offset += 8;
+        }
+        for (int timer = 0; timer < internals.getTimerCount(); timer++) {
+            chunk.putLong(offset, Math.max(internals.getRemainingMilliseconds(timer), -1));
+            offset += 8;
+        }
+        for (int subMachine = 0; subMachine < internals.getSubMachineCount(); subMachine++) {
+            offset = writeBody(internals.getSubMachine(subMachine), chunk, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * @return the index after the body.
+     */
+    private static int readBody(StateMachineInstance<?, ?, ?> instance, long[] record, int index, long elapsedMilliseconds) {
+        final var internals = instance.new Internals();
+        internals.clear();
+        final int stateCount = instance.getDefinition().getStateCount();
+        for (int word = 0; word < Bits.words(stateCount); word++) {
+            long bits = record[index++];
+            while (bits != 0) {
+                internals.activate((word << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        for (int word = 0; word < Bits.words(internals.getFlagCount()); word++) {
+            long bits = record[index++];
+            while (bits != 0) {
+                internals.setFlag((word << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        for (int timer = 0; timer < internals.getTimerCount(); timer++) {
+            final long remaining = record[index++];
+            internals.setRemainingMilliseconds(timer, remaining < 0 ? -1 : Math.max(remaining - elapsedMilliseconds, -1));
+        }
+        for (int subMachine = 0; subMachine < internals.getSubMachineCount(); subMachine++) {
+            index = readBody(internals.getSubMachine(subMachine), record, index, elapsedMilliseconds);
+        }
+        return index;
+    }
+}
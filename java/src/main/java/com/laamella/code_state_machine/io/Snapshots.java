@@ -0,0 +1,224 @@
+package com.laamella.code_state_machine.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.StateMachineInstance;
+
+/**
+ * Saves the state of a {@link StateMachineInstance} in a compact binary form,
+ * and restores it into an instance of the same definition.
+ * <p/>
+ * The snapshot starts with a format version and the
+ * {@link StateMachineDefinition#getFingerprint() fingerprint} of the
+ * definition, followed by its shape, so a snapshot does not get restored into
+ * a definition it does not fit, also not after a new build reordered the
+ * states or transitions. Then come the active states as ascending varint deltas, the event
+ * based conditions as a bitset, the time left for every time based condition,
+ * and the sub machines in the same form. Conditions that were not compiled
+ * keep their state in the condition object, so it is not saved.
+ */
+public final class Snapshots {
+    /** The version of the format that is written. */
+    public static final int VERSION = 2;
+
+    private Snapshots() {
+    }
+
+    public static void write(StateMachineInstance<?, ?, ?> instance, ByteBuffer buffer) {
+        buffer.put((byte) VERSION);
+        buffer.putLong(instance.getDefinition().getFingerprint());
+        writeInstance(instance, buffer);
+    }
+
+    public static void write(StateMachineInstance<?, ?, ?> instance, OutputStream output) throws IOException {
+        final var buffer = ByteBuffer.allocate(maximumSize(instance));
+        write(instance, buffer);
+        output.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * @return the snapshot of the instance as a byte array.
+     */
+    public static byte[] toBytes(StateMachineInstance<?, ?, ?> instance) {
+        final var buffer = ByteBuffer.allocate(maximumSize(instance));
+        write(instance, buffer);
+        final var bytes = new byte[buffer.position()];
+        buffer.flip().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the amount of bytes a snapshot of the instance takes at most.
+     */
+    public static int maximumSize(StateMachineInstance<?, ?, ?> instance) {
+        return 1 + 8 + maximumInstanceSize(instance);
+    }
+
+    /**
+     * Replaces the state of the instance by the snapshot. No actions are run.
+     *
+     * @throws IllegalArgumentException when the snapshot has an unknown
+     *                                  version, does not fit the definition
+     *                                  of the instance, or is corrupt.
+     */
+    public static void read(StateMachineInstance<?, ?, ?> instance, ByteBuffer buffer) {
+        try {
+            final int version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported snapshot version " + version);
+            }
+            if (buffer.getLong() != instance.getDefinition().getFingerprint()) {
+                throw new IllegalArgumentException("Snapshot was taken of another definition");
+            }
+            readInstance(instance, buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Snapshot is truncated", e);
+        }
+    }
+
+    public static void read(StateMachineInstance<?, ?, ?> instance, InputStream input) throws IOException {
+        read(instance, ByteBuffer.wrap(input.readAllBytes()));
+    }
+
+    /**
+     * @return a new instance of the definition with the state of the snapshot.
+     */
+    public static <T, E, P extends Comparable<P>> StateMachineInstance<T, E, P> restore(StateMachineDefinition<T, E, P> definition, ByteBuffer buffer) {
+        final var instance = definition.newInstance();
+        read(instance, buffer);
+        return instance;
+    }
+
+    private static void writeInstance(StateMachineInstance<?, ?, ?> instance, ByteBuffer buffer) {
+        final var internals = instance.new Internals();
+        final int flagCount = internals.getFlagCount();
+        final int timerCount = internals.getTimerCount();
+        final int subMachineCount = internals.getSubMachineCount();
+        writeVarint(buffer, instance.getDefinition().getStateCount());
+        writeVarint(buffer, flagCount);
+        writeVarint(buffer, timerCount);
+        writeVarint(buffer, subMachineCount);
+
+        writeVarint(buffer, internals.getActiveStateCount());
+        int previous = -1;
+        for (int state = internals.nextActiveState(0); state >= 0; state = internals.nextActiveState(state + 1)) {
+            writeVarint(buffer, state - previous - 1);
+            previous = state;
+        }
+
+        for (int flagByte = 0; flagByte < flagCount; flagByte += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8 && flagByte + bit < flagCount; bit++) {
+                if (internals.isFlagSet(flagByte + bit)) {
+                    bits |= 1 << bit;
+                }
+            }
+            buffer.put((byte) bits);
+        }
+
+        for (int timer = 0; timer < timerCount; timer++) {
+            // Everything that is met already is the same, so a small number is enough.
+            final long remaining = Math.max(internals.getRemainingMilliseconds(timer), -1);
+            writeVarlong(buffer, (remaining << 1) ^ (remaining >> 63));
+        }
+
+        for (int subMachine = 0; subMachine < subMachineCount; subMachine++) {
+            writeInstance(internals.getSubMachine(subMachine), buffer);
+        }
+    }
+
+    private static void readInstance(StateMachineInstance<?, ?, ?> instance, ByteBuffer buffer) {
+        final var internals = instance.new Internals();
+        final int stateCount = instance.getDefinition().getStateCount();
+        final int flagCount = internals.getFlagCount();
+        final int timerCount = internals.getTimerCount();
+        final int subMachineCount = internals.getSubMachineCount();
+        if (readVarint(buffer) != stateCount || readVarint(buffer) != flagCount
+                || readVarint(buffer) != timerCount || readVarint(buffer) != subMachineCount) {
+            throw new IllegalArgumentException("Snapshot does not fit the definition");
+        }
+
+        internals.clear();
+        final int activeCount = readVarint(buffer);
+        if (activeCount > stateCount) {
+            throw new IllegalArgumentException("Snapshot does not fit the definition");
+        }
+        int state = -1;
+        for (int i = 0; i < activeCount; i++) {
+            final int gap = readVarint(buffer);
+            if (gap >= stateCount - state - 1) {
+                throw new IllegalArgumentException("Snapshot does not fit the definition");
+            }
+            state += gap + 1;
+            internals.activate(state);
+        }
+
+        for (int flagByte = 0; flagByte < flagCount; flagByte += 8) {
+            final int bits = buffer.get();
+            for (int bit = 0; bit < 8 && flagByte + bit < flagCount; bit++) {
+                if ((bits & (1 << bit)) != 0) {
+                    internals.setFlag(flagByte + bit);
+                }
+            }
+        }
+
+        for (int timer = 0; timer < timerCount; timer++) {
+            final long zigZag = readVarlong(buffer);
+            internals.setRemainingMilliseconds(timer, (zigZag >>> 1) ^ -(zigZag & 1));
+        }
+
+        for (int subMachine = 0; subMachine < subMachineCount; subMachine++) {
+            readInstance(internals.getSubMachine(subMachine), buffer);
+        }
+    }
+
+    private static int maximumInstanceSize(StateMachineInstance<?, ?, ?> instance) {
+        final var internals = instance.new Internals();
+        int size = 5 * 5 + 5 * internals.getActiveStateCount() + (internals.getFlagCount() + 7) / 8 + 10 * internals.getTimerCount();
+        for (int subMachine = 0; subMachine < internals.getSubMachineCount(); subMachine++) {
+            size += maximumInstanceSize(internals.getSubMachine(subMachine));
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static void writeVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        final long value = readVarlong(buffer);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Malformed varint in snapshot");
+        }
+        return (int) value;
+    }
+
+    private static long readVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in snapshot");
+    }
+}
@@ -0,0 +1,49 @@
+package com.laamella.code_state_machine.util;
+
+/**
+ * Helpers for bitsets stored in long arrays.
+ */
+public final class Bits {
+    private Bits() {
+    }
+
+    /**
+     * @return the amount of longs needed to store this amount of bits.
+     */
+    public static int words(int bitCount) {
+        return (bitCount + 63) >>> 6;
+    }
+
+    public static boolean isSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    public static void clear(long[] bits, int index) {
+        bits[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * @return the index of the first set bit at or after fromIndex, or -1 if
+     * there is none.
+     */
+    public static int nextSet(long[] bits, int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long remaining = bits[word] & (-1L << fromIndex);
+        while (true) {
+            if (remaining != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(remaining);
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            remaining = bits[word];
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.laamella.code_state_machine.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -46,6 +47,14 @@ public class Chain<T> {
         return items;
     }
 
+    /**
+     * @return a read-only copy of the items in this chain, which may contain
+     * null.
+     */
+    public List<T> toList() {
+        return Collections.unmodifiableList(new ArrayList<>(items));
+    }
+
     @Override
     public String toString() {
         if (items.size() == 0) {
@@ -0,0 +1,19 @@
+package com.laamella.code_state_machine.util;
+
+/**
+ * The source of time for time based conditions, in milliseconds. Only the
+ * difference between two readings matters, so the time does not need to be
+ * related to the wall clock.
+ */
+@FunctionalInterface
+public interface Clock {
+    /**
+     * A monotonic clock based on {@link System#nanoTime()}.
+     */
+    Clock SYSTEM = () -> System.nanoTime() / 1_000_000;
+
+    /**
+     * @return the current time in milliseconds.
+     */
+    long millis();
+}
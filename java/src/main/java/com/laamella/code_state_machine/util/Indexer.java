@@ -0,0 +1,108 @@
+package com.laamella.code_state_machine.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a dense index, starting at 0, to each of a fixed set of values. Enum
+ * constants are indexed by their ordinal, so looking them up does not need any
+ * hashing. Other values are interned in the order in which they are given.
+ *
+ * @param <T> type of the indexed values.
+ */
+public abstract class Indexer<T> {
+    /**
+     * @return an indexer for the values. When all values are constants of the
+     * same enum, the indexer covers all constants of that enum.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <T> Indexer<T> of(Collection<T> values) {
+        Class<?> enumClass = null;
+        for (var value : values) {
+            if (!(value instanceof Enum<?> enumValue) || (enumClass != null && enumValue.getDeclaringClass() != enumClass)) {
+                return new InterningIndexer<>(values);
+            }
+            enumClass = enumValue.getDeclaringClass();
+        }
+        if (enumClass == null) {
+            return new InterningIndexer<>(values);
+        }
+        return new EnumIndexer(enumClass);
+    }
+
+    /**
+     * @return the index of the value, or -1 if it is not indexed.
+     */
+    public abstract int indexOf(Object value);
+
+    /**
+     * @return the value with this index.
+     */
+    public abstract T get(int index);
+
+    /**
+     * @return the amount of indexed values.
+     */
+    public abstract int size();
+
+    private static final class EnumIndexer<T extends Enum<T>> extends Indexer<T> {
+        private final Class<T> enumClass;
+        private final T[] constants;
+
+        EnumIndexer(Class<T> enumClass) {
+            this.enumClass = enumClass;
+            this.constants = enumClass.getEnumConstants();
+        }
+
+        @Override
+        public int indexOf(Object value) {
+            if (value instanceof Enum<?> enumValue && enumValue.getDeclaringClass() == enumClass) {
+                return enumValue.ordinal();
+            }
+            return -1;
+        }
+
+        @Override
+        public T get(int index) {
+            return constants[index];
+        }
+
+        @Override
+        public int size() {
+            return constants.length;
+        }
+    }
+
+    private static final class InterningIndexer<T> extends Indexer<T> {
+        private final Map<Object, Integer> indexes = new HashMap<>();
+        private final List<T> values = new ArrayList<>();
+
+        InterningIndexer(Collection<T> valuesToIndex) {
+            for (var value : valuesToIndex) {
+                if (!indexes.containsKey(value)) {
+                    indexes.put(value, values.size());
+                    values.add(value);
+                }
+            }
+        }
+
+        @Override
+        public int indexOf(Object value) {
+            final var index = indexes.get(value);
+            return index == null ? -1 : index;
+        }
+
+        @Override
+        public T get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public int size() {
+            return values.size();
+        }
+    }
+}
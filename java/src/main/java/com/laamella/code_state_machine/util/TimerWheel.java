@@ -0,0 +1,158 @@
+package com.laamella.code_state_machine.util;
+
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel: keys are scheduled for a time, and are handed back
+ * once that time has passed. Scheduling is constant time, and expiring only
+ * looks at the buckets of the ticks that passed since the last expiry. Times
+ * further away than one turn of the wheel share buckets with closer times,
+ * and are skipped until their turn comes. The earliest time is remembered,
+ * and only looked up again in the occupied buckets after it expired.
+ * <p/>
+ * Scheduled keys cannot be cancelled. The owner should ignore keys that are
+ * not interesting anymore when they expire.
+ * <p/>
+ * A timer wheel is not thread safe.
+ *
+ * @param <K> key type.
+ */
+public final class TimerWheel<K> {
+    private final long tickMillis;
+    private final Entry<K>[] buckets;
+    /** The buckets that hold entries. */
+    private final long[] occupied;
+    private final int mask;
+    /** The first tick that has not completely expired yet. */
+    private long currentTick;
+    private int size = 0;
+    /** The earliest scheduled time, or Long.MAX_VALUE. Only valid when earliestKnown is set. */
+    private long earliest = Long.MAX_VALUE;
+    private boolean earliestKnown = true;
+
+    /**
+     * @param now        the current time in milliseconds.
+     * @param tickMillis the amount of milliseconds per bucket.
+     * @param wheelSize  the amount of buckets, rounded up to a power of two.
+     */
+    public TimerWheel(long now, long tickMillis, int wheelSize) {
+        if (tickMillis < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickMillis = tickMillis;
+        final int bucketCount = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Entry<K>[] bucketArray = new Entry[bucketCount];
+        buckets = bucketArray;
+        occupied = new long[Bits.words(bucketCount)];
+        mask = bucketCount - 1;
+        currentTick = Math.floorDiv(now, tickMillis);
+    }
+
+    /**
+     * Hand back the key once time has reached the given time. Times that have
+     * already passed are handed back on the next expiry.
+     */
+    public void schedule(K key, long time) {
+        final long tick = Math.max(Math.floorDiv(time, tickMillis), currentTick);
+        final int bucket = (int) tick & mask;
+        buckets[bucket] = new Entry<>(key, time, buckets[bucket]);
+        Bits.set(occupied, bucket);
+        size++;
+        if (earliestKnown) {
+            earliest = Math.min(earliest, time);
+        }
+    }
+
+    /**
+     * Remove every key whose time is at or before now, and hand it to the
+     * consumer.
+     */
+    public void expire(long now, Consumer<? super K> consumer) {
+        final long firstTick = currentTick;
+        final long nowTick = Math.max(Math.floorDiv(now, tickMillis), firstTick);
+        final long lastTick = Math.min(nowTick, firstTick + mask);
+        // The bucket of the current tick can still hold times after now, so it is visited again next time.
+        currentTick = nowTick;
+        for (long tick = firstTick; tick <= lastTick; tick++) {
+            expireBucket((int) tick & mask, now, consumer);
+        }
+    }
+
+    private void expireBucket(int bucket, long now, Consumer<? super K> consumer) {
+        // Detached first, so the consumer can schedule into this bucket.
+        var entry = buckets[bucket];
+        buckets[bucket] = null;
+        while (entry != null) {
+            final var next = entry.next;
+            if (entry.time <= now) {
+                size--;
+                // This may have been the earliest time.
+                earliestKnown = false;
+                consumer.accept(entry.key);
+            } else {
+                entry.next = buckets[bucket];
+                buckets[bucket] = entry;
+            }
+            entry = next;
+        }
+        if (buckets[bucket] == null) {
+            Bits.clear(occupied, bucket);
+        }
+    }
+
+    /**
+     * @return the earliest time a key is scheduled for, or Long.MAX_VALUE when
+     * nothing is scheduled.
+     */
+    public long nextExpiration() {
+        if (!earliestKnown) {
+            earliest = findEarliest();
+            earliestKnown = true;
+        }
+        return earliest;
+    }
+
+    private long findEarliest() {
+        long found = Long.MAX_VALUE;
+        // The occupied buckets in the order of their ticks: from the current tick to the end, then from the start.
+        final int start = (int) currentTick & mask;
+        for (int bucket = Bits.nextSet(occupied, start); bucket >= 0; bucket = Bits.nextSet(occupied, bucket + 1)) {
+            found = earliestIn(bucket, start, found);
+        }
+        for (int bucket = Bits.nextSet(occupied, 0); bucket >= 0 && bucket < start; bucket = Bits.nextSet(occupied, bucket + 1)) {
+            found = earliestIn(bucket, start, found);
+        }
+        return found;
+    }
+
+    private long earliestIn(int bucket, int start, long found) {
+        // Buckets further on only hold later times, except for later turns of the wheel.
+        if ((currentTick + ((bucket - start) & mask)) * tickMillis > found) {
+            return found;
+        }
+        for (var entry = buckets[bucket]; entry != null; entry = entry.next) {
+            found = Math.min(found, entry.time);
+        }
+        return found;
+    }
+
+    /**
+     * @return the amount of scheduled keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static final class Entry<K> {
+        final K key;
+        final long time;
+        Entry<K> next;
+
+        Entry(K key, long time, Entry<K> next) {
+            this.key = key;
+            this.time = time;
+            this.next = next;
+        }
+    }
+}
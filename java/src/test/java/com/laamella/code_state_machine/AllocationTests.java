@@ -0,0 +1,54 @@
+package com.laamella.code_state_machine;
+
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.priority.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static com.laamella.code_state_machine.GameEvent.*;
+import static com.laamella.code_state_machine.GameState.*;
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AllocationTests {
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void steadyStateHandleEventAndPollDoNotAllocate() {
+        var machine = new DslStateMachineBuilder<GameState, GameEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(MENU).isAStartState().when(START).then(GET_READY).when(FIRE_A, FIRE_B).then(CONFIGURATION);
+                state(CONFIGURATION).when(FIRE_A, FIRE_B).then(MENU);
+                state(GET_READY).when(DONE).then(LEVEL);
+                state(LEVEL).when(always()).then(LEVEL_FINISH);
+                states(GameState.values()).except(MENU).when(ESCAPE).then(MENU);
+            }
+        }.buildDefinition().newInstance();
+
+        for (int i = 0; i < 100_000; i++) {
+            cycle(machine);
+        }
+
+        final long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 10_000; i++) {
+            cycle(machine);
+        }
+        final long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertActive(machine, MENU);
+        assertEquals(0, allocated);
+    }
+
+    private static void cycle(Machine<GameState, GameEvent> machine) {
+        machine.handleEvent(FIRE_A);
+        machine.handleEvent(FIRE_B);
+        machine.handleEvent(START);
+        machine.handleEvent(DONE);
+        machine.poll();
+        machine.handleEvent(ESCAPE);
+        machine.poll();
+    }
+}
@@ -0,0 +1,226 @@
+package com.laamella.code_state_machine;
+
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.builder.ScxmlStateMachineBuilder;
+import com.laamella.code_state_machine.condition.NonEventBasedCondition;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.priority.Priority.HIGH;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleEvent.Z;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static com.laamella.code_state_machine.util.SimpleState.D;
+import static com.laamella.code_state_machine.util.SimpleState.E;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryDefinitionsTests {
+    private final StringBuffer trace = new StringBuffer();
+    private final TraceAction enterB = new TraceAction(trace, "b");
+    private final TraceAction leaveB = new TraceAction(trace, "-b");
+    private final TraceAction jump = new TraceAction(trace, "j");
+    private boolean open;
+    private final Condition<SimpleEvent> isOpen = new NonEventBasedCondition<>() {
+        @Override
+        public boolean isMet() {
+            return open;
+        }
+    };
+
+    private final DefinitionBindings<SimpleState, SimpleEvent, Priority> bindings = DefinitionBindings.ofEnums(SimpleState.class, SimpleEvent.class, Priority.class)
+            .bindAction("enterB", enterB)
+            .bindAction("leaveB", leaveB)
+            .bindAction("jump", jump)
+            .bindCondition("isOpen", isOpen);
+
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> buildDefinition() {
+        return new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B).when(Y, Z).action(jump).then(C);
+                state(B).onEntry(enterB).onExit(leaveB).when(X).withPrio(HIGH).then(C).when(always()).then(D);
+                state(C).when(active(B)).then(D).when(isOpen).withPrio(HIGH).then(A).when(inactive(A)).then(E);
+                state(D).when(after(0)).then(E).when(never()).then(A);
+                state(E).isAnEndState();
+            }
+        }.buildDefinition();
+    }
+
+    private static <T, E, P extends Comparable<P>> void assertSameTables(StateMachineDefinition<T, E, P> expected, StateMachineDefinition<T, E, P> actual) {
+        assertEquals(expected.getStateCount(), actual.getStateCount());
+        for (int state = 0; state < expected.getStateCount(); state++) {
+            assertEquals(expected.stateAt(state), actual.stateAt(state));
+        }
+        assertEquals(expected.events.size(), actual.events.size());
+        assertArrayEquals(expected.startStates, actual.startStates);
+        assertArrayEquals(expected.endStates, actual.endStates);
+        assertArrayEquals(expected.entryActions, actual.entryActions);
+        assertArrayEquals(expected.exitActions, actual.exitActions);
+        assertArrayEquals(expected.firstTransition, actual.firstTransition);
+        assertArrayEquals(expected.firstTier, actual.firstTier);
+        assertArrayEquals(expected.tierStart, actual.tierStart);
+        assertArrayEquals(expected.transitionSource, actual.transitionSource);
+        assertArrayEquals(expected.transitionDestination, actual.transitionDestination);
+        assertArrayEquals(expected.transitionPriority, actual.transitionPriority);
+        assertArrayEquals(expected.transitionActions, actual.transitionActions);
+        assertArrayEquals(expected.firstCondition, actual.firstCondition);
+        assertArrayEquals(expected.transitionConditions, actual.transitionConditions);
+        assertArrayEquals(expected.conditionKind, actual.conditionKind);
+        assertArrayEquals(expected.conditionSlot, actual.conditionSlot);
+        assertArrayEquals(expected.conditionData, actual.conditionData);
+        assertEquals(expected.flagCount, actual.flagCount);
+        assertArrayEquals(expected.timerMilliseconds, actual.timerMilliseconds);
+        assertArrayEquals(expected.firstEventTarget, actual.firstEventTarget);
+        assertArrayEquals(expected.eventTargetState, actual.eventTargetState);
+        assertArrayEquals(expected.eventTargetFlag, actual.eventTargetFlag);
+        assertArrayEquals(expected.fallbackStates, actual.fallbackStates);
+        assertArrayEquals(expected.firstFallbackCondition, actual.firstFallbackCondition);
+        assertArrayEquals(expected.fallbackConditions, actual.fallbackConditions);
+        assertArrayEquals(expected.opaqueStates, actual.opaqueStates);
+        assertArrayEquals(expected.timedStates, actual.timedStates);
+        assertArrayEquals(expected.firstObserver, actual.firstObserver);
+        assertArrayEquals(expected.observerStates, actual.observerStates);
+        assertEquals(expected.hierarchy == null, actual.hierarchy == null);
+        if (expected.hierarchy != null) {
+            assertArrayEquals(expected.hierarchy.firstSubState, actual.hierarchy.firstSubState);
+            assertArrayEquals(expected.hierarchy.subStates, actual.hierarchy.subStates);
+            assertArrayEquals(expected.hierarchy.initialSubState, actual.hierarchy.initialSubState);
+            assertArrayEquals(expected.hierarchy.parallelStates, actual.hierarchy.parallelStates);
+        }
+    }
+
+    private String run(StateMachineInstance<SimpleState, SimpleEvent, Priority> instance) {
+        trace.setLength(0);
+        instance.handleEvent(X);
+        assertActive(instance, D);
+        instance.reset();
+        instance.handleEvent(Z);
+        return trace.toString();
+    }
+
+    @Test
+    void definitionFromTheBuilderSurvivesARoundTrip() {
+        final var built = buildDefinition();
+        final var read = BinaryDefinitions.read(ByteBuffer.wrap(BinaryDefinitions.toBytes(built, bindings)), bindings);
+        assertSameTables(built, read);
+
+        final var builtTrace = run(built.newInstance());
+        final var readInstance = read.newInstance();
+        assertEquals(builtTrace, run(readInstance));
+        assertTrue(readInstance.isFinished());
+
+        assertThrows(IllegalArgumentException.class, () -> BinaryDefinitions.read(ByteBuffer.wrap(BinaryDefinitions.toBytes(built, bindings)),
+                DefinitionBindings.ofEnums(SimpleState.class, SimpleEvent.class, Priority.class)));
+        assertThrows(IllegalArgumentException.class, () -> BinaryDefinitions.toBytes(built,
+                DefinitionBindings.ofEnums(SimpleState.class, SimpleEvent.class, Priority.class)));
+    }
+
+    @Test
+    void definitionFromScxmlSurvivesARoundTrip() throws Exception {
+        final var scxmlBindings = new DefinitionBindings<String, String, Integer>(name -> name, name -> name, Integer::valueOf);
+        final var actions = new HashMap<String, Action>();
+        final var built = new ScxmlStateMachineBuilder<String, String>(new InputSource(new StringReader("""
+                <scxml id="root" initial="idle">
+                 <state id="idle">
+                  <onentry>ready</onentry>
+                  <transition cond="go" event="log" target="busy"/>
+                 </state>
+                 <state id="busy">
+                  <transition cond="stop" target="done"/>
+                 </state>
+                 <final id="done"/>
+                </scxml>
+                """))) {
+            @Override
+            protected Action interpretEvent(String attribute) {
+                return actions.computeIfAbsent(attribute, name -> {
+                    final var action = new TraceAction(trace, name + " ");
+                    scxmlBindings.bindAction(name, action);
+                    return action;
+                });
+            }
+
+            @Override
+            protected Condition<String> interpretCondition(String attribute) {
+                return new SingleEventMatchCondition<>(attribute);
+            }
+
+            @Override
+            protected String interpretStateName(String name) {
+                return name;
+            }
+        }.buildDefinition();
+
+        final var read = BinaryDefinitions.read(ByteBuffer.wrap(BinaryDefinitions.toBytes(built, scxmlBindings)), scxmlBindings);
+        assertSameTables(built, read);
+        final var instance = read.newInstance();
+        instance.handleEvent("go");
+        instance.handleEvent("stop");
+        assertEquals("log ", trace.toString());
+        assertEquals(Set.of(), instance.getActiveStates());
+    }
+
+    @Test
+    void hierarchySurvivesARoundTrip() {
+        final var built = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().contains(B, C).when(Y).then(D);
+                state(B).onExit(leaveB).when(X).then(C);
+            }
+        }.buildDefinition();
+        final var read = BinaryDefinitions.read(ByteBuffer.wrap(BinaryDefinitions.toBytes(built, bindings)), bindings);
+        assertSameTables(built, read);
+
+        final var instance = read.newInstance();
+        assertActive(instance, A, B);
+        instance.handleEvent(X);
+        assertActive(instance, A, C);
+        instance.handleEvent(Y);
+        assertActive(instance, D);
+        assertEquals("-b", trace.toString());
+    }
+
+    @Test
+    void definitionsAreLoadedFromOneFile(@TempDir Path directory) throws IOException {
+        final var file = directory.resolve("definitions.bin");
+        final var definitions = List.of(buildDefinition(), buildDefinition(), buildDefinition());
+        for (var definition : definitions) {
+            Files.write(file, BinaryDefinitions.toBytes(definition, bindings), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        final var loaded = BinaryDefinitions.loadAll(file, bindings);
+        assertEquals(definitions.size(), loaded.size());
+        for (int i = 0; i < definitions.size(); i++) {
+            assertSameTables(definitions.get(i), loaded.get(i));
+        }
+        assertSameTables(definitions.get(0), BinaryDefinitions.load(file, bindings));
+
+        open = true;
+        final var instance = loaded.get(2).newInstance();
+        instance.handleEvent(Y);
+        assertActive(instance, A);
+    }
+}
@@ -0,0 +1,204 @@
+package com.laamella.code_state_machine;
+
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.builder.ScxmlStateMachineBuilder;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HierarchyTests {
+    private final StringBuffer trace = new StringBuffer();
+
+    /**
+     * @return the machine, and an instance of a definition of another machine
+     * that was built the same way.
+     */
+    private static <P extends Comparable<P>> List<Machine<String, String>> bothKinds(Supplier<StateMachine<String, String, P>> build) {
+        return List.of(build.get(), new StateMachineDefinition<>(build.get()).newInstance());
+    }
+
+    private void traceStates(DslStateMachineBuilder<String, String, Priority> builder, String... states) {
+        for (var state : states) {
+            builder.state(state).onEntry(new TraceAction(trace, "+" + state + " ")).onExit(new TraceAction(trace, "-" + state + " "));
+        }
+    }
+
+    private StateMachine<String, String, Priority> buildPlayer() {
+        return new DslStateMachineBuilder<String, String, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                traceStates(this, "off", "on", "stopped", "playing");
+                state("off").isAStartState().when("power").then("on").when("resume").then("playing");
+                state("on").contains("stopped", "playing").when("power").then("off");
+                state("stopped").when("play").then("playing");
+                state("playing").when("stop").then("stopped");
+            }
+        }.build();
+    }
+
+    @Test
+    void transitionsOfACompoundStateApplyToItsSubStates() {
+        assertEquals(5, new StateMachineDefinition<>(buildPlayer()).getTransitionCount());
+        for (var machine : bothKinds(this::buildPlayer)) {
+            trace.setLength(0);
+            machine.handleEvent("power");
+            assertEquals(Set.of("on", "stopped"), machine.getActiveStates());
+            machine.handleEvent("play");
+            machine.handleEvent("power");
+            assertEquals(Set.of("off"), machine.getActiveStates());
+            machine.handleEvent("resume");
+            assertEquals(Set.of("on", "playing"), machine.getActiveStates());
+            assertEquals("-off +on +stopped -stopped +playing -playing -on +off -off +on +playing ", trace.toString());
+        }
+    }
+
+    private StateMachine<String, String, Priority> buildNested() {
+        return new DslStateMachineBuilder<String, String, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                traceStates(this, "outer", "a", "b", "elsewhere");
+                state("outer").isAStartState().contains("a", "b").when("x").then("elsewhere");
+                state("a").when("x").then("b");
+            }
+        }.build();
+    }
+
+    @Test
+    void transitionsOfSubStatesGoFirst() {
+        for (var machine : bothKinds(this::buildNested)) {
+            trace.setLength(0);
+            machine.handleEvent("x");
+            assertEquals(Set.of("outer", "b"), machine.getActiveStates());
+            // The event that a went to b on is not remembered by outer.
+            machine.handleEvent("y");
+            assertEquals(Set.of("outer", "b"), machine.getActiveStates());
+            machine.handleEvent("x");
+            assertEquals(Set.of("elsewhere"), machine.getActiveStates());
+            assertEquals("-a +b -b -outer +elsewhere ", trace.toString());
+        }
+    }
+
+    private StateMachine<String, String, Priority> buildParallel() {
+        return new DslStateMachineBuilder<String, String, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                traceStates(this, "player", "audio", "muted", "loud", "video", "closed");
+                state("player").isAStartState().containsInParallel("audio", "video").when("quit").then("closed");
+                state("audio").contains("muted", "loud");
+                state("muted").when("unmute").then("loud");
+            }
+        }.build();
+    }
+
+    @Test
+    void allSubStatesOfAParallelStateAreActive() {
+        for (var machine : bothKinds(this::buildParallel)) {
+            trace.setLength(0);
+            assertEquals(Set.of("player", "audio", "muted", "video"), machine.getActiveStates());
+            machine.handleEvent("unmute");
+            assertEquals(Set.of("player", "audio", "loud", "video"), machine.getActiveStates());
+            machine.handleEvent("quit");
+            assertEquals(Set.of("closed"), machine.getActiveStates());
+            assertEquals("-muted +loud -loud -audio -video -player +closed ", trace.toString());
+
+            machine.reset();
+            assertEquals(Set.of("player", "audio", "muted", "video"), machine.getActiveStates());
+        }
+    }
+
+    private StateMachine<String, String, Priority> buildMenu() {
+        return new DslStateMachineBuilder<String, String, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                final var items = new String[40];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = "item" + i;
+                }
+                traceStates(this, items);
+                traceStates(this, "menu", "away");
+                state("menu").isAStartState().contains(items).when("leave").then("away");
+                for (int i = 0; i + 1 < items.length; i++) {
+                    state(items[i]).when("next").then(items[i + 1]);
+                }
+                state("away").when("back").then("menu");
+            }
+        }.build();
+    }
+
+    @Test
+    void onlyTheActiveSubStatesOfAWideCompoundStateAreExited() {
+        for (var machine : bothKinds(this::buildMenu)) {
+            trace.setLength(0);
+            machine.handleEvent("next");
+            machine.handleEvent("next");
+            machine.handleEvent("leave");
+            assertEquals(Set.of("away"), machine.getActiveStates());
+            machine.handleEvent("back");
+            machine.handleEvent("leave");
+            assertEquals("-item0 +item1 -item1 +item2 -item2 -menu +away -away +menu +item0 -item0 -menu +away ", trace.toString());
+        }
+    }
+
+    @Test
+    void scxmlStatesAreNested() {
+        for (var machine : bothKinds(() -> {
+            try {
+                return new ScxmlStateMachineBuilder<String, String>(new InputSource(new StringReader("""
+                        <scxml id="root" initial="player">
+                         <parallel id="player">
+                          <state id="audio" initial="loud">
+                           <state id="muted"><transition cond="unmute" target="loud"/></state>
+                           <state id="loud"><transition cond="mute" target="muted"/></state>
+                          </state>
+                          <state id="video"/>
+                          <transition cond="quit" target="closed"/>
+                         </parallel>
+                         <final id="closed"/>
+                        </scxml>
+                        """))) {
+                    @Override
+                    protected Action interpretEvent(String attribute) {
+                        return new TraceAction(trace, attribute);
+                    }
+
+                    @Override
+                    protected Condition<String> interpretCondition(String attribute) {
+                        return new SingleEventMatchCondition<>(attribute);
+                    }
+
+                    @Override
+                    protected String interpretStateName(String name) {
+                        return name;
+                    }
+                }.build();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        })) {
+            assertEquals(Set.of("player", "audio", "loud", "video"), machine.getActiveStates());
+            machine.handleEvent("mute");
+            assertEquals(Set.of("player", "audio", "muted", "video"), machine.getActiveStates());
+            machine.handleEvent("quit");
+            assertTrue(machine.isFinished());
+        }
+    }
+
+    @Test
+    void statesHaveOneCompoundState() {
+        final var internals = new StateMachine<String, String, Priority>().new Internals();
+        internals.addSubState("outer", "inner");
+        assertThrows(IllegalArgumentException.class, () -> internals.addSubState("other", "inner"));
+        assertThrows(IllegalArgumentException.class, () -> internals.addSubState("inner", "outer"));
+    }
+}
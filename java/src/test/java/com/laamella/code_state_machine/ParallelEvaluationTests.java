@@ -0,0 +1,117 @@
+package com.laamella.code_state_machine;
+
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.condition.NonEventBasedCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.laamella.code_state_machine.priority.Priority.HIGH;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelEvaluationTests {
+    private static final int STATES = 64;
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+    private final Set<Thread> actionThreads = ConcurrentHashMap.newKeySet();
+    private final List<String> trace = new ArrayList<>();
+    private int round;
+    private boolean failing;
+
+    @AfterEach
+    void after() {
+        pool.shutdown();
+    }
+
+    /**
+     * Every state is a start state. On even rounds, every third state moves on
+     * with high priority, and every fifth state that does not move on is
+     * re-entered.
+     */
+    private StateMachine<Integer, Integer, Priority> build() {
+        return new DslStateMachineBuilder<Integer, Integer, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                for (int state = 0; state < STATES; state++) {
+                    final int s = state;
+                    state(s).isAStartState()
+                            .onEntry(() -> record("+" + s))
+                            .onExit(() -> record("-" + s))
+                            .when(condition(() -> round % 2 == 0 && (s + round) % 3 == 0)).withPrio(HIGH).action(() -> record(s + ">")).then((s + 1) % STATES)
+                            .when(condition(() -> (s + round) % 5 == 0)).then(s);
+                }
+            }
+        }.build();
+    }
+
+    private Condition<Integer> condition(java.util.function.BooleanSupplier met) {
+        return new NonEventBasedCondition<>() {
+            @Override
+            public boolean isMet() {
+                if (failing) {
+                    throw new IllegalStateException("failing");
+                }
+                return met.getAsBoolean();
+            }
+        };
+    }
+
+    private void record(String step) {
+        actionThreads.add(Thread.currentThread());
+        trace.add(step);
+    }
+
+    private List<String> run(Machine<Integer, Integer> machine) {
+        trace.clear();
+        for (round = 0; round < 10; round++) {
+            machine.poll();
+            trace.add(machine.getActiveStates().toString());
+        }
+        return new ArrayList<>(trace);
+    }
+
+    @Test
+    void parallelInstanceFiresLikeSequentialInstance() {
+        final var definition = new StateMachineDefinition<>(build());
+        final var expected = run(definition.newInstance());
+
+        final var instance = definition.newInstance();
+        instance.setParallelEvaluation(pool, 8);
+        assertEquals(expected, run(instance));
+        assertEquals(Set.of(Thread.currentThread()), actionThreads);
+    }
+
+    @Test
+    void parallelMachineFiresLikeSequentialMachine() {
+        final var machine = build();
+        final var expected = run(machine);
+
+        machine.reset();
+        machine.setParallelEvaluation(pool, 8);
+        assertEquals(expected, run(machine));
+        assertEquals(Set.of(Thread.currentThread()), actionThreads);
+    }
+
+    @Test
+    void failingConditionLeavesTheInstanceUsable() {
+        final var definition = new StateMachineDefinition<>(build());
+        final var expected = run(definition.newInstance());
+
+        final var instance = definition.newInstance();
+        instance.setParallelEvaluation(pool, 1);
+        failing = true;
+        assertThrows(IllegalStateException.class, instance::poll);
+        failing = false;
+        assertEquals(expected, run(instance));
+
+        assertThrows(IllegalArgumentException.class, () -> instance.setParallelEvaluation(pool, 0));
+    }
+}
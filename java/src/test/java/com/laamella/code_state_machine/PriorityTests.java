@@ -76,4 +76,22 @@ class PriorityTests {
         assertEquals("HH", trace.toString());
     }
 
+    @Test
+    void priosAreConsideredInOrderRegardlessOfDefinitionOrder() {
+        new DslStateMachineBuilder<SimpleState, Object, Priority>(Priority.NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).when(always()).transition(B, never(), Priority.HIGH, trace("H"));
+                state(A).when(always()).transition(B, always(), Priority.LOWEST, trace("L"));
+                state(A).when(always()).transition(B, always(), Priority.NORMAL, trace("N"));
+            }
+        }.build(machine);
+        var instance = new StateMachineDefinition<>(machine).newInstance();
+
+        machine.poll();
+        assertEquals("N", trace.toString());
+        instance.poll();
+        assertEquals("NN", trace.toString());
+    }
+
 }
@@ -7,7 +7,7 @@ import static org.junit.jupiter.api.Assertions.fail;
 
 public class StateMachineAssert {
     @SafeVarargs
-    public static <T extends Enum<?>, E, P extends Comparable<P>> void assertActive( StateMachine<T, E, P> machine,  T... expectedStates) {
+    public static <T extends Enum<?>, E> void assertActive(Machine<T, E> machine, T... expectedStates) {
         for (var expectedState : expectedStates) {
             if (!machine.isActive(expectedState)) {
                 fail("Expected " + expectedState + " to be active.");
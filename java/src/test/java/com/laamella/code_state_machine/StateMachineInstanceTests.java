@@ -0,0 +1,383 @@
+package com.laamella.code_state_machine;
+
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.condition.EventBasedCondition;
+import com.laamella.code_state_machine.condition.MultiEventMatchCondition;
+import com.laamella.code_state_machine.condition.NonEventBasedCondition;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.condition.SubStateMachineCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.Clock;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static com.laamella.code_state_machine.builder.DslStateMachineBuilder.after;
+import static com.laamella.code_state_machine.GameEvent.*;
+import static com.laamella.code_state_machine.GameState.*;
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleEvent.Z;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static com.laamella.code_state_machine.util.SimpleState.D;
+import static com.laamella.code_state_machine.util.SimpleState.E;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StateMachineInstanceTests {
+    private final StringBuffer trace = new StringBuffer();
+
+    private StateMachineDefinition<GameState, GameEvent, Priority> gameDefinition;
+
+    @BeforeEach
+    void before() {
+        gameDefinition = new DslStateMachineBuilder<GameState, GameEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(LOADER).isAStartState().when(DONE).then(INTRO);
+                state(INTRO).when(DONE).then(MENU);
+                state(MENU).when(START).then(GET_READY).when(ESCAPE).then(EXIT);
+                state(GET_READY).when(DONE).then(LEVEL);
+                state(LEVEL_FINISH).when(DONE).then(GET_READY);
+                state(LEVEL).when(DEAD).then(GAME_OVER).when(COMPLETE).then(LEVEL_FINISH);
+                state(GAME_OVER).when(DONE).then(MENU);
+                states(GameState.values()).except(MENU, LOADER, EXIT).when(ESCAPE).then(MENU);
+
+                state(MENU).when(FIRE_A, FIRE_B).then(CONFIGURATION);
+                state(CONFIGURATION).when(FIRE_A, FIRE_B).then(MENU);
+
+                state(CONFIGURATION).when(FIRE_A).then(INTRO);
+
+                state(EXIT).isAnEndState();
+            }
+        }.buildDefinition();
+    }
+
+    private TraceAction trace(final String signature) {
+        return new TraceAction(trace, signature);
+    }
+
+    @Test
+    void nullsInConditionsAreCompiled() {
+        var definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(new SingleEventMatchCondition<>(X), inactive((SimpleState) null)).then(B);
+                state(B).when(new MultiEventMatchCondition<>(Y, null)).then(C);
+            }
+        }.buildDefinition();
+        var instance = definition.newInstance();
+
+        instance.handleEvent(X);
+        assertActive(instance, B);
+        instance.handleEvent(null);
+        assertActive(instance, C);
+    }
+
+    @Test
+    void instancesDoNotShareState() {
+        var first = gameDefinition.newInstance();
+        var second = gameDefinition.newInstance();
+        first.handleEvent(DONE);
+        first.handleEvent(DONE);
+        assertActive(first, MENU);
+        assertActive(second, LOADER);
+        second.handleEvent(DONE);
+        assertActive(first, MENU);
+        assertActive(second, INTRO);
+    }
+
+    @Test
+    void concurrentStates() {
+        var machine = gameDefinition.newInstance();
+        machine.handleEvent(DONE);
+        machine.handleEvent(DONE);
+        machine.handleEvent(FIRE_A);
+        machine.handleEvent(FIRE_A);
+        assertActive(machine, MENU, INTRO);
+        machine.handleEvent(START);
+        assertActive(machine, GET_READY, INTRO);
+        machine.handleEvent(DONE);
+        assertActive(machine, LEVEL, MENU);
+        machine.handleEvent(START);
+        assertActive(machine, LEVEL, GET_READY);
+        machine.handleEvent(DONE);
+        assertActive(machine, LEVEL);
+    }
+
+    @Test
+    void batchesHaveTheSameResultAsSingleEvents() {
+        GameEvent[] events = {DONE, DONE, FIRE_A, FIRE_A, START, DONE};
+        var single = gameDefinition.newInstance();
+        for (var event : events) {
+            single.handleEvent(event);
+        }
+        assertActive(single, LEVEL, MENU);
+
+        var batched = gameDefinition.newInstance();
+        batched.handleEvents(events);
+        assertActive(batched, LEVEL, MENU);
+
+        var streamed = gameDefinition.newInstance();
+        streamed.handleEvents(Stream.of(events));
+        assertActive(streamed, LEVEL, MENU);
+
+        var listed = gameDefinition.newInstance();
+        listed.handleEvents(List.of(events).subList(0, 5));
+        assertActive(listed, GET_READY, INTRO);
+    }
+
+    @Test
+    void endState() {
+        var machine = gameDefinition.newInstance();
+        machine.handleEvent(DONE);
+        machine.handleEvent(DONE);
+        machine.handleEvent(ESCAPE);
+        assertActive(machine);
+        assertTrue(machine.isFinished());
+    }
+
+    @Test
+    void reset() {
+        var machine = gameDefinition.newInstance();
+        machine.handleEvent(DONE);
+        machine.reset();
+        assertActive(machine, LOADER);
+    }
+
+    @Test
+    void actionsAreExecutedInOrder() {
+        var machine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().onExit(trace("a")).when(X).transition(B, new SingleEventMatchCondition<>(X), NORMAL, trace("x"));
+                state(B).onEntry(trace("b"));
+            }
+        }.buildDefinition().newInstance();
+
+        machine.handleEvent(X);
+        assertEquals("axb", trace.toString());
+        assertActive(machine, B);
+    }
+
+    @Test
+    void highPrioIsTheOnlyOneFiring() {
+        var machine = new DslStateMachineBuilder<SimpleState, Object, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState();
+                state(B).isAnEndState();
+                state(A).when(always()).transition(B, always(), Priority.LOWEST, trace("L"));
+                state(A).when(always()).transition(B, always(), Priority.HIGH, trace("H"));
+                state(A).when(always()).transition(B, always(), Priority.NORMAL, trace("N"));
+            }
+        }.buildDefinition().newInstance();
+
+        machine.poll();
+        assertEquals("H", trace.toString());
+    }
+
+    @Test
+    void stateConditionsReferToTheirOwnInstance() {
+        var definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(X).then(B);
+                state(C).when(active(B)).then(D);
+            }
+        }.buildDefinition();
+        var first = definition.newInstance();
+        var second = definition.newInstance();
+
+        first.handleEvent(X);
+        assertActive(first, B, D);
+        assertActive(second, A, C);
+    }
+
+    @Test
+    void stateConditionsAreReconsideredWhenTheirStatesChange() {
+        var machine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(X).then(B);
+                state(B).when(Y).then(E);
+                state(C).when(active(B)).then(D);
+                state(D).when(inactive(B)).then(C);
+            }
+        }.buildDefinition().newInstance();
+
+        machine.poll();
+        assertActive(machine, A, C);
+        machine.handleEvent(X);
+        assertActive(machine, B, D);
+        machine.handleEvent(Y);
+        assertActive(machine, E, C);
+    }
+
+    @Test
+    void subMachinesAreCopiedPerInstance() {
+        var subMachine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(Y).then(B);
+                state(B).isAnEndState();
+            }
+        }.build();
+        var definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(new SubStateMachineCondition<>(subMachine)).then(B);
+            }
+        }.buildDefinition();
+        var first = definition.newInstance();
+        var second = definition.newInstance();
+
+        first.handleEvent(Y);
+        assertActive(first, B);
+        assertActive(second, A);
+        assertFalse(subMachine.isFinished());
+        second.handleEvent(Y);
+        assertActive(second, B);
+    }
+
+    @Test
+    void activeStatesIsAView() {
+        var machine = gameDefinition.newInstance();
+        var activeStates = machine.getActiveStates();
+        assertEquals(Set.of(LOADER), activeStates);
+        machine.handleEvent(DONE);
+        assertEquals(Set.of(INTRO), activeStates);
+        assertTrue(activeStates.contains(INTRO));
+        assertFalse(activeStates.contains(LOADER));
+    }
+
+    @Test
+    void enumStatesAreIndexedByOrdinal() {
+        for (var state : GameState.values()) {
+            assertEquals(state.ordinal(), gameDefinition.indexOf(state));
+        }
+    }
+
+    @Test
+    void otherStatesAreInterned() {
+        var definition = new DslStateMachineBuilder<String, String, Integer>(0) {
+            @Override
+            protected void executeBuildInstructions() {
+                state("start").isAStartState().when("go").then("middle");
+                state("middle").when("go").then("end");
+                state("end").isAnEndState();
+            }
+        }.buildDefinition();
+        assertEquals(3, definition.getStateCount());
+        assertEquals(-1, definition.indexOf("unknown"));
+        var machine = definition.newInstance();
+        machine.handleEvent("go");
+        assertEquals(Set.of("middle"), machine.getActiveStates());
+        assertTrue(machine.isActive(new String("middle")));
+        machine.handleEvent("go");
+        assertTrue(machine.isFinished());
+    }
+
+    @Test
+    void conditionsThatAreNotCompiledSeeEveryEvent() {
+        var seen = new ArrayList<SimpleEvent>();
+        var definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(A).when(new EventBasedCondition<SimpleEvent>() {
+                    @Override
+                    protected boolean conditionIsMetAfterHandlingEvent(SimpleEvent event) {
+                        seen.add(event);
+                        return event == Z;
+                    }
+                }).then(C);
+            }
+        }.buildDefinition();
+        var machine = definition.newInstance();
+
+        machine.handleEvent(Y);
+        assertActive(machine, A);
+        machine.handleEvent(Z);
+        assertActive(machine, C);
+        assertEquals(List.of(Y, Z), seen);
+    }
+
+    @Test
+    void timersUseTheClockOfTheInstanceAndReportTheirDeadline() {
+        var now = new long[]{1000};
+        var deadlines = new ArrayList<Long>();
+        var machine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(B).when(after(100)).then(C);
+            }
+        }.buildDefinition().newInstance(() -> now[0]);
+        machine.setDeadlineListener(deadlines::add);
+
+        machine.handleEvent(X);
+        assertEquals(List.of(1101L), deadlines);
+        now[0] = 1100;
+        machine.poll();
+        assertActive(machine, B);
+        now[0] = 1101;
+        machine.poll();
+        assertActive(machine, C);
+    }
+
+    @Test
+    void transitionsThatAlreadyFiredAreConsideredAgainOnTheNextPoll() {
+        var machine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState();
+                state(A).when(always()).transition(B, always(), NORMAL, trace("1"));
+                state(B).when(always()).transition(A, always(), NORMAL, trace("2"));
+            }
+        }.buildDefinition().newInstance();
+
+        machine.poll();
+        assertEquals("12", trace.toString());
+        machine.poll();
+        assertEquals("1212", trace.toString());
+    }
+
+    @Test
+    void conditionsThatAreNotCompiledAreEvaluatedOnEveryPoll() {
+        var evaluations = new int[1];
+        var machine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(new NonEventBasedCondition<SimpleEvent>() {
+                    @Override
+                    public boolean isMet() {
+                        return ++evaluations[0] == 3;
+                    }
+                }).then(B);
+                state(C).when(X).then(D);
+            }
+        }.buildDefinition().newInstance();
+
+        machine.poll();
+        machine.poll();
+        assertActive(machine, A, C);
+        machine.poll();
+        assertActive(machine, B, C);
+        assertEquals(3, evaluations[0]);
+    }
+}
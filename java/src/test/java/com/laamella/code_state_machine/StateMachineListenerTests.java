@@ -0,0 +1,96 @@
+package com.laamella.code_state_machine;
+
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.laamella.code_state_machine.priority.Priority.HIGH;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StateMachineListenerTests {
+    private static final List<String> EXPECTED = List.of(
+            "event X", "exit A", "fired A B HIGH", "enter B", "iteration 0 1", "iteration 1 0",
+            "event Y", "exit B", "fired B C NORMAL", "enter C", "finished", "iteration 0 1", "iteration 1 0");
+
+    private final List<String> trace = new ArrayList<>();
+    private final StateMachineListener<SimpleState, SimpleEvent, Priority> listener = new StateMachineListener<>() {
+        @Override
+        public void eventReceived(SimpleEvent event) {
+            trace.add("event " + event);
+        }
+
+        @Override
+        public void transitionFired(SimpleState sourceState, SimpleState destinationState, Priority priority) {
+            trace.add("fired " + sourceState + " " + destinationState + " " + priority);
+        }
+
+        @Override
+        public void stateEntered(SimpleState state) {
+            trace.add("enter " + state);
+        }
+
+        @Override
+        public void stateExited(SimpleState state) {
+            trace.add("exit " + state);
+        }
+
+        @Override
+        public void pollIterated(int iteration, int transitionsFired) {
+            trace.add("iteration " + iteration + " " + transitionsFired);
+        }
+
+        @Override
+        public void finished() {
+            trace.add("finished");
+        }
+    };
+
+    private DslStateMachineBuilder<SimpleState, SimpleEvent, Priority> builder;
+
+    @BeforeEach
+    void before() {
+        builder = new DslStateMachineBuilder<>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).withPrio(HIGH).then(B);
+                state(B).when(Y).then(C);
+                state(C).isAnEndState();
+            }
+        };
+    }
+
+    @Test
+    void interpretedMachineTellsListeners() {
+        var machine = builder.build();
+        machine.addListener(listener);
+        machine.handleEvent(X);
+        machine.handleEvent(Y);
+        assertEquals(EXPECTED, trace);
+    }
+
+    @Test
+    void instanceTellsListeners() {
+        var machine = builder.buildDefinition().newInstance();
+        machine.addListener(listener);
+        machine.handleEvent(X);
+        machine.handleEvent(Y);
+        assertEquals(EXPECTED, trace);
+
+        machine.removeListener(listener);
+        machine.reset();
+        machine.handleEvent(X);
+        assertEquals(EXPECTED, trace);
+    }
+}
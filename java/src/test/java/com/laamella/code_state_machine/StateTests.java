@@ -8,10 +8,13 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.function.Function;
+
 import static com.laamella.code_state_machine.GameEvent.*;
 import static com.laamella.code_state_machine.GameState.*;
 import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
 import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class StateTests {
     private static final Logger log = LoggerFactory.getLogger(StateTests.class);
@@ -63,6 +66,50 @@ public class StateTests {
         assertActive(gameMachine, LEVEL);
     }
 
+    @Test
+    public void batchOfEventsWorksLikeSingleEvents() {
+        assertBatchWorksLikeSingleEvents(StateTests::tracedGameMachine);
+        assertBatchWorksLikeSingleEvents(trace -> new StateMachineDefinition<>(tracedGameMachine(trace)).newInstance());
+    }
+
+    private static void assertBatchWorksLikeSingleEvents(Function<StringBuffer, Machine<GameState, GameEvent>> machineFactory) {
+        final GameEvent[] events = {DONE, DEAD, DONE, COMPLETE, FIRE_A, FIRE_A, DEAD, START, DONE, COMPLETE, DONE, ESCAPE, ESCAPE};
+        final var batchTrace = new StringBuffer();
+        final var singleTrace = new StringBuffer();
+        final var batchMachine = machineFactory.apply(batchTrace);
+        final var singleMachine = machineFactory.apply(singleTrace);
+
+        batchMachine.handleEvents(events);
+        for (var event : events) {
+            singleMachine.handleEvent(event);
+        }
+        assertEquals(singleMachine.getActiveStates(), batchMachine.getActiveStates());
+        assertEquals(singleTrace.toString(), batchTrace.toString());
+    }
+
+    private static StateMachine<GameState, GameEvent, Priority> tracedGameMachine(StringBuffer trace) {
+        return new DslStateMachineBuilder<GameState, GameEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                for (var state : GameState.values()) {
+                    state(state).onEntry(new TraceAction(trace, "+" + state.ordinal())).onExit(new TraceAction(trace, "-" + state.ordinal()));
+                }
+                state(LOADER).isAStartState().when(DONE).action(new TraceAction(trace, "a")).then(INTRO);
+                state(INTRO).when(DONE).then(MENU);
+                state(MENU).when(START).action(new TraceAction(trace, "b")).then(GET_READY).when(ESCAPE).then(EXIT);
+                state(GET_READY).when(DONE).then(LEVEL);
+                state(LEVEL_FINISH).when(DONE).action(new TraceAction(trace, "c")).then(GET_READY);
+                state(LEVEL).when(DEAD).then(GAME_OVER).when(COMPLETE).then(LEVEL_FINISH);
+                state(GAME_OVER).when(DONE).then(MENU);
+                states(GameState.values()).except(MENU, LOADER, EXIT).when(ESCAPE).action(new TraceAction(trace, "d")).then(MENU);
+                state(MENU).when(FIRE_A, FIRE_B).then(CONFIGURATION);
+                state(CONFIGURATION).when(FIRE_A, FIRE_B).then(MENU);
+                state(CONFIGURATION).when(FIRE_A).then(INTRO);
+                state(EXIT).isAnEndState();
+            }
+        }.build();
+    }
+
     @Test
     public void startStateIsLoader() {
         assertActive(gameMachine, GameState.LOADER);
@@ -0,0 +1,104 @@
+package com.laamella.code_state_machine.action;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.concurrent.ActorStateMachine;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExecutorTaskActionTests {
+    /**
+     * A starts the task on X and goes to B, which goes to C when the task has
+     * finished.
+     */
+    private static StateMachineDefinition<SimpleState, SimpleEvent, Priority> build(ExecutorTaskAction<SimpleEvent> task, Runnable arrived) {
+        return new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).transition(B, new SingleEventMatchCondition<>(X), NORMAL, task);
+                state(B).when(task.isFinished()).then(C);
+                state(C).onEntry(arrived::run);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void finishingTaskWakesTheMachine() throws Exception {
+        var release = new CountDownLatch(1);
+        var arrived = new CountDownLatch(1);
+        var task = new ExecutorTaskAction<SimpleEvent>() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        var condition = task.isFinished();
+
+        // The actor listens for completions of the instance, so nothing has to be wired to the task.
+        var actor = new ActorStateMachine<>(build(task, arrived::countDown).newInstance());
+        actor.send(X).get();
+        assertTrue(actor.ask(machine -> machine.isActive(B)).get());
+
+        release.countDown();
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        assertEquals(condition, task.isFinished());
+    }
+
+    @Test
+    void instancesKeepTheirOwnTasks() {
+        var pending = new ArrayDeque<Runnable>();
+        var runs = new AtomicInteger();
+        var task = new ExecutorTaskAction<SimpleEvent>(pending::add) {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        var definition = build(task, () -> {
+        });
+        var first = definition.newInstance();
+        var second = definition.newInstance();
+        var wakes = new AtomicInteger();
+        first.setCompletionListener(wakes::incrementAndGet);
+
+        first.handleEvent(X);
+        second.handleEvent(X);
+        assertEquals(2, pending.size());
+        pending.remove().run();
+        assertEquals(1, runs.get());
+        assertEquals(1, wakes.get());
+
+        first.poll();
+        second.poll();
+        assertActive(first, C);
+        assertActive(second, B);
+        // The action itself did not start anything.
+        assertFalse(task.isFinished().isMet());
+
+        pending.remove().run();
+        second.poll();
+        assertActive(second, C);
+    }
+}
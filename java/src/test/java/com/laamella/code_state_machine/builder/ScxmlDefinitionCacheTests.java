@@ -0,0 +1,123 @@
+package com.laamella.code_state_machine.builder;
+
+import com.laamella.code_state_machine.Action;
+import com.laamella.code_state_machine.Condition;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ScxmlDefinitionCacheTests {
+    private static final String DOCUMENT = """
+            <scxml id="machine" initial="red" xmlns="http://www.w3.org/2005/07/scxml">
+             <state id="red">
+              <onentry>stop <![CDATA[now]]></onentry>
+              <transition cond="tick" target="green"><state id="ignored"/></transition>
+             </state>
+             <state id="green">
+              <transition cond="tick" target="red"/>
+              <transition cond="crash" target="broken"/>
+             </state>
+             <final id="broken"/>
+            </scxml>
+            """;
+
+    private final StringBuffer trace = new StringBuffer();
+    private int parses;
+
+    private final ScxmlDefinitionCache<String, String> cache = new ScxmlDefinitionCache<>(this::builder, 2);
+
+    private ScxmlStateMachineBuilder<String, String> builder(InputSource inputSource) {
+        parses++;
+        return new ScxmlStateMachineBuilder<>(inputSource) {
+            @Override
+            protected Action interpretEvent(String attribute) {
+                return () -> trace.append(attribute).append(';');
+            }
+
+            @Override
+            protected Condition<String> interpretCondition(String attribute) {
+                return new SingleEventMatchCondition<>(attribute);
+            }
+
+            @Override
+            protected String interpretStateName(String name) {
+                return name;
+            }
+        };
+    }
+
+    @Test
+    void documentIsParsedOnce() throws ParserConfigurationException, IOException, SAXException {
+        final var definition = cache.getDefinition(DOCUMENT.getBytes(StandardCharsets.UTF_8));
+        assertSame(definition, cache.getDefinition(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1, parses);
+        assertEquals(3, definition.getStateCount());
+        assertEquals(3, definition.getTransitionCount());
+
+        final var instance = definition.newInstance();
+        instance.handleEvent("tick");
+        instance.handleEvent("tick");
+        assertEquals("stop now;", trace.toString());
+        instance.handleEvent("tick");
+        instance.handleEvent("crash");
+        assertEquals(Set.of(), instance.getActiveStates());
+    }
+
+    @Test
+    void filesAreKeyedByContent(@TempDir Path directory) throws ParserConfigurationException, IOException, SAXException {
+        final var first = Files.writeString(directory.resolve("first.scxml"), DOCUMENT);
+        final var copy = Files.writeString(directory.resolve("copy.scxml"), DOCUMENT);
+        final var other = Files.writeString(directory.resolve("other.scxml"), DOCUMENT.replace("crash", "smash"));
+
+        final var definition = cache.getDefinition(first);
+        assertSame(definition, cache.getDefinition(copy));
+        assertNotSame(definition, cache.getDefinition(other));
+        assertEquals(2, parses);
+    }
+
+    @Test
+    void leastRecentlyUsedDefinitionIsDropped() throws ParserConfigurationException, IOException, SAXException {
+        final var first = DOCUMENT.getBytes(StandardCharsets.UTF_8);
+        final var second = DOCUMENT.replace("tick", "tock").getBytes(StandardCharsets.UTF_8);
+        final var third = DOCUMENT.replace("tick", "tack").getBytes(StandardCharsets.UTF_8);
+        final var definition = cache.getDefinition(first);
+        cache.getDefinition(second);
+        cache.getDefinition(first);
+        cache.getDefinition(third);
+        assertEquals(2, cache.size());
+        assertSame(definition, cache.getDefinition(first));
+        assertEquals(3, parses);
+        cache.getDefinition(second);
+        assertEquals(4, parses);
+
+        assertThrows(SAXException.class, () -> cache.getDefinition("<scxml><state".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void externalEntitiesAreNotRead(@TempDir Path directory) throws IOException {
+        final var secret = directory.resolve("secret.txt");
+        Files.writeString(secret, "secret");
+        final var document = """
+                <?xml version="1.0"?>
+                <!DOCTYPE scxml [<!ENTITY secret SYSTEM "%s">]>
+                <scxml id="&secret;"/>
+                """.formatted(secret.toUri());
+
+        assertThrows(SAXException.class, () -> cache.getDefinition(document.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,244 @@
+package com.laamella.code_state_machine.concurrent;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static com.laamella.code_state_machine.util.SimpleState.D;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ActorStateMachineTests {
+    /**
+     * Only touched by the drainer, so it is not synchronized.
+     */
+    private int toggles = 0;
+
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> definition;
+
+    @BeforeEach
+    void before() {
+        definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(B).when(X).then(A);
+                states(A, B).onEntry(() -> toggles++);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void eventsFromManyThreadsAreAllHandled() throws Exception {
+        var actor = new ActorStateMachine<>(definition.newInstance(), 64, OverflowPolicy.BLOCK, ActorStateMachine.VIRTUAL_THREADS);
+        var start = new CountDownLatch(1);
+        var producers = new ArrayList<Thread>();
+        for (int p = 0; p < 4; p++) {
+            producers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    actor.offer(X);
+                }
+            }));
+        }
+        start.countDown();
+        for (var producer : producers) {
+            producer.join();
+        }
+        actor.send(Y).get();
+
+        assertEquals(40_000, toggles);
+        assertEquals(Set.of(A), actor.ask(machine -> Set.copyOf(machine.getActiveStates())).get());
+    }
+
+    @Test
+    void fullMailboxRejects() {
+        var drainers = new ArrayDeque<Runnable>();
+        var actor = new ActorStateMachine<>(definition.newInstance(), 2, OverflowPolicy.REJECT, drainers::add);
+        actor.offer(X);
+        actor.offer(X);
+
+        assertThrows(RejectedExecutionException.class, () -> actor.offer(X));
+        var rejected = actor.send(X);
+        var exception = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(exception.getCause() instanceof RejectedExecutionException);
+        assertEquals(2, actor.getMailboxSize());
+
+        runAll(drainers);
+        assertEquals(2, toggles);
+        assertEquals(0, actor.getMailboxSize());
+    }
+
+    @Test
+    void fullMailboxDiscards() {
+        var drainers = new ArrayDeque<Runnable>();
+        var actor = new ActorStateMachine<>(definition.newInstance(), 2, OverflowPolicy.DISCARD, drainers::add);
+        actor.offer(X);
+        CompletableFuture<Void> accepted = actor.send(X);
+
+        assertFalse(actor.offer(X));
+        assertTrue(actor.send(X).isCancelled());
+
+        runAll(drainers);
+        assertTrue(accepted.isDone());
+        assertEquals(2, toggles);
+    }
+
+    @Test
+    void failuresCompleteTheFuture() {
+        var failing = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).action(() -> {
+                    throw new IllegalStateException("boom");
+                }).then(B);
+            }
+        }.buildDefinition().newInstance();
+        var drainers = new ArrayDeque<Runnable>();
+        var actor = new ActorStateMachine<>(failing, 4, OverflowPolicy.REJECT, drainers::add);
+
+        var future = actor.send(X);
+        runAll(drainers);
+
+        var exception = assertThrows(ExecutionException.class, future::get);
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void errorsDoNotStopTheActor() {
+        var failing = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).action(() -> {
+                    throw new AssertionError("boom");
+                }).then(B);
+            }
+        }.buildDefinition().newInstance();
+        var drainers = new ArrayDeque<Runnable>();
+        var actor = new ActorStateMachine<>(failing, 4, OverflowPolicy.REJECT, drainers::add);
+
+        var first = actor.send(X);
+        var second = actor.send(Y);
+        assertThrows(AssertionError.class, () -> drainers.poll().run());
+        runAll(drainers);
+
+        var exception = assertThrows(ExecutionException.class, first::get);
+        assertTrue(exception.getCause() instanceof AssertionError);
+        // A new drainer was scheduled for the event after the one that failed.
+        assertTrue(second.isDone());
+        assertFalse(second.isCompletedExceptionally());
+    }
+
+    @Test
+    void aFailingEventDoesNotStopTheBatch() {
+        var failing = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).action(() -> {
+                    throw new IllegalStateException("boom");
+                }).then(B);
+                state(C).isAStartState().when(Y).then(D);
+                state(D).when(Y).then(C);
+                states(C, D).onEntry(() -> toggles++);
+            }
+        }.buildDefinition().newInstance();
+        var drainers = new ArrayDeque<Runnable>();
+        var actor = new ActorStateMachine<>(failing, 8, OverflowPolicy.REJECT, drainers::add);
+
+        actor.offer(X);
+        actor.offer(Y);
+        actor.offer(X);
+        actor.offer(Y);
+        runAll(drainers);
+
+        // The events after the ones that failed were handled in the same batch.
+        assertEquals(2, toggles);
+        assertEquals(0, actor.getMailboxSize());
+    }
+
+    @Test
+    void aRejectedDrainerIsScheduledAgainLater() {
+        var drainers = new ArrayDeque<Runnable>();
+        var rejectNext = new AtomicBoolean(true);
+        var actor = new ActorStateMachine<>(definition.newInstance(), 4, OverflowPolicy.REJECT, drainer -> {
+            if (rejectNext.getAndSet(false)) {
+                throw new RejectedExecutionException("shutting down");
+            }
+            drainers.add(drainer);
+        });
+
+        assertThrows(RejectedExecutionException.class, () -> actor.offer(X));
+        actor.offer(X);
+        runAll(drainers);
+
+        assertEquals(2, toggles);
+    }
+
+    @Test
+    void nullEventsAreRejected() {
+        var actor = new ActorStateMachine<>(definition.newInstance(), 4, OverflowPolicy.REJECT, new ArrayDeque<Runnable>()::add);
+        assertThrows(NullPointerException.class, () -> actor.offer(null));
+        assertThrows(NullPointerException.class, () -> actor.send(null));
+        assertEquals(0, actor.getMailboxSize());
+    }
+
+    @Test
+    void sendingToItselfWithAFullMailboxDoesNotBlock() {
+        var self = new AtomicReference<ActorStateMachine<SimpleState, SimpleEvent>>();
+        var sent = new ArrayList<CompletableFuture<Void>>();
+        var echoing = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).action(() -> {
+                    for (int i = 0; i < 3; i++) {
+                        sent.add(self.get().send(Y));
+                    }
+                }).then(B);
+            }
+        }.buildDefinition().newInstance();
+        var drainers = new ArrayDeque<Runnable>();
+        var actor = new ActorStateMachine<>(echoing, 2, OverflowPolicy.BLOCK, drainers::add);
+        self.set(actor);
+
+        actor.offer(X);
+        drainers.poll().run();
+
+        var exception = assertThrows(ExecutionException.class, sent.get(2)::get);
+        assertTrue(exception.getCause() instanceof RejectedExecutionException);
+        runAll(drainers);
+        assertTrue(sent.get(0).isDone() && sent.get(1).isDone());
+    }
+
+    private static void runAll(Queue<Runnable> drainers) {
+        while (!drainers.isEmpty()) {
+            drainers.poll().run();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.laamella.code_state_machine.concurrent;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.concurrent.FlowStateMachine.StateChange;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static com.laamella.code_state_machine.builder.DslStateMachineBuilder.after;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlowStateMachineTests {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Upstream upstream = new Upstream();
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> definition;
+
+    /**
+     * Remembers how many events were requested.
+     */
+    private static final class Upstream implements Flow.Subscription {
+        long requested = 0;
+        boolean cancelled = false;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    @BeforeEach
+    void before() {
+        definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B).when(Y).then(B);
+                state(B).when(X).then(A).when(Y).then(A);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void eventsGoToTheMachineOfTheirKey() throws Exception {
+        var processor = new FlowStateMachine<SimpleEvent, SimpleState, SimpleEvent>(event -> event, key -> definition.newInstance(), 4, tasks::add);
+        var changes = new ArrayList<StateChange<SimpleEvent, SimpleState>>();
+        var consumed = processor.consume(changes::add);
+        processor.onSubscribe(upstream);
+        processor.onNext(X);
+        processor.onNext(X);
+        processor.onNext(Y);
+        processor.onComplete();
+        runAll();
+
+        consumed.get();
+        assertEquals(List.of(
+                new StateChange<>(X, A, false), new StateChange<>(X, B, true),
+                new StateChange<>(X, B, false), new StateChange<>(X, A, true),
+                new StateChange<>(Y, A, false), new StateChange<>(Y, B, true)), changes);
+    }
+
+    @Test
+    void eventsAreOnlyRequestedWhenTheEarlierOnesAreHandled() {
+        var instance = definition.newInstance();
+        var processor = new FlowStateMachine<Void, SimpleState, SimpleEvent>(event -> null, key -> instance, 4, tasks::add);
+        processor.onSubscribe(upstream);
+        assertEquals(4, upstream.requested);
+
+        for (int i = 0; i < 4; i++) {
+            processor.onNext(X);
+        }
+        // Nothing was handled yet, so nothing more is requested.
+        assertEquals(4, upstream.requested);
+        runAll();
+        assertEquals(8, upstream.requested);
+    }
+
+    @Test
+    void failuresCancelTheSubscription() {
+        var failing = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).action(() -> {
+                    throw new IllegalStateException("boom");
+                }).then(B);
+            }
+        }.buildDefinition();
+        var processor = new FlowStateMachine<Void, SimpleState, SimpleEvent>(event -> null, key -> failing.newInstance(), 4, tasks::add);
+        var consumed = processor.consume(change -> {
+        });
+        processor.onSubscribe(upstream);
+        processor.onNext(X);
+        runAll();
+
+        assertTrue(upstream.cancelled);
+        var exception = assertThrows(ExecutionException.class, consumed::get);
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void instancesArePolledWhenTheirTimerExpires() throws Exception {
+        var arrived = new CountDownLatch(1);
+        var timed = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(B).when(after(20)).then(C);
+                state(C).onEntry(arrived::countDown);
+            }
+        }.buildDefinition();
+        var processor = new FlowStateMachine<Void, SimpleState, SimpleEvent>(event -> null, key -> timed.newInstance(), 4, ActorStateMachine.VIRTUAL_THREADS);
+        processor.onSubscribe(upstream);
+        processor.onNext(X);
+        // No events come after X.
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void errorsDoNotStopTheDrainer() {
+        var failing = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).action(() -> {
+                    throw new AssertionError("boom");
+                }).then(B);
+            }
+        }.buildDefinition();
+        var processor = new FlowStateMachine<Void, SimpleState, SimpleEvent>(event -> null, key -> failing.newInstance(), 4, tasks::add);
+        processor.onSubscribe(upstream);
+        processor.onNext(X);
+        assertThrows(AssertionError.class, this::runAll);
+
+        processor.onNext(Y);
+        assertEquals(1, tasks.size());
+        runAll();
+        assertEquals(5, upstream.requested);
+    }
+
+    private void runAll() {
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+    }
+}
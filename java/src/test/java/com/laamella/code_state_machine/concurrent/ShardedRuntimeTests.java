@@ -0,0 +1,202 @@
+package com.laamella.code_state_machine.concurrent;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.laamella.code_state_machine.builder.DslStateMachineBuilder.after;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedRuntimeTests {
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> definition;
+
+    @BeforeEach
+    void before() {
+        definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(B).when(X).then(A);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void eventsAreRoutedToTheMachineOfTheirKey() throws Exception {
+        try (var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> definition.newInstance(), 4, 256, OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(1))) {
+            var start = new CountDownLatch(1);
+            var producers = new ArrayList<Thread>();
+            for (int p = 0; p < 4; p++) {
+                producers.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (int key = 0; key < 100; key++) {
+                        runtime.handleEvent(key, X);
+                    }
+                }));
+            }
+            start.countDown();
+            for (var producer : producers) {
+                producer.join();
+            }
+
+            for (int key = 0; key < 100; key++) {
+                // Four toggles bring every machine back to A.
+                assertEquals(true, runtime.ask(key, machine -> machine.isActive(A)).get());
+            }
+            runtime.handleEvent(7, X);
+            assertEquals(true, runtime.ask(7, machine -> machine.isActive(B)).get());
+            assertEquals(false, runtime.ask(8, machine -> machine.isActive(B)).get());
+        }
+    }
+
+    @Test
+    void shardsReportTheirStatistics() throws Exception {
+        try (var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> definition.newInstance(), 2, 256, OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(1))) {
+            for (int key = 0; key < 10; key++) {
+                runtime.handleEvent(key, X);
+            }
+            runtime.remove(3).get();
+            for (int key = 0; key < 10; key++) {
+                runtime.ask(key, machine -> null).get();
+            }
+
+            var statistics = runtime.getShardStatistics();
+            assertEquals(2, statistics.size());
+            assertEquals(10, statistics.stream().mapToLong(ShardStatistics::getProcessedEvents).sum());
+            // The question for key 3 created a fresh machine.
+            assertEquals(10, statistics.stream().mapToInt(ShardStatistics::getMachineCount).sum());
+            assertFalse(runtime.remove(3).get().isActive(B));
+        }
+    }
+
+    @Test
+    void removingAnUnknownKeyCreatesNoMachine() throws Exception {
+        var created = new AtomicInteger();
+        try (var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> {
+            created.incrementAndGet();
+            return definition.newInstance();
+        }, 1, 16, OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(1))) {
+            assertNull(runtime.remove(1).get());
+            assertEquals(0, created.get());
+            assertEquals(0, runtime.getShardStatistics().get(0).getMachineCount());
+        }
+    }
+
+    @Test
+    void pollRequestsNeverCreateMachinesOrThrow() throws Exception {
+        var created = new AtomicInteger();
+        var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> {
+            created.incrementAndGet();
+            return definition.newInstance();
+        }, 1, 16, OverflowPolicy.REJECT, TimeUnit.MILLISECONDS.toNanos(1));
+        runtime.requestPoll(1);
+        assertEquals(0, runtime.ask(2, machine -> created.get() - 1).get());
+        runtime.close();
+        runtime.requestPoll(2);
+    }
+
+    @Test
+    void instancesArePolledWhenTheirTimerExpires() throws Exception {
+        var arrived = new CountDownLatch(1);
+        var timed = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(B).when(after(20)).then(C);
+                state(C).onEntry(arrived::countDown);
+            }
+        }.buildDefinition();
+        // Regular polling is as good as off.
+        try (var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> timed.newInstance(), 1, 16, OverflowPolicy.BLOCK, TimeUnit.HOURS.toNanos(1))) {
+            runtime.handleEvent(1, X);
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+            assertTrue(runtime.ask(1, machine -> machine.isActive(C)).get());
+        }
+    }
+
+    @Test
+    void sendingToTheOwnFullMailboxIsRejectedInsteadOfBlocking() throws Exception {
+        var runtime = new AtomicReference<ShardedRuntime<Integer, SimpleState, SimpleEvent>>();
+        var accepted = new AtomicInteger();
+        var rejected = new AtomicInteger();
+        var sending = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(X).then(B);
+                state(B).onEntry(() -> {
+                    for (int i = 0; i < 10; i++) {
+                        try {
+                            runtime.get().handleEvent(1, Y);
+                            accepted.incrementAndGet();
+                        } catch (RejectedExecutionException e) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }.buildDefinition();
+        try (var shards = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> sending.newInstance(), 1, 4, OverflowPolicy.BLOCK, TimeUnit.HOURS.toNanos(1))) {
+            runtime.set(shards);
+            shards.handleEvent(1, X);
+            assertTrue(shards.ask(1, machine -> machine.isActive(B)).get(5, TimeUnit.SECONDS));
+            // The question may have taken one of the four places in the mailbox.
+            assertEquals(10, accepted.get() + rejected.get());
+            assertTrue(rejected.get() >= 6);
+        }
+    }
+
+    @Test
+    void commandsSentWhileClosingAreHandledOrRejected() throws Exception {
+        var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> definition.newInstance(), 2, 16, OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(1));
+        List<CompletableFuture<Boolean>> answers = new CopyOnWriteArrayList<>();
+        var producers = new ArrayList<Thread>();
+        for (int p = 0; p < 4; p++) {
+            final int key = p;
+            producers.add(Thread.ofPlatform().start(() -> {
+                while (true) {
+                    var answer = runtime.ask(key, machine -> machine.isActive(A));
+                    answers.add(answer);
+                    if (answer.isCompletedExceptionally()) {
+                        return;
+                    }
+                }
+            }));
+        }
+        Thread.sleep(20);
+        runtime.close();
+        for (var producer : producers) {
+            producer.join();
+        }
+        // Every question that was accepted was answered before the shards stopped.
+        for (var answer : answers) {
+            assertTrue(answer.isDone());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.laamella.code_state_machine.condition;
+
+import com.laamella.code_state_machine.StateMachine;
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.concurrent.OverflowPolicy;
+import com.laamella.code_state_machine.concurrent.ShardedRuntime;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.builder.DslStateMachineBuilder.eventually;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncConditionTests {
+    private final BlockingQueue<CompletableFuture<Integer>> lookups = new LinkedBlockingQueue<>();
+    private final AsyncCondition<SimpleEvent, Integer> largeEnough = eventually(this::lookup, value -> value > 10);
+
+    private CompletableFuture<Integer> lookup() {
+        final var lookup = new CompletableFuture<Integer>();
+        lookups.add(lookup);
+        return lookup;
+    }
+
+    /**
+     * A goes to B on X, but only when the lookup found a large enough value.
+     */
+    private StateMachine<SimpleState, SimpleEvent, Priority> build() {
+        return new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(new SingleEventMatchCondition<>(X), largeEnough).then(B);
+                state(B).when(Y).then(A);
+            }
+        }.build();
+    }
+
+    @Test
+    void machineWaitsForTheLookupWithoutBlocking() {
+        final var machine = build();
+        final var wakes = new AtomicInteger();
+        largeEnough.setCompletionListener(wakes::incrementAndGet);
+
+        machine.handleEvent(X);
+        assertActive(machine, A);
+        assertEquals(1, lookups.size());
+        lookups.remove().complete(20);
+        assertEquals(1, wakes.get());
+        machine.poll();
+        assertActive(machine, B);
+
+        // Entering A again starts a new lookup, and the old value does not count.
+        machine.handleEvent(Y);
+        machine.handleEvent(X);
+        assertActive(machine, A);
+        lookups.remove().complete(5);
+        machine.poll();
+        assertActive(machine, A);
+    }
+
+    @Test
+    void instancesKeepTheirOwnLookups() {
+        final var definition = new StateMachineDefinition<>(build());
+        final var first = definition.newInstance();
+        final var second = definition.newInstance();
+        final var wakes = new AtomicInteger();
+        first.setCompletionListener(wakes::incrementAndGet);
+
+        first.handleEvent(X);
+        second.handleEvent(X);
+        final var firstLookup = lookups.remove();
+        final var secondLookup = lookups.remove();
+        firstLookup.complete(20);
+        secondLookup.completeExceptionally(new IllegalStateException("Store is down"));
+        assertEquals(1, wakes.get());
+
+        first.poll();
+        second.poll();
+        assertActive(first, B);
+        assertActive(second, A);
+    }
+
+    @Test
+    void runtimePollsTheMachineWhoseLookupCompleted() throws Exception {
+        final var definition = new StateMachineDefinition<>(build());
+        try (var runtime = new ShardedRuntime<Integer, SimpleState, SimpleEvent>(key -> definition.newInstance(), 2, 256, OverflowPolicy.BLOCK, TimeUnit.HOURS.toNanos(1))) {
+            runtime.handleEvent(1, X);
+            final var firstLookup = lookups.take();
+            runtime.handleEvent(2, X);
+            lookups.take();
+
+            firstLookup.complete(20);
+            assertTrue(runtime.ask(1, machine -> machine.isActive(B)).get());
+            assertTrue(runtime.ask(2, machine -> machine.isActive(A)).get());
+        }
+    }
+}
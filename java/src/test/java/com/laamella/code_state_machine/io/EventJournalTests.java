@@ -0,0 +1,293 @@
+package com.laamella.code_state_machine.io;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.StateMachineInstance;
+import com.laamella.code_state_machine.TraceAction;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletionException;
+
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventJournalTests {
+    @TempDir
+    Path directory;
+    private final StringBuffer trace = new StringBuffer();
+    private final EventCodec<SimpleEvent> codec = EventCodec.ofEnum(SimpleEvent.class);
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> definition;
+
+    @BeforeEach
+    void before() {
+        definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().onEntry(new TraceAction(trace, "A")).when(X).then(B);
+                state(B).onEntry(new TraceAction(trace, "B")).when(X).then(C);
+                state(B).when(Y).then(A);
+                state(C).onEntry(new TraceAction(trace, "C")).when(Y).then(A);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void instancesAreRecoveredFromTheLatestSnapshotWithoutActions() throws Exception {
+        try (var journal = new EventJournal<>(directory, codec, EventJournal.DEFAULT_SEGMENT_BYTES, 3)) {
+            var first = definition.newInstance();
+            var second = definition.newInstance();
+            for (var event : new SimpleEvent[]{X, Y, X, X}) {
+                journal.handleEvent(1, first, event);
+            }
+            journal.handleEvent(2, second, X).join();
+            assertActive(first, C);
+            assertActive(second, B);
+        }
+        trace.setLength(0);
+        try (var journal = new EventJournal<>(directory, codec)) {
+            var instances = journal.replay(id -> definition.newInstance(), true);
+            assertEquals(2, instances.size());
+            assertActive(instances.get(1L), C);
+            assertActive(instances.get(2L), B);
+            assertEquals("", trace.toString());
+
+            var single = definition.newInstance();
+            assertTrue(journal.replay(2, single, false));
+            assertEquals("B", trace.toString());
+            assertFalse(journal.replay(3, definition.newInstance(), true));
+        }
+    }
+
+    @Test
+    void halfWrittenRecordsAreDropped() throws Exception {
+        try (var journal = new EventJournal<>(directory, codec)) {
+            journal.append(1, X).join();
+        }
+        try (var segments = Files.list(directory)) {
+            var segment = segments.findFirst().orElseThrow();
+            Files.write(segment, new byte[]{0, 0, 0, 20, 1, 2}, StandardOpenOption.APPEND);
+        }
+        try (var journal = new EventJournal<>(directory, codec)) {
+            journal.append(1, X).join();
+        }
+        try (var journal = new EventJournal<>(directory, codec)) {
+            var instance = definition.newInstance();
+            assertTrue(journal.replay(1, instance, true));
+            assertActive(instance, C);
+        }
+    }
+
+    @Test
+    void segmentsRollOver() throws Exception {
+        StateMachineInstance<SimpleState, SimpleEvent, Priority> instance = definition.newInstance();
+        try (var journal = new EventJournal<>(directory, codec, 64, 1000)) {
+            for (int i = 0; i < 20; i++) {
+                journal.handleEvent(7, instance, i % 3 == 2 ? Y : X).join();
+            }
+        }
+        try (var segments = Files.list(directory)) {
+            assertTrue(segments.count() > 1);
+        }
+        try (var journal = new EventJournal<>(directory, codec)) {
+            var recovered = definition.newInstance();
+            journal.replay(7, recovered, true);
+            assertEquals(instance.getActiveStates(), recovered.getActiveStates());
+        }
+    }
+
+    @Test
+    void failedWritesAreCutOffTheSegment() throws Exception {
+        var failing = new boolean[1];
+        try (var journal = new EventJournal<>(directory, codec, EventJournal.DEFAULT_SEGMENT_BYTES, 1000,
+                path -> new FailingChannel(open(path), failing))) {
+            journal.append(1, X).join();
+            failing[0] = true;
+            assertThrows(CompletionException.class, () -> journal.append(1, X).join());
+            failing[0] = false;
+            journal.append(1, Y).join();
+        }
+        try (var journal = new EventJournal<>(directory, codec)) {
+            var instance = definition.newInstance();
+            assertTrue(journal.replay(1, instance, true));
+            assertActive(instance, A);
+        }
+    }
+
+    @Test
+    void journalFailsWhenNoSegmentCanBeStarted() throws Exception {
+        var segments = new int[1];
+        try (var journal = new EventJournal<>(directory, codec, 1, 1000, path -> {
+            if (++segments[0] > 2) {
+                throw new IOException("Disk full");
+            }
+            return open(path);
+        })) {
+            journal.append(1, X).join();
+            journal.append(1, X).join();
+            // The second rollover fails after the event was written. An event
+            // appended before the writer got there is failed with it.
+            assertThrows(RuntimeException.class, () -> journal.append(1, Y).join());
+            assertThrows(IllegalStateException.class, () -> journal.append(1, Y));
+        }
+        try (var journal = new EventJournal<>(directory, codec)) {
+            var instance = definition.newInstance();
+            assertTrue(journal.replay(1, instance, true));
+            assertActive(instance, C);
+        }
+    }
+
+    @Test
+    void segmentsBeforeTheLatestSnapshotsAreDeleted() throws Exception {
+        StateMachineInstance<SimpleState, SimpleEvent, Priority> first = definition.newInstance();
+        StateMachineInstance<SimpleState, SimpleEvent, Priority> second = definition.newInstance();
+        try (var journal = new EventJournal<>(directory, codec, 1, 2)) {
+            journal.handleEvent(2, second, X).join();
+            for (int i = 0; i < 6; i++) {
+                journal.handleEvent(1, first, i % 3 == 2 ? Y : X).join();
+            }
+        }
+        // Every record got its own segment. Only the event of the second
+        // instance, the latest snapshot of the first one and the empty
+        // current segment are left.
+        try (var files = Files.list(directory)) {
+            assertEquals(3, files.count());
+        }
+        try (var journal = new EventJournal<>(directory, codec)) {
+            var instances = journal.replay(id -> definition.newInstance(), true);
+            assertEquals(first.getActiveStates(), instances.get(1L).getActiveStates());
+            assertActive(instances.get(2L), B);
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes half of the bytes and then fails while told to.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final boolean[] failing;
+
+        FailingChannel(FileChannel channel, boolean[] failing) {
+            this.channel = channel;
+            this.failing = failing;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (failing[0]) {
+                channel.write(source.slice(source.position(), source.remaining() / 2));
+                throw new IOException("Disk full");
+            }
+            return channel.write(source);
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return channel.read(destination);
+        }
+
+        @Override
+        public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+            return channel.read(destinations, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            return channel.write(sources, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long position) throws IOException {
+            channel.position(position);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+            return channel.transferFrom(source, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return channel.read(destination, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            return channel.write(source, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.laamella.code_state_machine.io;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.condition.SubStateMachineCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleEvent.Z;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static com.laamella.code_state_machine.util.SimpleState.D;
+import static com.laamella.code_state_machine.util.SimpleState.E;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedInstanceStoreTests {
+    @TempDir
+    Path directory;
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> definition;
+
+    @BeforeEach
+    void before() {
+        var subMachine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(Y).then(B);
+                state(B).when(Y).then(C);
+                state(C).isAnEndState();
+            }
+        }.build();
+        definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(X).then(B);
+                state(B).when(X).then(A);
+                state(C).when(new SubStateMachineCondition<>(subMachine)).then(E);
+                state(C).when(new SingleEventMatchCondition<>(Z), active(D)).then(E);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void storedInstancesSurviveReopening() throws Exception {
+        var file = directory.resolve("instances");
+        try (var store = new MappedInstanceStore<>(file, definition, 1000)) {
+            var instance = definition.newInstance();
+            instance.handleEvent(X);
+            instance.handleEvent(Y);
+            instance.handleEvent(Z);
+            store.store(999, instance);
+            assertFalse(store.contains(0));
+            assertNull(store.load(0));
+        }
+        try (var store = new MappedInstanceStore<>(file, definition, 1000)) {
+            var instance = store.load(999);
+            assertActive(instance, B, C);
+            // The sub machine had already seen one Y.
+            instance.handleEvent(Y);
+            assertActive(instance, B, E);
+            store.remove(999);
+            assertFalse(store.contains(999));
+        }
+    }
+
+    @Test
+    void storesOfAnotherShapeAreRejected() throws Exception {
+        var file = directory.resolve("instances");
+        new MappedInstanceStore<>(file, definition, 10).close();
+        assertThrows(IllegalArgumentException.class, () -> new MappedInstanceStore<>(file, definition, 20));
+    }
+
+    @Test
+    void storesOfAReorderedDefinitionAreRejected() throws Exception {
+        var file = directory.resolve("instances");
+        new MappedInstanceStore<>(file, definition, 10).close();
+        // The same shape, but the transitions of C, and so their slots, are in another order.
+        var reordered = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(X).then(B);
+                state(B).when(X).then(A);
+                state(C).when(new SingleEventMatchCondition<>(Z), active(D)).then(E);
+                state(C).when(new SubStateMachineCondition<>(new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+                    @Override
+                    protected void executeBuildInstructions() {
+                        state(A).isAStartState().when(Y).then(B);
+                        state(B).when(Y).then(C);
+                        state(C).isAnEndState();
+                    }
+                }.build())).then(E);
+            }
+        }.buildDefinition();
+        assertThrows(IllegalArgumentException.class, () -> new MappedInstanceStore<>(file, reordered, 10));
+    }
+
+    @Test
+    void halfWrittenRecordsAreEmptiedOnOpening() throws Exception {
+        var file = directory.resolve("instances");
+        try (var store = new MappedInstanceStore<>(file, definition, 2)) {
+            var instance = definition.newInstance();
+            instance.handleEvent(X);
+            store.store(0, instance);
+            store.store(1, instance);
+            // The writer of record 0 died halfway.
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var sequence = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(sequence, 128);
+                sequence.putLong(0, sequence.getLong(0) + 1).rewind();
+                channel.write(sequence, 128);
+            }
+            assertThrows(IllegalStateException.class, () -> store.load(0));
+        }
+        try (var store = new MappedInstanceStore<>(file, definition, 2)) {
+            assertFalse(store.contains(0));
+            assertNull(store.load(0));
+            assertActive(store.load(1), B, C);
+        }
+    }
+
+    @Test
+    void readersNeverSeeHalfAStore() throws Exception {
+        try (var store = new MappedInstanceStore<>(directory.resolve("instances"), definition, 1)) {
+            var writing = new AtomicBoolean(true);
+            var failure = new AtomicReference<AssertionError>();
+            var writer = Thread.ofPlatform().start(() -> {
+                var instance = definition.newInstance();
+                while (writing.get()) {
+                    instance.handleEvent(X);
+                    store.store(0, instance);
+                }
+            });
+            var reader = definition.newInstance();
+            try {
+                for (int i = 0; i < 10_000; i++) {
+                    if (store.load(0, reader)) {
+                        assertTrue(reader.isActive(A) != reader.isActive(B));
+                    }
+                }
+            } catch (AssertionError e) {
+                failure.set(e);
+            }
+            writing.set(false);
+            writer.join();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.laamella.code_state_machine.io;
+
+import com.laamella.code_state_machine.StateMachineDefinition;
+import com.laamella.code_state_machine.builder.DslStateMachineBuilder;
+import com.laamella.code_state_machine.condition.SingleEventMatchCondition;
+import com.laamella.code_state_machine.condition.SubStateMachineCondition;
+import com.laamella.code_state_machine.priority.Priority;
+import com.laamella.code_state_machine.util.SimpleEvent;
+import com.laamella.code_state_machine.util.SimpleState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static com.laamella.code_state_machine.StateMachineAssert.assertActive;
+import static com.laamella.code_state_machine.builder.DslStateMachineBuilder.after;
+import static com.laamella.code_state_machine.priority.Priority.NORMAL;
+import static com.laamella.code_state_machine.util.SimpleEvent.X;
+import static com.laamella.code_state_machine.util.SimpleEvent.Y;
+import static com.laamella.code_state_machine.util.SimpleEvent.Z;
+import static com.laamella.code_state_machine.util.SimpleState.A;
+import static com.laamella.code_state_machine.util.SimpleState.B;
+import static com.laamella.code_state_machine.util.SimpleState.C;
+import static com.laamella.code_state_machine.util.SimpleState.D;
+import static com.laamella.code_state_machine.util.SimpleState.E;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SnapshotsTests {
+    private final long[] now = {1000};
+    private StateMachineDefinition<SimpleState, SimpleEvent, Priority> definition;
+
+    @BeforeEach
+    void before() {
+        var subMachine = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                state(A).isAStartState().when(Y).then(B);
+                state(B).when(Y).then(C);
+                state(C).isAnEndState();
+            }
+        }.build();
+        definition = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(X).then(B);
+                state(B).when(after(100)).then(D);
+                state(C).when(new SubStateMachineCondition<>(subMachine)).then(E);
+                state(C).when(new SingleEventMatchCondition<>(Z), active(D)).then(E);
+            }
+        }.buildDefinition();
+    }
+
+    @Test
+    void restoredInstanceContinuesWhereTheSnapshotWasTaken() throws Exception {
+        var original = definition.newInstance(() -> now[0]);
+        original.handleEvent(X);
+        original.handleEvent(Y);
+        now[0] += 60;
+        assertActive(original, B, C);
+
+        var output = new ByteArrayOutputStream();
+        Snapshots.write(original, output);
+        assertEquals(Snapshots.toBytes(original).length, output.size());
+
+        now[0] += 1000;
+        var restored = definition.newInstance(() -> now[0]);
+        Snapshots.read(restored, new ByteArrayInputStream(output.toByteArray()));
+        assertActive(restored, B, C);
+        now[0] += 40;
+        restored.poll();
+        assertActive(restored, B, C);
+        now[0] += 1;
+        restored.poll();
+        assertActive(restored, D, C);
+        // The sub machine had already seen one Y.
+        restored.handleEvent(Y);
+        assertActive(restored, D, E);
+    }
+
+    @Test
+    void eventFlagsAreRestored() {
+        var original = definition.newInstance(() -> now[0]);
+        original.handleEvent(X);
+        original.handleEvent(Z);
+        var restored = definition.newInstance(() -> now[0]);
+        Snapshots.read(restored, ByteBuffer.wrap(Snapshots.toBytes(original)));
+        assertActive(restored, B, C);
+        now[0] += 101;
+        restored.poll();
+        assertActive(restored, D, E);
+    }
+
+    @Test
+    void otherVersionsAreRejected() {
+        var bytes = Snapshots.toBytes(definition.newInstance());
+        bytes[0] = 99;
+        assertThrows(IllegalArgumentException.class, () -> Snapshots.restore(definition, ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void snapshotsOfAReorderedDefinitionAreRejected() {
+        var reordered = new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+            @Override
+            protected void executeBuildInstructions() {
+                states(A, C).areStartStates();
+                state(A).when(X).then(B);
+                state(B).when(after(100)).then(D);
+                // The same transitions, so the same amount of slots, but in another order.
+                state(C).when(new SingleEventMatchCondition<>(Z), active(D)).then(E);
+                state(C).when(new SubStateMachineCondition<>(new DslStateMachineBuilder<SimpleState, SimpleEvent, Priority>(NORMAL) {
+                    @Override
+                    protected void executeBuildInstructions() {
+                        state(A).isAStartState().when(Y).then(B);
+                        state(B).when(Y).then(C);
+                        state(C).isAnEndState();
+                    }
+                }.build())).then(E);
+            }
+        }.buildDefinition();
+        var bytes = Snapshots.toBytes(definition.newInstance());
+        assertThrows(IllegalArgumentException.class, () -> Snapshots.restore(reordered, ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void corruptSnapshotsAreRejected() {
+        var original = definition.newInstance(() -> now[0]);
+        original.handleEvent(X);
+        var bytes = Snapshots.toBytes(original);
+        for (int length = 0; length < bytes.length; length++) {
+            var truncated = ByteBuffer.wrap(bytes, 0, length);
+            assertThrows(IllegalArgumentException.class, () -> Snapshots.restore(definition, truncated));
+        }
+        // After the version, the fingerprint and the four counts comes the amount of active states.
+        bytes[13] = 100;
+        assertThrows(IllegalArgumentException.class, () -> Snapshots.restore(definition, ByteBuffer.wrap(bytes)));
+    }
+}
@@ -0,0 +1,79 @@
+package com.laamella.code_state_machine.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTests {
+    private final List<String> expired = new ArrayList<>();
+
+    @Test
+    void keysExpireOnceTheirTimeHasPassed() {
+        var wheel = new TimerWheel<String>(1000, 10, 8);
+        wheel.schedule("b", 1025);
+        wheel.schedule("a", 1012);
+        wheel.schedule("c", 1500);
+        assertEquals(1012, wheel.nextExpiration());
+
+        wheel.expire(1011, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.expire(1012, expired::add);
+        assertEquals(List.of("a"), expired);
+        assertEquals(1025, wheel.nextExpiration());
+
+        wheel.expire(1100, expired::add);
+        assertEquals(List.of("a", "b"), expired);
+        // c shares a bucket with earlier turns of the wheel.
+        assertEquals(1500, wheel.nextExpiration());
+        wheel.expire(1499, expired::add);
+        assertEquals(1, wheel.size());
+        wheel.expire(5000, expired::add);
+        assertEquals(List.of("a", "b", "c"), expired);
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiration());
+    }
+
+    @Test
+    void timesInThePastExpireNextTime() {
+        var wheel = new TimerWheel<String>(1000, 10, 8);
+        wheel.expire(2000, expired::add);
+        wheel.schedule("late", 1500);
+        wheel.expire(2000, expired::add);
+        assertEquals(List.of("late"), expired);
+    }
+
+    @Test
+    void keysCanBeScheduledWhileExpiring() {
+        var wheel = new TimerWheel<String>(0, 1, 4);
+        wheel.schedule("first", 1);
+        wheel.expire(1, key -> {
+            expired.add(key);
+            wheel.schedule("second", 2);
+        });
+        assertEquals(List.of("first"), expired);
+        wheel.expire(2, expired::add);
+        assertEquals(List.of("first", "second"), expired);
+    }
+
+    @Test
+    void earliestTimeIsFoundAfterItExpired() {
+        var wheel = new TimerWheel<String>(1000, 10, 8);
+        wheel.schedule("x", 1030);
+        wheel.schedule("z", 1100);
+        // y is in a bucket before the one of the current tick.
+        wheel.schedule("y", 1050);
+        assertEquals(1030, wheel.nextExpiration());
+        wheel.expire(1035, expired::add);
+        assertEquals(1050, wheel.nextExpiration());
+        wheel.expire(1060, expired::add);
+        assertEquals(1100, wheel.nextExpiration());
+        wheel.schedule("w", 1070);
+        assertEquals(1070, wheel.nextExpiration());
+        wheel.expire(1100, expired::add);
+        assertEquals(List.of("x", "y", "w", "z"), expired);
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiration());
+    }
+}